@@ -0,0 +1,92 @@
+package com.example.kms.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IV and DEK generation under contention: one SecureRandom shared by every thread (the
+ * pre-GcmNonces/Drbg code path) against the per-thread nonce counters and DRBGs. Each nested
+ * class runs the same benchmarks at a fixed thread count, so a single run gives the whole
+ * scaling curve:
+ *
+ *   mvn -Pbenchmark test-compile exec:exec -Djmh.args="CryptoScalingBenchmark"
+ *
+ * Throughput is summed over all threads; compare it with the core count of the machine.
+ */
+public class CryptoScalingBenchmark {
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Fork(2)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public abstract static class Randomness {
+
+        private final SecureRandom shared = new SecureRandom();
+
+        @Benchmark
+        public void sharedSecureRandomIv(Blackhole blackhole) {
+            byte[] iv = new byte[12];
+            shared.nextBytes(iv);
+            blackhole.consume(iv);
+        }
+
+        @Benchmark
+        public void gcmNoncesIv(Blackhole blackhole) {
+            blackhole.consume(GcmNonces.next());
+        }
+
+        @Benchmark
+        public void sharedSecureRandomDek(Blackhole blackhole) {
+            byte[] dek = new byte[32];
+            shared.nextBytes(dek);
+            blackhole.consume(dek);
+        }
+
+        @Benchmark
+        public void drbgDek(Blackhole blackhole) {
+            blackhole.consume(Drbg.nextBytes(32));
+        }
+    }
+
+    @Threads(1)
+    public static class Threads1 extends Randomness {
+    }
+
+    @Threads(2)
+    public static class Threads2 extends Randomness {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends Randomness {
+    }
+
+    @Threads(8)
+    public static class Threads8 extends Randomness {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends Randomness {
+    }
+
+    @Threads(32)
+    public static class Threads32 extends Randomness {
+    }
+
+    @Threads(64)
+    public static class Threads64 extends Randomness {
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.kms.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HKDF-SHA256 as rewritten in {@link CryptoUtils} against the implementation it replaced, which
+ * called Mac.getInstance for every HMAC and grew the output by concatenation. outputLen 32 is the
+ * single-block DEK/KEK case; 64 and 128 take the multi-block loop.
+ *
+ *   mvn -Pbenchmark test-compile exec:exec -Djmh.args="CryptoUtilsBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CryptoUtilsBenchmark {
+
+    @Param({"32", "64", "128"})
+    public int outputLen;
+
+    private byte[] salt;
+    private byte[] ikm;
+    private byte[] info;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        salt = new byte[32];
+        ikm = new byte[32];
+        random.nextBytes(salt);
+        random.nextBytes(ikm);
+        info = "KMS-v1|unwrap-dek|phone:+10000000000|record:12345".getBytes();
+        out = new byte[outputLen];
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) throws Exception {
+        blackhole.consume(Legacy.hkdfExtractAndExpand(salt, ikm, info, outputLen));
+    }
+
+    @Benchmark
+    public void extractAndExpand(Blackhole blackhole) throws Exception {
+        blackhole.consume(CryptoUtils.hkdfExtractAndExpand(salt, ikm, info, outputLen));
+    }
+
+    @Benchmark
+    public void intoCallerBuffer(Blackhole blackhole) throws InvalidKeyException {
+        CryptoUtils.hkdf(salt, ikm, info, out, 0, outputLen);
+        blackhole.consume(out);
+    }
+
+    /** CryptoUtils.hkdfExtractAndExpand as it was before it wrote into caller buffers; a baseline only. */
+    static final class Legacy {
+        private static final String HMAC_ALG = "HmacSHA256";
+        private static final int HASH_LEN = 32;
+
+        static byte[] hkdfExtractAndExpand(byte[] salt, byte[] ikm, byte[] info, int outputLen) throws Exception {
+            if (salt == null) salt = new byte[HASH_LEN];
+            byte[] prk = hmac(salt, ikm);
+            int n = (int) Math.ceil((double) outputLen / HASH_LEN);
+            byte[] okm = new byte[0];
+            byte[] previous = new byte[0];
+            for (int i = 1; i <= n; i++) {
+                ByteBuffer bb = ByteBuffer.allocate(previous.length + (info == null ? 0 : info.length) + 1);
+                bb.put(previous);
+                if (info != null) bb.put(info);
+                bb.put((byte) i);
+                previous = hmac(prk, bb.array());
+                okm = concat(okm, previous);
+            }
+            return Arrays.copyOf(okm, outputLen);
+        }
+
+        private static byte[] hmac(byte[] key, byte[] data) throws NoSuchAlgorithmException, InvalidKeyException {
+            Mac mac = Mac.getInstance(HMAC_ALG);
+            mac.init(new SecretKeySpec(key, HMAC_ALG));
+            return mac.doFinal(data == null ? new byte[0] : data);
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] r = new byte[a.length + b.length];
+            System.arraycopy(a, 0, r, 0, a.length);
+            System.arraycopy(b, 0, r, a.length, b.length);
+            return r;
+        }
+    }
+}
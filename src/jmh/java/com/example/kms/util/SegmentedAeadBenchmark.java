@@ -0,0 +1,77 @@
+package com.example.kms.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-payload segmented AES-GCM for one caller as the fork/join pool grows; workers = 1 is
+ * {@link SegmentedAead.Parallelism#SEQUENTIAL}. Scores are payloads per second, so MiB/s is the
+ * score times payloadMiB. Gains stop at the machine's core count:
+ *
+ *   mvn -Pbenchmark test-compile exec:exec -Djmh.args="SegmentedAeadBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SegmentedAeadBenchmark {
+
+    @Param({"1", "2", "4", "8", "16", "32", "64"})
+    public int workers;
+
+    @Param({"64"})
+    public int payloadMiB;
+
+    private ForkJoinPool pool;
+    private SegmentedAead.Parallelism parallelism;
+    private byte[] key;
+    private byte[] plaintext;
+    private byte[] blob;
+
+    @Setup(Level.Trial)
+    public void setUp() throws GeneralSecurityException {
+        pool = workers == 1 ? null : new ForkJoinPool(workers);
+        // Threshold 0: the payload is always split, so the score is the pool's, not the heuristic's
+        parallelism = pool == null ? SegmentedAead.Parallelism.SEQUENTIAL : new SegmentedAead.Parallelism(pool, 0);
+        key = Drbg.nextBytes(32);
+        plaintext = new byte[payloadMiB << 20];
+        new Random(1).nextBytes(plaintext);
+        blob = SegmentedAead.encrypt(key, plaintext, SegmentedAead.DEFAULT_SEGMENT_BYTES, parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    @Benchmark
+    public void encrypt(Blackhole blackhole) throws GeneralSecurityException {
+        blackhole.consume(SegmentedAead.encrypt(key, plaintext, SegmentedAead.DEFAULT_SEGMENT_BYTES, parallelism));
+    }
+
+    @Benchmark
+    public void decrypt(Blackhole blackhole) throws GeneralSecurityException {
+        blackhole.consume(SegmentedAead.decrypt(key, blob, parallelism));
+    }
+}
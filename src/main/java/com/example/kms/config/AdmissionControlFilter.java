@@ -0,0 +1,210 @@
+package com.example.kms.config;
+
+import com.example.kms.exception.GlobalExceptionHandler;
+import com.example.kms.util.AdaptiveConcurrencyLimiter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Admission control in front of the upload/download/convert endpoints.
+ *
+ * Each endpoint group (vault, convert) has its own AdaptiveConcurrencyLimiter keyed by the
+ * authenticated emailHash (or client address for guests). Requests are also shed once the
+ * cryptoExecutor queue is past app.admission.max-queue-fill, so callers get a 429 with a
+ * drain-rate based Retry-After instead of waiting behind a full queue.
+ *
+ * Permits are held until the async response completes, not just until the controller returns.
+ */
+@Component
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+    private static final String GROUP_VAULT = "vault";
+    private static final String GROUP_CONVERT = "convert";
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final Map<String, AdaptiveConcurrencyLimiter> limiters;
+    private final Executor cryptoExecutor;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final double maxQueueFill;
+
+    public AdmissionControlFilter(
+            @Qualifier("cryptoExecutor") Executor cryptoExecutor,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${app.admission.enabled:true}") boolean enabled,
+            @Value("${app.admission.initial-limit:20}") int initialLimit,
+            @Value("${app.admission.min-limit:4}") int minLimit,
+            @Value("${app.admission.max-limit:200}") int maxLimit,
+            @Value("${app.admission.max-queue-fill:0.8}") double maxQueueFill) {
+        this.cryptoExecutor = cryptoExecutor;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.maxQueueFill = maxQueueFill;
+        this.limiters = Map.of(
+                GROUP_VAULT, new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit),
+                GROUP_CONVERT, new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit));
+        limiters.forEach((group, limiter) -> {
+            Gauge.builder("kms.admission.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                    .description("Current adaptive concurrency limit")
+                    .tag("group", group)
+                    .register(meterRegistry);
+            Gauge.builder("kms.admission.inflight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                    .description("Requests currently admitted")
+                    .tag("group", group)
+                    .register(meterRegistry);
+        });
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || groupFor(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String group = groupFor(request);
+        AdaptiveConcurrencyLimiter limiter = limiters.get(group);
+
+        BlockingQueue<Runnable> queue = cryptoQueue();
+        if (queue != null && queueFill(queue) >= maxQueueFill) {
+            reject(request, response, group, "queue", limiter.retryAfterSeconds(queue.size()));
+            return;
+        }
+
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire(callerKey(request));
+        if (!permit.isAcquired()) {
+            reject(request, response, group, permit.rejection().name().toLowerCase(),
+                    limiter.retryAfterSeconds(queue == null ? 0 : queue.size()));
+            return;
+        }
+
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new ReleaseOnComplete(permit));
+            }
+        } finally {
+            if (!async) permit.release(response.getStatus() < 500);
+        }
+    }
+
+    private String groupFor(HttpServletRequest request) {
+        String method = request.getMethod();
+        String path = request.getServletPath();
+        if ("POST".equals(method) && (path.equals("/api/vault/upload") || path.equals("/api/vault/upload/stream"))) {
+            return GROUP_VAULT;
+        }
+        if ("PUT".equals(method) && pathMatcher.match("/api/vault/files/*/replace", path)) return GROUP_VAULT;
+        if ("PATCH".equals(method) && pathMatcher.match("/api/vault/uploads/*", path)) return GROUP_VAULT;
+        if ("POST".equals(method) && pathMatcher.match("/api/vault/uploads/*/complete", path)) return GROUP_VAULT;
+        if ("GET".equals(method) && pathMatcher.match("/api/vault/files/*/download", path)) return GROUP_VAULT;
+        if ("POST".equals(method) && (path.equals("/api/convert") || pathMatcher.match("/api/convert/vault/*", path))) {
+            return GROUP_CONVERT;
+        }
+        if ("GET".equals(method) && pathMatcher.match("/api/convert/download/*", path)) return GROUP_CONVERT;
+        return null;
+    }
+
+    private String callerKey(HttpServletRequest request) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && auth.isAuthenticated() && !"anonymousUser".equals(auth.getName())) {
+            return "user:" + auth.getName();
+        }
+        return "ip:" + request.getRemoteAddr();
+    }
+
+    private BlockingQueue<Runnable> cryptoQueue() {
+        if (cryptoExecutor instanceof ThreadPoolTaskExecutor pool) {
+            return pool.getThreadPoolExecutor().getQueue();
+        }
+        return null;
+    }
+
+    private static double queueFill(BlockingQueue<Runnable> queue) {
+        int size = queue.size();
+        int capacity = size + queue.remainingCapacity();
+        return capacity == 0 ? 0.0 : (double) size / capacity;
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response, String group,
+                        String reason, long retryAfterSeconds) throws IOException {
+        Counter.builder("kms.admission.rejected")
+                .description("Requests shed by admission control")
+                .tag("group", group)
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+
+        HttpStatus status = HttpStatus.TOO_MANY_REQUESTS;
+        response.setStatus(status.value());
+        response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), new GlobalExceptionHandler.ErrorResponse(
+                Instant.now().toString(),
+                status.value(),
+                status.getReasonPhrase(),
+                "Server is busy, retry after " + retryAfterSeconds + "s",
+                request.getRequestURI()));
+    }
+
+    private static final class ReleaseOnComplete implements AsyncListener {
+        private final AdaptiveConcurrencyLimiter.Permit permit;
+
+        ReleaseOnComplete(AdaptiveConcurrencyLimiter.Permit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            HttpServletResponse response = (HttpServletResponse) event.getSuppliedResponse();
+            permit.release(response == null || response.getStatus() < 500);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            permit.release(false);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            permit.release(false);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Re-register if the request goes async again
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -1,35 +1,99 @@
 package com.example.kms.config;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @EnableAsync
 public class AsyncConfig {
 
     @Bean(name = "fileIoExecutor")
-    public Executor fileIoExecutor() {
+    public Executor fileIoExecutor(MeterRegistry meterRegistry) {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(10);
         executor.setMaxPoolSize(50);
         executor.setQueueCapacity(200);
         executor.setThreadNamePrefix("file-io-");
-        executor.initialize();
-        return executor;
+        return monitor(executor, "fileIoExecutor", meterRegistry);
     }
 
     @Bean(name = "cryptoExecutor")
-    public Executor cryptoExecutor() {
+    public Executor cryptoExecutor(MeterRegistry meterRegistry) {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(4);
         executor.setMaxPoolSize(Runtime.getRuntime().availableProcessors() * 2);
         executor.setQueueCapacity(100);
         executor.setThreadNamePrefix("crypto-");
+        return monitor(executor, "cryptoExecutor", meterRegistry);
+    }
+
+    @Bean(name = "keyRotationExecutor")
+    public Executor keyRotationExecutor(@Value("${app.vault.rotation.parallelism:4}") int parallelism,
+                                        MeterRegistry meterRegistry) {
+        // One coordinator thread plus one thread per parallel rewrap chunk
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(parallelism + 1);
+        executor.setMaxPoolSize(parallelism + 1);
+        executor.setQueueCapacity(parallelism * 4);
+        executor.setThreadNamePrefix("key-rotation-");
+        return monitor(executor, "keyRotationExecutor", meterRegistry);
+    }
+
+    /**
+     * Workers for splitting one large AES-GCM payload across cores (SegmentedAead). Separate
+     * from the common pool so parallel streams elsewhere never compete with crypto.
+     */
+    @Bean(name = "cryptoForkJoinPool", destroyMethod = "shutdown")
+    public ForkJoinPool cryptoForkJoinPool(@Value("${app.crypto.parallelism:0}") int parallelism) {
+        int workers = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        return new ForkJoinPool(workers);
+    }
+
+    /**
+     * Counts rejections (keeping the default abort behaviour) and exposes queue depth,
+     * active threads and pool size as kms.executor.* gauges tagged with the bean name.
+     */
+    private static ThreadPoolTaskExecutor monitor(ThreadPoolTaskExecutor executor, String name,
+                                                  MeterRegistry meterRegistry) {
+        Counter rejections = Counter.builder("kms.executor.rejected")
+                .description("Tasks rejected because the pool and its queue were full")
+                .tag("name", name)
+                .register(meterRegistry);
+        RejectedExecutionHandler abort = new ThreadPoolExecutor.AbortPolicy();
+        executor.setRejectedExecutionHandler((task, pool) -> {
+            rejections.increment();
+            abort.rejectedExecution(task, pool);
+        });
         executor.initialize();
+
+        Gauge.builder("kms.executor.queued", executor, e -> e.getThreadPoolExecutor().getQueue().size())
+                .description("Tasks waiting in the executor queue")
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder("kms.executor.queue.remaining", executor,
+                        e -> e.getThreadPoolExecutor().getQueue().remainingCapacity())
+                .description("Free slots left in the executor queue")
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder("kms.executor.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Threads currently running tasks")
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder("kms.executor.pool.size", executor, ThreadPoolTaskExecutor::getPoolSize)
+                .description("Current number of threads in the pool")
+                .tag("name", name)
+                .register(meterRegistry);
         return executor;
     }
 }
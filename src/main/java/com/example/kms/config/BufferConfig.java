@@ -0,0 +1,44 @@
+package com.example.kms.config;
+
+import com.example.kms.util.BufferArena;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+@Configuration
+public class BufferConfig {
+
+    /**
+     * Direct buffers for payloads on the crypto and storage paths. Pooled classes go up to
+     * max-class-size; larger payloads fall back to the heap. Direct memory in use is bounded
+     * by -XX:MaxDirectMemorySize (default: the max heap size).
+     */
+    @Bean
+    public BufferArena bufferArena(@Value("${app.buffers.max-class-size:64MB}") DataSize maxClassSize,
+                                   @Value("${app.buffers.max-retained:256MB}") DataSize maxRetained,
+                                   MeterRegistry meterRegistry) {
+        BufferArena arena = new BufferArena((int) Math.min(maxClassSize.toBytes(), 1L << 30), maxRetained.toBytes());
+
+        Gauge.builder("kms.buffers.retained", arena, BufferArena::retainedBytes)
+                .description("Idle pooled direct buffer bytes held for reuse")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        FunctionCounter.builder("kms.buffers.leases", arena, BufferArena::hits)
+                .description("Buffer leases by how they were served")
+                .tag("source", "pool")
+                .register(meterRegistry);
+        FunctionCounter.builder("kms.buffers.leases", arena, BufferArena::allocations)
+                .description("Buffer leases by how they were served")
+                .tag("source", "allocated")
+                .register(meterRegistry);
+        FunctionCounter.builder("kms.buffers.leases", arena, BufferArena::unpooled)
+                .description("Buffer leases by how they were served")
+                .tag("source", "heap")
+                .register(meterRegistry);
+        return arena;
+    }
+}
@@ -15,8 +15,10 @@ public class CorsConfig implements WebMvcConfigurer {
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/api/**")
                 .allowedOrigins(allowedOrigins)
-                .allowedMethods("GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS")
+                .allowedMethods("GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
+                // Resumable upload state travels in headers; ETag lets clients revalidate downloads
+                .exposedHeaders("Location", "Upload-Offset", "Upload-Length", "Upload-Segment-Size", "ETag")
                 .allowCredentials(true);
     }
 }
@@ -0,0 +1,37 @@
+package com.example.kms.config;
+
+import com.example.kms.dto.KeyRotationStatusDTO;
+import com.example.kms.service.KeyRotationService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Master-key rewrap status and trigger, as the actuator endpoint /actuator/keyrotation on the
+ * management port. Both operations require an operator login (HTTP basic, role OPS); see
+ * {@link SecurityConfig#operatorFilterChain}.
+ */
+@Component
+@Endpoint(id = "keyrotation")
+public class KeyRotationEndpoint {
+
+    private final KeyRotationService keyRotationService;
+
+    public KeyRotationEndpoint(KeyRotationService keyRotationService) {
+        this.keyRotationService = keyRotationService;
+    }
+
+    // GET /actuator/keyrotation
+    @ReadOperation
+    public KeyRotationStatusDTO status() {
+        return new KeyRotationStatusDTO(keyRotationService.isRunning(), keyRotationService.getProgress());
+    }
+
+    // POST /actuator/keyrotation: starts a run on this node unless one is running here or another node holds the lease
+    @WriteOperation
+    public KeyRotationStatusDTO start() {
+        keyRotationService.startRewrap();
+        return status();
+    }
+}
@@ -1,11 +1,20 @@
 package com.example.kms.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.access.intercept.AuthorizationFilter;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 @Configuration
@@ -13,9 +22,41 @@ import org.springframework.security.web.authentication.UsernamePasswordAuthentic
 public class SecurityConfig {
 
     private final JwtAuthFilter jwtAuthFilter;
+    private final AdmissionControlFilter admissionControlFilter;
 
-    public SecurityConfig(JwtAuthFilter jwtAuthFilter) {
+    public SecurityConfig(JwtAuthFilter jwtAuthFilter, AdmissionControlFilter admissionControlFilter) {
         this.jwtAuthFilter = jwtAuthFilter;
+        this.admissionControlFilter = admissionControlFilter;
+    }
+
+    /**
+     * Operator actuator endpoints (/actuator/keyrotation): HTTP basic against the single operator
+     * account from app.ops.*, role OPS. Client JWTs are not accepted here, and with no password
+     * hash configured nobody can log in.
+     */
+    @Bean
+    @Order(1)
+    public SecurityFilterChain operatorFilterChain(HttpSecurity http,
+                                                   PasswordEncoder passwordEncoder,
+                                                   @Value("${app.ops.username:ops}") String opsUsername,
+                                                   @Value("${app.ops.password-hash:}") String opsPasswordHash) throws Exception {
+        InMemoryUserDetailsManager operators = new InMemoryUserDetailsManager();
+        if (!opsPasswordHash.isBlank()) {
+            operators.createUser(User.withUsername(opsUsername).password(opsPasswordHash).roles("OPS").build());
+        }
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+        provider.setUserDetailsService(operators);
+        provider.setPasswordEncoder(passwordEncoder);
+
+        http
+                .securityMatcher("/actuator/keyrotation", "/actuator/keyrotation/**")
+                .csrf(csrf -> csrf.disable())
+                .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .authorizeHttpRequests(auth -> auth.anyRequest().hasRole("OPS"))
+                .httpBasic(Customizer.withDefaults())
+                .authenticationManager(new ProviderManager(provider));
+
+        return http.build();
     }
 
     @Bean
@@ -27,8 +68,12 @@ public class SecurityConfig {
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers("/api/clients/**", "/api/otp/**", "/api/auth/**").permitAll()
                         .requestMatchers("/api/convert", "/api/convert/download/**", "/api/convert/jobs/**").permitAll()
+                        // Served on the internal management port (management.server.port) for Prometheus scrapes
+                        .requestMatchers("/actuator/health", "/actuator/prometheus").permitAll()
                         .anyRequest().authenticated())
-                .addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class);
+                .addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class)
+                // After authorization, so rejected/unauthenticated requests never take a permit
+                .addFilterAfter(admissionControlFilter, AuthorizationFilter.class);
 
         return http.build();
     }
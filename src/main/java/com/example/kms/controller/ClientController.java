@@ -15,6 +15,7 @@ import jakarta.validation.Valid;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Base64;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -84,8 +85,9 @@ public class ClientController {
         List<ServerStoreResponse> resp = list.stream().map(ed -> {
             ServerStoreResponse r = new ServerStoreResponse();
             r.setEncryptedDataId(ed.getId());
-            r.setDekWrappedForClient(ed.getDekWrapped());
-            r.setDekWrappedForRecovery(ed.getDekWrappedForRecovery());
+            r.setDekWrappedForClient(Base64.getEncoder().encodeToString(ed.getDekWrapped()));
+            r.setDekWrappedForRecovery(ed.getDekWrappedForRecovery() == null
+                    ? null : Base64.getEncoder().encodeToString(ed.getDekWrappedForRecovery()));
             r.setIv(ed.getIv());
             r.setSalt(ed.getSalt());
             r.setServerPublicKey(ed.getClient().getServerPublicKey());
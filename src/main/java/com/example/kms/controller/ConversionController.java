@@ -1,7 +1,10 @@
 package com.example.kms.controller;
 
 import com.example.kms.dto.ConversionJobDTO;
+import com.example.kms.exception.MemoryBudgetExceededException;
 import com.example.kms.service.FileConversionService;
+import com.example.kms.service.RateLimitService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
@@ -21,16 +24,24 @@ import java.util.concurrent.RejectedExecutionException;
 public class ConversionController {
 
     private final FileConversionService fileConversionService;
+    private final RateLimitService rateLimitService;
 
-    public ConversionController(FileConversionService fileConversionService) {
+    public ConversionController(FileConversionService fileConversionService, RateLimitService rateLimitService) {
         this.fileConversionService = fileConversionService;
+        this.rateLimitService = rateLimitService;
     }
 
     @PostMapping
     public CompletableFuture<ResponseEntity<ConversionJobDTO>> convertUpload(
             @RequestParam("file") MultipartFile file,
             @RequestParam("targetFormat") String targetFormat,
-            @AuthenticationPrincipal(errorOnInvalidType = false) UserDetails user) {
+            @AuthenticationPrincipal(errorOnInvalidType = false) UserDetails user,
+            HttpServletRequest request) {
+        // Guests are bucketed by client address
+        String tenantKey = user != null
+                ? RateLimitService.userKey(user.getUsername())
+                : RateLimitService.guestKey(request.getRemoteAddr());
+        rateLimitService.acquire(tenantKey, file.getSize());
         try {
             return fileConversionService.convertGuestAsync(file, targetFormat)
                     .thenApply(dto -> ResponseEntity.status(HttpStatus.ACCEPTED).body(dto));
@@ -50,6 +61,7 @@ public class ConversionController {
             @RequestParam("targetFormat") String targetFormat,
             @AuthenticationPrincipal UserDetails user) {
         String emailHash = user.getUsername();
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), 0);
         try {
             return fileConversionService.convertAndStoreAsync(emailHash, sourceFileId, targetFormat)
                     .thenApply(dto -> ResponseEntity.status(HttpStatus.ACCEPTED).body(dto));
@@ -69,9 +81,12 @@ public class ConversionController {
     }
 
     @GetMapping("/download/{token}")
-    public ResponseEntity<Resource> guestDownload(@PathVariable String token) {
+    public ResponseEntity<Resource> guestDownload(@PathVariable String token, HttpServletRequest request) {
+        String tenantKey = RateLimitService.guestKey(request.getRemoteAddr());
+        rateLimitService.acquire(tenantKey, 0);
         try {
             byte[] bytes = fileConversionService.downloadGuestResult(token);
+            rateLimitService.charge(tenantKey, bytes.length);
             ByteArrayResource resource = new ByteArrayResource(bytes);
             return ResponseEntity.ok()
                     .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"converted-file\"")
@@ -80,6 +95,8 @@ public class ConversionController {
             return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
                     .header("Retry-After", "5")
                     .build();
+        } catch (MemoryBudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -1,5 +1,6 @@
 package com.example.kms.controller;
 
+import com.example.kms.exception.MemoryBudgetExceededException;
 import com.example.kms.model.Client;
 import com.example.kms.model.Document;
 import com.example.kms.repository.ClientRepository;
@@ -61,6 +62,8 @@ public class DocumentController {
 
             Document doc = documentService.storeDocument(file, client);
             return ResponseEntity.ok(convertToDTO(doc));
+        } catch (MemoryBudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             return ResponseEntity.internalServerError().build();
         }
@@ -74,6 +77,8 @@ public class DocumentController {
             // For MVP, we allow conversion if you have the ID.
             Document mappedDoc = documentService.convertDocument(id, format);
             return ResponseEntity.ok(convertToDTO(mappedDoc));
+        } catch (MemoryBudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return ResponseEntity.internalServerError().build(); // Simplify error handling
@@ -95,6 +100,8 @@ public class DocumentController {
                     .contentType(MediaType.parseMediaType(doc.getContentType()))
                     .contentLength(data.length)
                     .body(resource);
+        } catch (MemoryBudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return ResponseEntity.internalServerError().build();
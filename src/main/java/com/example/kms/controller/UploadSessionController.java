@@ -0,0 +1,127 @@
+package com.example.kms.controller;
+
+import com.example.kms.dto.UploadSessionDTO;
+import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.service.RateLimitService;
+import com.example.kms.service.UploadSessionService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.web.bind.annotation.*;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resumable uploads, modelled on the tus protocol's core: POST creates a session for
+ * Upload-Length bytes, HEAD reports the current Upload-Offset, PATCH appends a chunk at
+ * Upload-Offset and answers with the new offset, and POST .../complete turns the finished
+ * session into a vault file. A client that loses its connection asks HEAD where to resume.
+ */
+@RestController
+@RequestMapping("/api/vault/uploads")
+public class UploadSessionController {
+
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    private static final String UPLOAD_SEGMENT_SIZE = "Upload-Segment-Size";
+
+    private final UploadSessionService uploadSessionService;
+    private final RateLimitService rateLimitService;
+
+    public UploadSessionController(UploadSessionService uploadSessionService, RateLimitService rateLimitService) {
+        this.uploadSessionService = uploadSessionService;
+        this.rateLimitService = rateLimitService;
+    }
+
+    @PostMapping
+    public ResponseEntity<UploadSessionDTO> create(
+            @RequestHeader(UPLOAD_LENGTH) long length,
+            @RequestHeader(value = "X-File-Name", required = false) String encodedFilename,
+            @AuthenticationPrincipal UserDetails user) throws Exception {
+        String emailHash = user.getUsername();
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), 0);
+        String filename = encodedFilename == null || encodedFilename.isBlank()
+                ? "upload"
+                : URLDecoder.decode(encodedFilename, StandardCharsets.UTF_8);
+        UploadSessionDTO session = uploadSessionService.create(emailHash, filename, length);
+        return ResponseEntity.created(URI.create("/api/vault/uploads/" + session.id()))
+                .header(UPLOAD_OFFSET, Long.toString(session.offset()))
+                .header(UPLOAD_SEGMENT_SIZE, Integer.toString(session.segmentSize()))
+                .body(session);
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> offset(
+            @PathVariable UUID id,
+            @AuthenticationPrincipal UserDetails user) {
+        UploadSessionDTO session = uploadSessionService.status(user.getUsername(), id);
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(UPLOAD_OFFSET, Long.toString(session.offset()))
+                .header(UPLOAD_LENGTH, Long.toString(session.length()))
+                .header(UPLOAD_SEGMENT_SIZE, Integer.toString(session.segmentSize()))
+                .build();
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadSessionDTO> status(
+            @PathVariable UUID id,
+            @AuthenticationPrincipal UserDetails user) {
+        return ResponseEntity.ok(uploadSessionService.status(user.getUsername(), id));
+    }
+
+    /**
+     * Appends the request body at Upload-Offset. Only whole segments are kept until the chunk
+     * that reaches Upload-Length, so the returned Upload-Offset may be short of what was sent;
+     * clients continue from the returned value (chunk sizes that are multiples of
+     * Upload-Segment-Size avoid re-sending anything). A chunk that stops short of Upload-Length
+     * and is smaller than Upload-Segment-Size is rejected with 400.
+     */
+    @PatchMapping("/{id}")
+    public CompletableFuture<ResponseEntity<Void>> append(
+            @PathVariable UUID id,
+            @RequestHeader(UPLOAD_OFFSET) long offset,
+            HttpServletRequest request,
+            @AuthenticationPrincipal UserDetails user) {
+        String emailHash = user.getUsername();
+        long chunkLength = request.getContentLengthLong();
+        if (chunkLength < 0) {
+            throw new IllegalArgumentException("Content-Length is required for upload chunks");
+        }
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), chunkLength);
+        try {
+            return uploadSessionService.appendAsync(emailHash, id, offset, request.getInputStream(), chunkLength)
+                    .thenApply(newOffset -> ResponseEntity.noContent()
+                            .header(UPLOAD_OFFSET, Long.toString(newOffset))
+                            .build());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @PostMapping("/{id}/complete")
+    public CompletableFuture<ResponseEntity<VaultFileDTO>> complete(
+            @PathVariable UUID id,
+            @AuthenticationPrincipal UserDetails user) {
+        try {
+            return uploadSessionService.completeAsync(user.getUsername(), id)
+                    .thenApply(ResponseEntity::ok);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> abort(
+            @PathVariable UUID id,
+            @AuthenticationPrincipal UserDetails user) {
+        uploadSessionService.abort(user.getUsername(), id);
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -2,17 +2,30 @@ package com.example.kms.controller;
 
 import com.example.kms.dto.RenameRequest;
 import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.service.RateLimitService;
 import com.example.kms.service.VaultService;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -21,10 +34,21 @@ import java.util.concurrent.CompletableFuture;
 @RequestMapping("/api/vault")
 public class VaultController {
 
+    // Clients may keep a copy but must revalidate it (If-None-Match) before each use. Setting it
+    // explicitly also replaces Spring Security's default no-store, which would forbid keeping one.
+    private static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
+
     private final VaultService vaultService;
+    private final RateLimitService rateLimitService;
+
+    private final DataSize maxStreamUploadSize;
 
-    public VaultController(VaultService vaultService) {
+    public VaultController(VaultService vaultService,
+                           RateLimitService rateLimitService,
+                           @Value("${spring.servlet.multipart.max-file-size:500MB}") DataSize maxStreamUploadSize) {
         this.vaultService = vaultService;
+        this.rateLimitService = rateLimitService;
+        this.maxStreamUploadSize = maxStreamUploadSize;
     }
 
     @PostMapping("/upload")
@@ -32,6 +56,7 @@ public class VaultController {
             @RequestParam("file") MultipartFile file,
             @AuthenticationPrincipal UserDetails user) {
         String emailHash = user.getUsername();
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), file.getSize());
         try {
             return vaultService.uploadFileAsync(emailHash, file)
                     .thenApply(ResponseEntity::ok);
@@ -40,25 +65,89 @@ public class VaultController {
         }
     }
 
+    /**
+     * Raw-body upload: the request body is the file itself (no multipart), so it is encrypted and
+     * forwarded to storage as it arrives instead of being spooled first. Content-Length is
+     * required; the file name travels URL-encoded in X-File-Name.
+     */
+    @PostMapping("/upload/stream")
+    public CompletableFuture<ResponseEntity<VaultFileDTO>> uploadStream(
+            @RequestHeader(value = "X-File-Name", required = false) String encodedFilename,
+            HttpServletRequest request,
+            @AuthenticationPrincipal UserDetails user) throws IOException {
+        String emailHash = user.getUsername();
+        long size = request.getContentLengthLong();
+        if (size < 0) {
+            throw new IllegalArgumentException("Content-Length is required for streaming uploads");
+        }
+        if (size > maxStreamUploadSize.toBytes()) {
+            throw new MaxUploadSizeExceededException(maxStreamUploadSize.toBytes());
+        }
+        String filename = encodedFilename == null || encodedFilename.isBlank()
+                ? "upload"
+                : URLDecoder.decode(encodedFilename, StandardCharsets.UTF_8);
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), size);
+        try {
+            return vaultService.uploadStreamAsync(emailHash, request.getInputStream(), filename, size)
+                    .thenApply(ResponseEntity::ok);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Conditional on If-None-Match. The ETag is read before the listing, so if the two race the
+     * client ends up with a newer body under an older tag and simply refetches next time.
+     */
     @GetMapping("/files")
-    public ResponseEntity<List<VaultFileDTO>> listFiles(@AuthenticationPrincipal UserDetails user) {
+    public ResponseEntity<List<VaultFileDTO>> listFiles(@AuthenticationPrincipal UserDetails user, WebRequest request) {
         String emailHash = user.getUsername();
-        return ResponseEntity.ok(vaultService.listFiles(emailHash));
+        String etag = vaultService.listETag(emailHash);
+        if (request.checkNotModified(etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(REVALIDATE).eTag(etag).build();
+        }
+        return ResponseEntity.ok().cacheControl(REVALIDATE).eTag(etag).body(vaultService.listFiles(emailHash));
     }
 
+    /**
+     * The decrypted file sits in a pooled off-heap buffer; it is written to the response through
+     * a channel and the buffer goes back to the arena once the body is sent.
+     *
+     * A matching If-None-Match is answered 304 from the file's metadata alone, before any
+     * storage or crypto work (and before the rate limiter charges for bytes).
+     */
     @GetMapping("/files/{id}/download")
-    public CompletableFuture<ResponseEntity<Resource>> download(
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> download(
             @PathVariable UUID id,
-            @AuthenticationPrincipal UserDetails user) {
+            @AuthenticationPrincipal UserDetails user,
+            WebRequest request) {
         String emailHash = user.getUsername();
+        String tenantKey = RateLimitService.userKey(emailHash);
+        rateLimitService.acquire(tenantKey, 0);
+        String etag = vaultService.fileETag(emailHash, id);
+        if (request.checkNotModified(etag)) {
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(REVALIDATE).eTag(etag).build());
+        }
         try {
             return vaultService.downloadFileAsync(emailHash, id)
-                    .thenApply(bytes -> {
-                        ByteArrayResource resource = new ByteArrayResource(bytes);
+                    .thenApply(plaintext -> {
+                        int length = plaintext.buffer().remaining();
+                        rateLimitService.charge(tenantKey, length);
+                        StreamingResponseBody body = out -> {
+                            try (plaintext) {
+                                WritableByteChannel channel = Channels.newChannel(out);
+                                ByteBuffer buffer = plaintext.buffer();
+                                while (buffer.hasRemaining()) channel.write(buffer);
+                            }
+                        };
                         return ResponseEntity.ok()
                                 .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                                .contentLength(length)
+                                .cacheControl(REVALIDATE)
+                                .eTag(etag)
                                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment")
-                                .body((Resource) resource);
+                                .body(body);
                     });
         } catch (Exception e) {
             return CompletableFuture.failedFuture(e);
@@ -81,6 +170,7 @@ public class VaultController {
             @RequestParam("file") MultipartFile file,
             @AuthenticationPrincipal UserDetails user) {
         String emailHash = user.getUsername();
+        rateLimitService.acquire(RateLimitService.userKey(emailHash), file.getSize());
         try {
             return vaultService.replaceFileAsync(emailHash, id, file)
                     .thenApply(ResponseEntity::ok);
@@ -0,0 +1,13 @@
+package com.example.kms.dto;
+
+import java.time.LocalDateTime;
+
+public record KeyRotationProgressDTO(
+    String tableName,
+    String lastId,
+    long processedRows,
+    long rewrappedRows,
+    long failedRows,
+    boolean completed,
+    LocalDateTime updatedAt
+) {}
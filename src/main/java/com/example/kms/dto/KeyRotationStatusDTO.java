@@ -0,0 +1,8 @@
+package com.example.kms.dto;
+
+import java.util.List;
+
+public record KeyRotationStatusDTO(
+    boolean running,
+    List<KeyRotationProgressDTO> tables
+) {}
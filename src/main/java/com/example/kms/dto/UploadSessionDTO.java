@@ -0,0 +1,13 @@
+package com.example.kms.dto;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public record UploadSessionDTO(
+    UUID id,
+    String filename,
+    long length,
+    long offset,
+    int segmentSize,
+    LocalDateTime expiresAt
+) {}
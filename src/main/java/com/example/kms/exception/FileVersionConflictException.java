@@ -0,0 +1,9 @@
+package com.example.kms.exception;
+
+/** A file was changed by another request while this one was writing a new version of it. */
+public class FileVersionConflictException extends RuntimeException {
+
+    public FileVersionConflictException(String message) {
+        super(message);
+    }
+}
@@ -59,6 +59,15 @@ public class GlobalExceptionHandler {
         return build(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage(), request);
     }
 
+    @ExceptionHandler(MemoryBudgetExceededException.class)
+    public ResponseEntity<ErrorResponse> handleMemoryBudgetExceeded(
+            MemoryBudgetExceededException ex, HttpServletRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Retry-After", Long.toString(ex.getRetryAfterSeconds()));
+        ErrorResponse body = errorResponse(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage(), request);
+        return new ResponseEntity<>(body, headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @ExceptionHandler(MaxUploadSizeExceededException.class)
     public ResponseEntity<ErrorResponse> handleMaxUploadSize(
             MaxUploadSizeExceededException ex, HttpServletRequest request) {
@@ -74,6 +83,36 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(body, headers, HttpStatus.TOO_MANY_REQUESTS);
     }
 
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<ErrorResponse> handleRateLimitExceeded(
+            RateLimitExceededException ex, HttpServletRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Retry-After", Long.toString(ex.getRetryAfterSeconds()));
+        ErrorResponse body = errorResponse(HttpStatus.TOO_MANY_REQUESTS, ex.getMessage(), request);
+        return new ResponseEntity<>(body, headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @ExceptionHandler(UploadOffsetConflictException.class)
+    public ResponseEntity<ErrorResponse> handleUploadOffsetConflict(
+            UploadOffsetConflictException ex, HttpServletRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Upload-Offset", Long.toString(ex.getCurrentOffset()));
+        ErrorResponse body = errorResponse(HttpStatus.CONFLICT, ex.getMessage(), request);
+        return new ResponseEntity<>(body, headers, HttpStatus.CONFLICT);
+    }
+
+    @ExceptionHandler(FileVersionConflictException.class)
+    public ResponseEntity<ErrorResponse> handleFileVersionConflict(
+            FileVersionConflictException ex, HttpServletRequest request) {
+        return build(HttpStatus.CONFLICT, ex.getMessage(), request);
+    }
+
+    @ExceptionHandler(QuotaExceededException.class)
+    public ResponseEntity<ErrorResponse> handleQuotaExceeded(
+            QuotaExceededException ex, HttpServletRequest request) {
+        return build(HttpStatus.INSUFFICIENT_STORAGE, ex.getMessage(), request);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<ErrorResponse> handleIllegalArgument(
             IllegalArgumentException ex, HttpServletRequest request) {
@@ -0,0 +1,15 @@
+package com.example.kms.exception;
+
+public class MemoryBudgetExceededException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public MemoryBudgetExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
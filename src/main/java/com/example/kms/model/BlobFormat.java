@@ -0,0 +1,15 @@
+package com.example.kms.model;
+
+/** Layout of an encrypted object in storage. */
+public enum BlobFormat {
+    /** iv[12] || ciphertext || tag[16], one AES-GCM message */
+    GCM_SINGLE,
+    /** SegmentedAead: header || (nonce || ciphertext || tag) per segment */
+    GCM_SEGMENTED,
+    /**
+     * Content-defined chunks, each stored as its own GCM_SINGLE object next to an encrypted
+     * ChunkManifest; storage_key names the manifest. Replacing the file uploads only the
+     * chunks that changed (see ChunkedBlobService).
+     */
+    GCM_CHUNKED
+}
@@ -47,6 +47,10 @@ public class Client {
     @Column(name = "created_at", nullable = false, updatable = false)
     private LocalDateTime createdAt = LocalDateTime.now();
 
+    // Sum of encryptedSize over the client's vault files, maintained by StorageQuotaService in SQL
+    @Column(name = "storage_used_bytes", insertable = false, updatable = false)
+    private long storageUsedBytes;
+
     // 🔹 OTP fields
     @Column(name = "otp_code")
     private String otpCode;
@@ -87,6 +91,8 @@ public class Client {
     public LocalDateTime getCreatedAt() { return createdAt; }
     public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
 
+    public long getStorageUsedBytes() { return storageUsedBytes; }
+
     public String getOtpCode() { return otpCode; }
     public void setOtpCode(String otpCode) { this.otpCode = otpCode; }
 
@@ -0,0 +1,8 @@
+package com.example.kms.model;
+
+/** Codec applied to a file's plaintext before it was encrypted. */
+public enum Compression {
+    NONE,
+    /** Raw DEFLATE (RFC 1951), no zlib header; see PayloadCodec */
+    DEFLATE
+}
@@ -23,9 +23,14 @@ public class Document {
     @Column(nullable = false)
     private String contentType;
 
+    // Object-store key of the encrypted body. Bodies no longer live in this table.
+    @Column(name = "storage_key")
+    private String storageKey;
+
+    // Legacy: encrypted body of rows written before bodies moved to the object store
     @Lob
     @Column(columnDefinition = "BLOB")
-    private byte[] data; // Encrypted data
+    private byte[] data;
 
     @Column(name = "original_size")
     private long originalSize;
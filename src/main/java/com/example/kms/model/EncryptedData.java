@@ -13,9 +13,9 @@ public class EncryptedData {
     @JoinColumn(name = "client_id", nullable = false)
     private Client client;
 
-    @Lob
-    @Column(nullable = false, columnDefinition = "CLOB")
-    private String encryptedPayload; // Base64 encoded (text, image, or audio)
+    // Raw ciphertext bytes (text, image, or audio) stored as bytea, not Base64 text
+    @Column(nullable = false, columnDefinition = "bytea")
+    private byte[] encryptedPayload;
 
     @Column(nullable = false)
     private String iv;
@@ -23,13 +23,12 @@ public class EncryptedData {
     @Column(nullable = false)
     private String salt;
 
-    @Lob
-    @Column(nullable = false, columnDefinition = "CLOB")
-    private String dekWrapped;
+    // iv||ciphertext of the wrapped DEK
+    @Column(nullable = false, columnDefinition = "bytea")
+    private byte[] dekWrapped;
 
-    @Lob
-    @Column(columnDefinition = "CLOB")
-    private String dekWrappedForRecovery;
+    @Column(columnDefinition = "bytea")
+    private byte[] dekWrappedForRecovery;
 
     @Enumerated(EnumType.STRING)
     @Column(nullable = false)
@@ -52,11 +51,11 @@ public class EncryptedData {
         this.client = client;
     }
 
-    public String getEncryptedPayload() {
+    public byte[] getEncryptedPayload() {
         return encryptedPayload;
     }
 
-    public void setEncryptedPayload(String encryptedPayload) {
+    public void setEncryptedPayload(byte[] encryptedPayload) {
         this.encryptedPayload = encryptedPayload;
     }
 
@@ -76,19 +75,19 @@ public class EncryptedData {
         this.salt = salt;
     }
 
-    public String getDekWrapped() {
+    public byte[] getDekWrapped() {
         return dekWrapped;
     }
 
-    public void setDekWrapped(String dekWrapped) {
+    public void setDekWrapped(byte[] dekWrapped) {
         this.dekWrapped = dekWrapped;
     }
 
-    public String getDekWrappedForRecovery() {
+    public byte[] getDekWrappedForRecovery() {
         return dekWrappedForRecovery;
     }
 
-    public void setDekWrappedForRecovery(String dekWrappedForRecovery) {
+    public void setDekWrappedForRecovery(byte[] dekWrappedForRecovery) {
         this.dekWrappedForRecovery = dekWrappedForRecovery;
     }
 
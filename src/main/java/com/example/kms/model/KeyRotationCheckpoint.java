@@ -0,0 +1,50 @@
+package com.example.kms.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Resumable progress marker for the master-key rewrap job, one row per scanned table.
+ * The keyset cursor (lastId) is only valid for the key generation it was recorded under.
+ */
+@Entity
+@Table(name = "key_rotation_checkpoints")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class KeyRotationCheckpoint {
+
+    @Id
+    @Column(name = "table_name")
+    private String tableName;
+
+    @Column(name = "key_generation", nullable = false)
+    private String keyGeneration;
+
+    @Column(name = "last_id", nullable = false)
+    private String lastId;
+
+    @Column(name = "processed_rows", nullable = false)
+    private long processedRows;
+
+    @Column(name = "rewrapped_rows", nullable = false)
+    private long rewrappedRows;
+
+    @Column(name = "failed_rows", nullable = false)
+    private long failedRows;
+
+    @Column(nullable = false)
+    private boolean completed;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    @PreUpdate
+    protected void onSave() {
+        this.updatedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.kms.model;
+
+import com.example.kms.util.EncryptDecryptConverter;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A resumable vault upload in progress. Each accepted chunk is stored as an encrypted part
+ * object listed in partKeys; receivedBytes is the plaintext offset the next chunk must start at. The DEK lives only server-wrapped until the upload is finalized into a VaultFile.
+ */
+@Entity
+@Table(name = "upload_sessions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class UploadSession {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "client_id", nullable = false)
+    private Client owner;
+
+    @Convert(converter = EncryptDecryptConverter.class)
+    @Column(name = "filename_enc", nullable = false)
+    private String filename;
+
+    @Column(name = "total_size", nullable = false)
+    private long totalSize;
+
+    @Column(name = "segment_size", nullable = false)
+    private int segmentSize;
+
+    @Column(name = "received_bytes", nullable = false)
+    private long receivedBytes;
+
+    // Storage keys of the accepted parts, in payload order
+    @Builder.Default
+    @Column(name = "part_keys", nullable = false, columnDefinition = "text[]")
+    private String[] partKeys = new String[0];
+
+    // Sniffed from the first chunk; null until it arrives
+    @Column(name = "content_type")
+    private String contentType;
+
+    @Column(name = "dek_wrapped_server", nullable = false)
+    private String dekWrappedServer;
+
+    @Column(name = "server_kek_version", nullable = false)
+    private int serverKekVersion;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @PrePersist
+    protected void onCreate() {
+        this.createdAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.kms.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * A deduplicated vault blob: refCount vault_files rows point at storageKey. contentHmac is the
+ * client-keyed tag from CryptoService.contentHmac that later uploads of the same plaintext match.
+ * Once refCount reaches zero the blob is being deleted and can no longer be shared.
+ */
+@Entity
+@Table(name = "vault_blobs")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class VaultBlob {
+
+    @Id
+    @Column(name = "storage_key")
+    private String storageKey;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "client_id", nullable = false)
+    private Client owner;
+
+    @Column(name = "content_hmac", nullable = false)
+    private String contentHmac;
+
+    @Column(name = "ref_count", nullable = false)
+    private int refCount;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void onCreate() {
+        this.createdAt = LocalDateTime.now();
+    }
+}
@@ -43,12 +43,32 @@ public class VaultFile {
     @Column(name = "encrypted_size", nullable = false)
     private long encryptedSize;
 
+    @Builder.Default
+    @Enumerated(EnumType.STRING)
+    @Column(name = "blob_format", nullable = false)
+    private BlobFormat blobFormat = BlobFormat.GCM_SINGLE;
+
+    // Codec applied before encryption; originalSize is always the uncompressed size
+    @Builder.Default
+    @Enumerated(EnumType.STRING)
+    @Column(name = "compression", nullable = false)
+    private Compression compression = Compression.NONE;
+
+    // Hex SHA-256 of the stored blob; null for uploads that predate V8
+    @Column(name = "blob_sha256")
+    private String blobSha256;
+
     @Column(name = "dek_wrapped_client", nullable = false)
     private String dekWrappedClient;
 
     @Column(name = "dek_wrapped_server")
     private String dekWrappedServer;
 
+    // Server KEK version dekWrappedServer is wrapped under (see CryptoService.deriveServerKek)
+    @Builder.Default
+    @Column(name = "server_kek_version", nullable = false)
+    private int serverKekVersion = 1;
+
     @Column(nullable = false)
     private String iv;
 
@@ -1,7 +1,12 @@
 package com.example.kms.repository;
 
 import com.example.kms.model.Client;
+import jakarta.transaction.Transactional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
 import java.util.Optional;
 
 public interface ClientRepository extends JpaRepository<Client, Long> {
@@ -9,5 +14,22 @@ public interface ClientRepository extends JpaRepository<Client, Long> {
     Optional<Client> findByEmail(String email);
     Optional<Client> findByPhone(String phone);
     Optional<Client> findByPhoneHash(String phoneHash);
+
+    // Storage usage counter (clients.storage_used_bytes); updated in SQL only, never through the entity
+
+    @Query(value = "SELECT storage_used_bytes FROM clients WHERE email_hash = :emailHash", nativeQuery = true)
+    Optional<Long> findStorageUsedBytes(@Param("emailHash") String emailHash);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE clients SET storage_used_bytes = storage_used_bytes + :bytes " +
+            "WHERE email_hash = :emailHash AND storage_used_bytes + :bytes <= :quota", nativeQuery = true)
+    int tryAddStorageUsed(@Param("emailHash") String emailHash, @Param("bytes") long bytes, @Param("quota") long quota);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE clients SET storage_used_bytes = GREATEST(0, storage_used_bytes - :bytes) " +
+            "WHERE email_hash = :emailHash", nativeQuery = true)
+    int subtractStorageUsed(@Param("emailHash") String emailHash, @Param("bytes") long bytes);
 }
 
@@ -0,0 +1,10 @@
+package com.example.kms.repository;
+
+import com.example.kms.model.DataType;
+
+/**
+ * See {@link EncryptedDataRepository#findKeysById(Long)}: everything needed to unwrap and open a
+ * record except the payload itself, which is read through {@link EncryptedDataPayloadRepository}.
+ */
+public record EncryptedDataKeys(Long id, String iv, String salt, byte[] dekWrapped, DataType dataType) {
+}
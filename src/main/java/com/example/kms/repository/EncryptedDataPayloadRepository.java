@@ -0,0 +1,22 @@
+package com.example.kms.repository;
+
+import java.io.InputStream;
+
+/**
+ * Stream-capable access to the bytea payload of an EncryptedData row, so large
+ * payloads can be consumed without materialising the whole entity.
+ */
+public interface EncryptedDataPayloadRepository {
+
+    /**
+     * Opens the raw ciphertext of the given record as a stream and hands it to the reader,
+     * together with its length in bytes. The stream is only valid for the duration of the
+     * callback; whatever the reader throws is rethrown unchanged.
+     */
+    <T> T readPayload(Long recordId, PayloadReader<T> reader) throws Exception;
+
+    @FunctionalInterface
+    interface PayloadReader<T> {
+        T read(InputStream payload, long length) throws Exception;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.kms.repository;
+
+import com.example.kms.exception.ResourceNotFoundException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.io.InputStream;
+
+public class EncryptedDataPayloadRepositoryImpl implements EncryptedDataPayloadRepository {
+
+    private static final String PAYLOAD_SQL =
+            "SELECT octet_length(encrypted_payload), encrypted_payload FROM encrypted_data WHERE id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public EncryptedDataPayloadRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public <T> T readPayload(Long recordId, PayloadReader<T> reader) throws Exception {
+        ResultSetExtractor<T> extractor = rs -> {
+            if (!rs.next()) {
+                throw new ResourceNotFoundException("Record not found: " + recordId);
+            }
+            long length = rs.getLong(1);
+            InputStream payload = rs.getBinaryStream(2);
+            try (payload) {
+                return reader.read(payload, length);
+            } catch (Exception e) {
+                throw new ReaderFailure(e);
+            }
+        };
+        try {
+            return jdbcTemplate.query(PAYLOAD_SQL, extractor, recordId);
+        } catch (ReaderFailure e) {
+            throw e.cause;
+        }
+    }
+
+    // Carries the reader's own exception (e.g. a bad tag) out of the JdbcTemplate callback
+    private static final class ReaderFailure extends RuntimeException {
+        private final Exception cause;
+
+        ReaderFailure(Exception cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+}
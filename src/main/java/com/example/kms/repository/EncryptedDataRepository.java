@@ -4,12 +4,20 @@ import com.example.kms.model.EncryptedData;
 import com.example.kms.model.Client;
 import com.example.kms.model.DataType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.List;
+import java.util.Optional;
 
-public interface EncryptedDataRepository extends JpaRepository<EncryptedData, Long> {
+public interface EncryptedDataRepository extends JpaRepository<EncryptedData, Long>, EncryptedDataPayloadRepository {
     List<EncryptedData> findByClient(Client client);
 
     // NEW: fetch records by client and storage type
     List<EncryptedData> findByClientAndDataType(Client client, DataType dataType);
+
+    /** The record without its payload column, so decrypting never loads the payload into an entity. */
+    @Query("SELECT new com.example.kms.repository.EncryptedDataKeys(e.id, e.iv, e.salt, e.dekWrapped, e.dataType) " +
+            "FROM EncryptedData e WHERE e.id = :id")
+    Optional<EncryptedDataKeys> findKeysById(@Param("id") Long id);
 }
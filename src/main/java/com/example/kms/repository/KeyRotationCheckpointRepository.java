@@ -0,0 +1,7 @@
+package com.example.kms.repository;
+
+import com.example.kms.model.KeyRotationCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface KeyRotationCheckpointRepository extends JpaRepository<KeyRotationCheckpoint, String> {
+}
@@ -0,0 +1,43 @@
+package com.example.kms.repository;
+
+import com.example.kms.model.UploadSession;
+import jakarta.transaction.Transactional;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface UploadSessionRepository extends JpaRepository<UploadSession, UUID> {
+
+    Optional<UploadSession> findByIdAndOwner_EmailHash(UUID id, String emailHash);
+
+    @Query("SELECT s FROM UploadSession s JOIN FETCH s.owner WHERE s.expiresAt < :cutoff ORDER BY s.expiresAt")
+    List<UploadSession> findExpiredWithOwner(@Param("cutoff") LocalDateTime cutoff, Pageable page);
+
+    /** Deletes the session only if it is still at the expected offset; returns 1 if it was deleted. */
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM upload_sessions WHERE id = :id AND received_bytes = :receivedBytes", nativeQuery = true)
+    int deleteByIdAndReceivedBytes(@Param("id") UUID id, @Param("receivedBytes") long receivedBytes);
+
+    /**
+     * Records a stored part, but only if nobody else advanced the session first (compare-and-set
+     * on received_bytes). Returns 1 when this caller's part was appended.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE upload_sessions SET received_bytes = :newOffset, part_keys = array_append(part_keys, :partKey), " +
+            "content_type = COALESCE(content_type, :contentType) " +
+            "WHERE id = :id AND received_bytes = :expectedOffset", nativeQuery = true)
+    int advance(@Param("id") UUID id,
+                @Param("expectedOffset") long expectedOffset,
+                @Param("newOffset") long newOffset,
+                @Param("partKey") String partKey,
+                @Param("contentType") String contentType);
+}
@@ -0,0 +1,38 @@
+package com.example.kms.repository;
+
+import com.example.kms.model.VaultBlob;
+import jakarta.transaction.Transactional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Optional;
+
+public interface VaultBlobRepository extends JpaRepository<VaultBlob, String> {
+
+    @Query(value = "SELECT b.storage_key FROM vault_blobs b JOIN clients c ON c.id = b.client_id " +
+            "WHERE c.email_hash = :emailHash AND b.content_hmac = :contentHmac AND b.ref_count > 0 LIMIT 1",
+            nativeQuery = true)
+    Optional<String> findLiveStorageKey(@Param("emailHash") String emailHash, @Param("contentHmac") String contentHmac);
+
+    /** Adds a reference unless the blob is already unreferenced (being deleted); returns 1 if added. */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE vault_blobs SET ref_count = ref_count + 1 WHERE storage_key = :storageKey AND ref_count > 0",
+            nativeQuery = true)
+    int retain(@Param("storageKey") String storageKey);
+
+    /** Drops a reference; returns 0 if there was none to drop. */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE vault_blobs SET ref_count = ref_count - 1 WHERE storage_key = :storageKey AND ref_count > 0",
+            nativeQuery = true)
+    int release(@Param("storageKey") String storageKey);
+
+    /** Removes the row once unreferenced; exactly one caller gets 1 and so deletes the blob. */
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM vault_blobs WHERE storage_key = :storageKey AND ref_count = 0", nativeQuery = true)
+    int deleteIfUnreferenced(@Param("storageKey") String storageKey);
+}
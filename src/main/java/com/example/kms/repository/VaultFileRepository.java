@@ -4,6 +4,8 @@ import com.example.kms.model.VaultFile;
 import jakarta.transaction.Transactional;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -16,6 +18,39 @@ public interface VaultFileRepository extends JpaRepository<VaultFile, UUID> {
 
     Optional<VaultFile> findByIdAndOwner_EmailHash(UUID id, String emailHash);
 
+    /**
+     * Count and latest updated_at of a client's files: changes whenever a file is added,
+     * removed, renamed or replaced, so it versions the listing without loading it.
+     */
+    @Query("SELECT new com.example.kms.repository.VaultListingVersion(COUNT(v), MAX(v.updatedAt)) " +
+            "FROM VaultFile v WHERE v.owner.emailHash = :emailHash")
+    VaultListingVersion findListingVersion(@Param("emailHash") String emailHash);
+
+    Optional<VaultFile> findFirstByStorageKey(String storageKey);
+
+    /**
+     * Points a file at a new version of its blob, only if it still points at expectedStorageKey:
+     * of two concurrent replaces the second gets 0 and must discard what it stored. Every
+     * blob-derived column is set in the same statement, so no reader pairs a new key with an
+     * old DEK.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE VaultFile v SET v.storageKey = :#{#file.storageKey}, v.contentType = :#{#file.contentType}, " +
+            "v.category = :#{#file.category}, v.originalSize = :#{#file.originalSize}, " +
+            "v.encryptedSize = :#{#file.encryptedSize}, v.blobSha256 = :#{#file.blobSha256}, " +
+            "v.blobFormat = :#{#file.blobFormat}, v.compression = :#{#file.compression}, v.dekWrappedClient = :#{#file.dekWrappedClient}, " +
+            "v.dekWrappedServer = :#{#file.dekWrappedServer}, v.serverKekVersion = :#{#file.serverKekVersion}, " +
+            "v.iv = :#{#file.iv}, v.salt = :#{#file.salt}, v.updatedAt = :#{#file.updatedAt} " +
+            "WHERE v.id = :#{#file.id} AND v.storageKey = :expectedStorageKey")
+    int swapBlob(@Param("file") VaultFile file, @Param("expectedStorageKey") String expectedStorageKey);
+
+    /** Renames without writing any other column, so it can't undo a concurrent swapBlob. */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE vault_files SET filename_enc = :filenameEnc, updated_at = now() WHERE id = :id", nativeQuery = true)
+    int rename(@Param("id") UUID id, @Param("filenameEnc") String filenameEnc);
+
     Optional<VaultFile> findByGuestSessionToken(String guestSessionToken);
 
     List<VaultFile> findByExpiresAtBefore(LocalDateTime dateTime);
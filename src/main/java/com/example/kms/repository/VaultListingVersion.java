@@ -0,0 +1,7 @@
+package com.example.kms.repository;
+
+import java.time.LocalDateTime;
+
+/** See {@link VaultFileRepository#findListingVersion(String)}; lastUpdated is null when there are no files. */
+public record VaultListingVersion(long count, LocalDateTime lastUpdated) {
+}
@@ -0,0 +1,43 @@
+package com.example.kms.service;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Node-local disk cache of stored ciphertext, consulted by SupabaseStorageService before it
+ * goes over the network. Only encrypted blobs are cached, so the cache adds no exposure beyond
+ * what storage already holds.
+ */
+public interface BlobCacheService {
+
+    /** The cached object, memory-mapped read-only; empty on a miss or when the key isn't cached. */
+    Optional<ByteBuffer> get(String bucket, String objectKey);
+
+    /** Caches an object just written to storage. Never fails the caller. */
+    void put(String bucket, String objectKey, ByteBuffer object);
+
+    /**
+     * Offers an object just read from storage after a miss. Unlike {@link #put} it may be
+     * declined, e.g. for objects not read often enough to be worth a slot.
+     */
+    void offer(String bucket, String objectKey, ByteBuffer object);
+
+    /**
+     * Wraps an upload body so the bytes sent to storage are spooled to the cache as they are
+     * read. The spooled copy becomes visible only on {@link Tee#commit()}.
+     */
+    Tee tee(String bucket, String objectKey, InputStream body);
+
+    void evict(String bucket, String objectKey);
+
+    interface Tee {
+        InputStream stream();
+
+        /** Publishes the spooled copy; call once storage has accepted the whole upload. */
+        void commit();
+
+        /** Drops the spooled copy; a no-op after commit. */
+        void abort();
+    }
+}
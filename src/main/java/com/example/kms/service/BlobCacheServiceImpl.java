@@ -0,0 +1,377 @@
+package com.example.kms.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded LRU of ciphertext files under app.blob-cache.dir, one file per object, named by
+ * SHA-256 of bucket/key so nothing about the key is visible on disk.
+ *
+ * Safe without cross-node invalidation because cached prefixes (vault/, documents/) are
+ * write-once: every upload, replace or conversion writes a fresh UUID key and never rewrites an
+ * old one. An object deleted on another node just leaves an unreachable entry here that ages
+ * out; deletes on this node evict immediately.
+ *
+ * Uploads are written through. Objects first seen on a read are admitted only when they miss a
+ * second time while still remembered by a small doorkeeper (the admission idea from TinyLFU),
+ * so one-off reads such as a conversion over a cold file don't flush the hot set.
+ *
+ * Files are written to a temp name and atomically renamed, so a reader only ever maps a complete
+ * object. A cache failure never fails the caller; it just means the next read goes to storage.
+ */
+@Service
+public class BlobCacheServiceImpl implements BlobCacheService {
+
+    private static final Logger LOG = Logger.getLogger(BlobCacheServiceImpl.class.getName());
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int DOORKEEPER_ENTRIES = 4096;
+
+    @Value("${app.blob-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.blob-cache.dir:${java.io.tmpdir}/kms-blob-cache}")
+    private Path cacheDir;
+
+    @Value("${app.blob-cache.max-size:2GB}")
+    private DataSize maxSize;
+
+    @Value("${app.blob-cache.prefixes:vault/,documents/}")
+    private List<String> cachedPrefixes;
+
+    // Guarded by this. Access-ordered, so iteration starts at the least recently used file
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // Guarded by this. Names that missed once recently; a second miss admits them
+    private final LinkedHashMap<String, Boolean> doorkeeper = new LinkedHashMap<>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DOORKEEPER_ENTRIES;
+        }
+    };
+    private long cachedBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public BlobCacheServiceImpl(MeterRegistry meterRegistry) {
+        this.hits = Counter.builder("kms.blob.cache.requests")
+                .description("Ciphertext reads by whether the local cache served them")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("kms.blob.cache.requests")
+                .description("Ciphertext reads by whether the local cache served them")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("kms.blob.cache.evictions")
+                .description("Cached ciphertext files removed to stay under max-size")
+                .register(meterRegistry);
+        Gauge.builder("kms.blob.cache.bytes", this, BlobCacheServiceImpl::currentBytes)
+                .description("Ciphertext bytes held in the local blob cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /** Re-indexes files kept from a previous run (oldest first, as LRU order) and drops partial writes. */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) return;
+        Files.createDirectories(cacheDir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : existing) {
+                if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(BlobCacheServiceImpl::lastModified));
+        for (Path file : files) {
+            register(file.getFileName().toString(), Files.size(file));
+        }
+    }
+
+    @Override
+    public Optional<ByteBuffer> get(String bucket, String objectKey) {
+        if (!cacheable(objectKey)) return Optional.empty();
+        String name = fileName(bucket, objectKey);
+        synchronized (this) {
+            if (entries.get(name) == null) { // get() also marks the entry most recently used
+                misses.increment();
+                return Optional.empty();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(cacheDir.resolve(name), StandardOpenOption.READ)) {
+            // The mapping outlives the channel and survives the file being evicted meanwhile
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            hits.increment();
+            return Optional.of(mapped);
+        } catch (NoSuchFileException e) {
+            forget(name);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unreadable blob cache file " + name + "; dropping it", e);
+            forget(name);
+            deleteQuietly(cacheDir.resolve(name));
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    @Override
+    public void put(String bucket, String objectKey, ByteBuffer object) {
+        if (!cacheable(objectKey)) return;
+        write(fileName(bucket, objectKey), object);
+    }
+
+    @Override
+    public void offer(String bucket, String objectKey, ByteBuffer object) {
+        if (!cacheable(objectKey)) return;
+        String name = fileName(bucket, objectKey);
+        synchronized (this) {
+            if (doorkeeper.remove(name) == null) {
+                doorkeeper.put(name, Boolean.TRUE);
+                return;
+            }
+        }
+        write(name, object);
+    }
+
+    @Override
+    public Tee tee(String bucket, String objectKey, InputStream body) {
+        if (!cacheable(objectKey)) return new PassThrough(body);
+        String name = fileName(bucket, objectKey);
+        Path tmp = tempFile(name);
+        try {
+            return new Spool(name, tmp, body, FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot spool upload to the blob cache", e);
+            return new PassThrough(body);
+        }
+    }
+
+    @Override
+    public void evict(String bucket, String objectKey) {
+        if (!cacheable(objectKey)) return;
+        String name = fileName(bucket, objectKey);
+        if (forget(name)) deleteQuietly(cacheDir.resolve(name));
+    }
+
+    private void write(String name, ByteBuffer object) {
+        if (object.remaining() > maxEntryBytes()) return;
+        Path tmp = tempFile(name);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer source = object.duplicate();
+            while (source.hasRemaining()) channel.write(source);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write blob cache file " + name, e);
+            deleteQuietly(tmp);
+            return;
+        }
+        publish(name, tmp, object.remaining());
+    }
+
+    private void publish(String name, Path tmp, long size) {
+        try {
+            Files.move(tmp, cacheDir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            register(name, size);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to publish blob cache file " + name, e);
+            deleteQuietly(tmp);
+        }
+    }
+
+    private void register(String name, long size) {
+        List<String> victims = new ArrayList<>();
+        synchronized (this) {
+            Long previous = entries.put(name, size);
+            cachedBytes += size - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> lru = entries.entrySet().iterator();
+            while (cachedBytes > maxSize.toBytes() && lru.hasNext()) {
+                Map.Entry<String, Long> eldest = lru.next();
+                if (eldest.getKey().equals(name)) continue;
+                cachedBytes -= eldest.getValue();
+                victims.add(eldest.getKey());
+                lru.remove();
+            }
+        }
+        // File deletes happen outside the lock; readers that already mapped a victim keep their mapping
+        for (String victim : victims) {
+            deleteQuietly(cacheDir.resolve(victim));
+            evictions.increment();
+        }
+    }
+
+    private synchronized boolean forget(String name) {
+        doorkeeper.remove(name);
+        Long size = entries.remove(name);
+        if (size == null) return false;
+        cachedBytes -= size;
+        return true;
+    }
+
+    private synchronized long currentBytes() {
+        return cachedBytes;
+    }
+
+    // One object may take at most a quarter of the cache, so a single huge file can't empty it
+    private long maxEntryBytes() {
+        return maxSize.toBytes() / 4;
+    }
+
+    private boolean cacheable(String objectKey) {
+        if (!enabled) return false;
+        for (String prefix : cachedPrefixes) {
+            if (objectKey.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private Path tempFile(String name) {
+        return cacheDir.resolve(name + "." + UUID.randomUUID() + TMP_SUFFIX);
+    }
+
+    private static String fileName(String bucket, String objectKey) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest((bucket + '/' + objectKey).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete blob cache file " + file, e);
+        }
+    }
+
+    private record PassThrough(InputStream stream) implements Tee {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    /** Copies every byte read from the upload body into a temp file; published on commit. */
+    private final class Spool extends FilterInputStream implements Tee {
+        private final String name;
+        private final Path tmp;
+        private FileChannel spool; // null once spooling was given up or finished
+        private long spooled;
+
+        Spool(String name, Path tmp, InputStream body, FileChannel spool) {
+            super(body);
+            this.name = name;
+            this.tmp = tmp;
+            this.spool = spool;
+        }
+
+        @Override
+        public InputStream stream() {
+            return this;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) spool(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) spool(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abort(); // skipped bytes never reach the spool, so the copy would be incomplete
+            return in.skip(n);
+        }
+
+        private void spool(byte[] b, int off, int len) {
+            if (spool == null) return;
+            try {
+                ByteBuffer chunk = ByteBuffer.wrap(b, off, len);
+                while (chunk.hasRemaining()) spool.write(chunk);
+                spooled += len;
+                if (spooled > maxEntryBytes()) abort();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Blob cache spool failed; upload continues uncached", e);
+                abort();
+            }
+        }
+
+        @Override
+        public synchronized void commit() {
+            if (spool == null) return;
+            try {
+                spool.close();
+                spool = null;
+                publish(name, tmp, spooled);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        @Override
+        public synchronized void abort() {
+            if (spool == null) return;
+            try {
+                spool.close();
+            } catch (IOException ignored) {
+                // the temp file is deleted either way
+            }
+            spool = null;
+            deleteQuietly(tmp);
+        }
+    }
+}
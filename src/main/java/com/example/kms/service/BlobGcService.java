@@ -0,0 +1,27 @@
+package com.example.kms.service;
+
+import java.util.Collection;
+
+/**
+ * Deferred deletion of storage objects (blob_tombstones, V12). Request paths only record what
+ * to delete; the node holding the "blob-gc" lease deletes it in bulk batches, retrying
+ * failures with backoff, and a periodic reconciliation pass tombstones vault and upload
+ * objects that nothing refers to any more.
+ */
+public interface BlobGcService {
+
+    /**
+     * Records storageKeys for deletion, in the caller's transaction if there is one. A key
+     * ending in '/' names a folder whose objects are all deleted. Keys already recorded are ignored.
+     */
+    void tombstone(Collection<String> storageKeys);
+
+    /** Deletes the objects of due tombstones in batches and drops the tombstones that succeeded. */
+    void collect();
+
+    /**
+     * Tombstones objects older than the grace period that nothing refers to: vault objects no
+     * file or shared blob uses, and upload parts no open upload session lists.
+     */
+    void reconcile();
+}
@@ -0,0 +1,320 @@
+package com.example.kms.service;
+
+import com.example.kms.exception.StorageUnavailableException;
+import com.example.kms.model.BlobFormat;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deleting a vault file used to delete its blob inside the request, so a slow storage backend
+ * slowed every delete and a failed call left the blob orphaned. Now the request only inserts
+ * a tombstone (in the same transaction as the row delete) and returns.
+ *
+ * collect() takes due tombstones oldest first, batchSize at a time: plain keys go in one bulk
+ * storage delete, folder keys (chunked lineages) are listed and emptied page by page. Finished
+ * tombstones are deleted; failed ones are pushed back with exponential backoff, and the run
+ * stops at the first failure since storage is most likely down.
+ *
+ * reconcile() catches what never got a tombstone (a crash between storing a blob and saving
+ * its row, clients deleted by cascade). For each client folder under vault/, and each upload
+ * session folder under uploads/, it reads what the folder should hold, then lists it; anything
+ * older than the grace period and not referenced is tombstoned. The references are read before the listing, so an object missing from them
+ * was either orphaned already or stored after the read, and the grace period covers the latter.
+ * Chunked files are referenced chunk by chunk through their manifests, so chunks a replace
+ * failed to tombstone are found too.
+ *
+ * Each job only runs on the node holding its lease, renewed per batch.
+ */
+@Service
+public class BlobGcServiceImpl implements BlobGcService {
+
+    private static final Logger LOG = Logger.getLogger(BlobGcServiceImpl.class.getName());
+
+    private static final String COLLECT_LEASE = "blob-gc";
+    private static final String RECONCILE_LEASE = "blob-reconcile";
+    private static final Duration LEASE_TTL = Duration.ofMinutes(2);
+    private static final String VAULT_ROOT = "vault/";
+    private static final String UPLOADS_ROOT = "uploads/";
+
+    private static final String INSERT_SQL =
+            "INSERT INTO blob_tombstones (storage_key) SELECT unnest(?::text[]) ON CONFLICT DO NOTHING";
+    private static final String DUE_BATCH_SQL =
+            "SELECT storage_key FROM blob_tombstones WHERE due_at <= now() ORDER BY due_at, storage_key LIMIT ?";
+    private static final String DONE_SQL = "DELETE FROM blob_tombstones WHERE storage_key = ANY(?)";
+    // Exponential backoff: base * 2^attempts seconds, capped
+    private static final String RETRY_SQL =
+            "UPDATE blob_tombstones SET attempts = attempts + 1, " +
+            "due_at = now() + make_interval(secs => LEAST(? * power(2, attempts), ?)) WHERE storage_key = ANY(?)";
+    private static final String CLIENT_FILES_SQL =
+            "SELECT f.storage_key, f.blob_format, f.dek_wrapped_server, f.server_kek_version FROM vault_files f " +
+            "JOIN clients c ON c.id = f.client_id WHERE c.email_hash = ?";
+    // A shared blob is referenced here before the file that will use it is saved
+    private static final String CLIENT_SHARED_BLOBS_SQL =
+            "SELECT b.storage_key FROM vault_blobs b JOIN clients c ON c.id = b.client_id " +
+            "WHERE c.email_hash = ? AND b.ref_count > 0";
+    // Compared as text: a folder name that isn't a session id simply has no parts
+    private static final String SESSION_PARTS_SQL =
+            "SELECT unnest(part_keys) FROM upload_sessions WHERE id::text = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final SchedulerLeaseService leaseService;
+    private final SupabaseStorageService supabaseStorageService;
+    private final ChunkedBlobService chunkedBlobService;
+    private final CryptoService cryptoService;
+    private final MeterRegistry meterRegistry;
+    private final Counter skippedRuns;
+    private final Counter orphans;
+
+    @Value("${supabase.storage.bucket}")
+    private String bucket;
+
+    @Value("${app.blob-gc.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.blob-gc.batch-pause-ms:50}")
+    private long batchPauseMillis;
+
+    @Value("${app.blob-gc.retry-base-seconds:30}")
+    private long retryBaseSeconds;
+
+    @Value("${app.blob-gc.retry-max-seconds:3600}")
+    private long retryMaxSeconds;
+
+    @Value("${app.blob-gc.orphan-grace-hours:24}")
+    private long orphanGraceHours;
+
+    public BlobGcServiceImpl(JdbcTemplate jdbcTemplate,
+                             SchedulerLeaseService leaseService,
+                             SupabaseStorageService supabaseStorageService,
+                             ChunkedBlobService chunkedBlobService,
+                             CryptoService cryptoService,
+                             MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.leaseService = leaseService;
+        this.supabaseStorageService = supabaseStorageService;
+        this.chunkedBlobService = chunkedBlobService;
+        this.cryptoService = cryptoService;
+        this.meterRegistry = meterRegistry;
+        this.skippedRuns = Counter.builder("kms.blobgc.skipped")
+                .description("Blob GC runs skipped because another node holds the lease")
+                .register(meterRegistry);
+        this.orphans = Counter.builder("kms.blobgc.orphans")
+                .description("Unreferenced vault and upload objects found and tombstoned by reconciliation")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void tombstone(Collection<String> storageKeys) {
+        if (storageKeys.isEmpty()) return;
+        update(INSERT_SQL, storageKeys);
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${app.blob-gc.interval-ms:10000}")
+    public void collect() {
+        if (!leaseService.tryAcquire(COLLECT_LEASE, LEASE_TTL)) {
+            skippedRuns.increment();
+            return;
+        }
+        try {
+            while (true) {
+                List<String> batch = jdbcTemplate.queryForList(DUE_BATCH_SQL, String.class, batchSize);
+                if (batch.isEmpty()) return;
+
+                List<String> keys = new ArrayList<>(batch.size());
+                List<String> folders = new ArrayList<>();
+                for (String key : batch) (key.endsWith("/") ? folders : keys).add(key);
+                if (!deleteObjects(keys)) return;
+                for (String folder : folders) {
+                    if (!deleteFolder(folder)) return;
+                }
+
+                if (batch.size() < batchSize) return;
+                if (!leaseService.tryAcquire(COLLECT_LEASE, LEASE_TTL)) return; // lost the lease mid-run
+                Thread.sleep(batchPauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Blob GC failed; will retry on the next run", e);
+        }
+    }
+
+    private boolean deleteObjects(List<String> keys) {
+        if (keys.isEmpty()) return true;
+        try {
+            supabaseStorageService.deleteObjects(bucket, keys);
+        } catch (StorageUnavailableException e) {
+            retryLater(keys, e);
+            return false;
+        }
+        update(DONE_SQL, keys);
+        deletedObjects("deleted").increment(keys.size());
+        return true;
+    }
+
+    // Each page is deleted before the next is listed, so the listing always starts at offset 0
+    private boolean deleteFolder(String folder) {
+        try {
+            while (true) {
+                List<SupabaseStorageService.StorageEntry> page =
+                        supabaseStorageService.listFolder(bucket, folder, batchSize, 0);
+                List<String> keys = page.stream()
+                        .filter(entry -> !entry.folder())
+                        .map(entry -> folder + entry.name())
+                        .toList();
+                if (keys.isEmpty()) break;
+                supabaseStorageService.deleteObjects(bucket, keys);
+                deletedObjects("deleted").increment(keys.size());
+                if (page.size() < batchSize) break;
+            }
+        } catch (StorageUnavailableException e) {
+            retryLater(List.of(folder), e);
+            return false;
+        }
+        update(DONE_SQL, List.of(folder));
+        return true;
+    }
+
+    private void retryLater(List<String> keys, StorageUnavailableException e) {
+        update(RETRY_SQL, keys, retryBaseSeconds, retryMaxSeconds);
+        deletedObjects("failed").increment(keys.size());
+        LOG.log(Level.WARNING, "Storage unavailable during blob GC; retrying " + keys.size() + " tombstones later", e);
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${app.blob-gc.reconcile-interval-ms:86400000}",
+            initialDelayString = "${app.blob-gc.reconcile-initial-delay-ms:600000}")
+    public void reconcile() {
+        if (!leaseService.tryAcquire(RECONCILE_LEASE, LEASE_TTL)) {
+            skippedRuns.increment();
+            return;
+        }
+        Instant cutoff = Instant.now().minus(Duration.ofHours(orphanGraceHours));
+        try {
+            if (forEachFolder(VAULT_ROOT, emailHash -> reconcileClient(emailHash, cutoff))) {
+                forEachFolder(UPLOADS_ROOT, sessionId -> reconcileSession(sessionId, cutoff));
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Blob reconciliation failed; will retry on the next run", e);
+        }
+    }
+
+    /** Hands every folder directly under root to reconcileFolder; false if the lease was lost on the way. */
+    private boolean forEachFolder(String root, Consumer<String> reconcileFolder) {
+        for (int offset = 0; ; ) {
+            List<SupabaseStorageService.StorageEntry> folders =
+                    supabaseStorageService.listFolder(bucket, root, batchSize, offset);
+            for (SupabaseStorageService.StorageEntry folder : folders) {
+                if (!folder.folder()) continue;
+                reconcileFolder.accept(folder.name());
+                if (!leaseService.tryAcquire(RECONCILE_LEASE, LEASE_TTL)) return false;
+            }
+            if (folders.size() < batchSize) return true;
+            offset += folders.size();
+        }
+    }
+
+    private void reconcileClient(String emailHash, Instant cutoff) {
+        References references = references(emailHash);
+        List<String> found = new ArrayList<>();
+        findOrphans(VAULT_ROOT + emailHash + "/", references, cutoff, found);
+        tombstone(found);
+        orphans.increment(found.size());
+    }
+
+    // A session's folder holds its appended parts; once the session is finalized or dropped it should be empty
+    private void reconcileSession(String sessionId, Instant cutoff) {
+        Set<String> parts = new HashSet<>(jdbcTemplate.queryForList(SESSION_PARTS_SQL, String.class, sessionId));
+        List<String> found = new ArrayList<>();
+        findOrphans(UPLOADS_ROOT + sessionId + "/", new References(parts, Set.of()), cutoff, found);
+        tombstone(found);
+        orphans.increment(found.size());
+    }
+
+    /** Everything the client's folder should hold, read before it is listed. */
+    private References references(String emailHash) {
+        References references = new References(new HashSet<>(), new HashSet<>());
+        List<ChunkedFile> chunkedFiles = new ArrayList<>();
+        jdbcTemplate.query(CLIENT_FILES_SQL, rs -> {
+            String storageKey = rs.getString("storage_key");
+            if (BlobFormat.GCM_CHUNKED.name().equals(rs.getString("blob_format"))) {
+                chunkedFiles.add(new ChunkedFile(
+                        storageKey, rs.getString("dek_wrapped_server"), rs.getInt("server_kek_version")));
+            } else {
+                references.keys().add(storageKey);
+            }
+        }, emailHash);
+        references.keys().addAll(jdbcTemplate.queryForList(CLIENT_SHARED_BLOBS_SQL, String.class, emailHash));
+
+        for (ChunkedFile file : chunkedFiles) {
+            try {
+                byte[] dek = cryptoService.unwrapDekForServer(emailHash, file.dekWrappedServer(), file.serverKekVersion());
+                references.keys().addAll(chunkedBlobService.objectKeys(file.manifestKey(), dek));
+            } catch (Exception e) {
+                // Without the manifest nothing in the lineage can be told apart; leave it alone
+                references.unreadableFolders().add(chunkedBlobService.lineage(file.manifestKey()));
+                LOG.log(Level.WARNING, "Could not read chunk manifest " + file.manifestKey() + "; skipping its lineage", e);
+            }
+        }
+        return references;
+    }
+
+    // Offset paging is stable here: nothing is deleted while the folder is walked
+    private void findOrphans(String folder, References references, Instant cutoff, List<String> found) {
+        for (int offset = 0; ; ) {
+            List<SupabaseStorageService.StorageEntry> page =
+                    supabaseStorageService.listFolder(bucket, folder, batchSize, offset);
+            for (SupabaseStorageService.StorageEntry entry : page) {
+                String key = folder + entry.name();
+                if (entry.folder()) {
+                    if (!references.unreadableFolders().contains(key + "/")) {
+                        findOrphans(key + "/", references, cutoff, found);
+                    }
+                } else if (entry.createdAt() != null && entry.createdAt().isBefore(cutoff)
+                        && !references.keys().contains(key)) {
+                    found.add(key);
+                }
+            }
+            if (page.size() < batchSize) return;
+            offset += page.size();
+        }
+    }
+
+    private int update(String sql, Collection<String> keys, Object... leadingArgs) {
+        return jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement(sql);
+            int i = 1;
+            for (Object arg : leadingArgs) ps.setObject(i++, arg);
+            ps.setArray(i, con.createArrayOf("text", keys.toArray()));
+            return ps;
+        });
+    }
+
+    private Counter deletedObjects(String outcome) {
+        return Counter.builder("kms.blobgc.objects")
+                .description("Tombstoned objects handed to bulk storage deletes")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private record References(Set<String> keys, Set<String> unreadableFolders) {}
+
+    private record ChunkedFile(String manifestKey, String dekWrappedServer, int serverKekVersion) {}
+}
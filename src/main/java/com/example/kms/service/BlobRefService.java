@@ -0,0 +1,29 @@
+package com.example.kms.service;
+
+import com.example.kms.model.Client;
+import com.example.kms.model.VaultFile;
+
+import java.util.Optional;
+
+/**
+ * Reference counts for vault blobs shared by deduplicated uploads (see vault_blobs, V10).
+ * Storage keys that were never registered are treated as owned by a single vault file.
+ */
+public interface BlobRefService {
+
+    /**
+     * Looks for a live blob of the same client with the same content tag and takes a reference
+     * on it. Returns a vault file using that blob, whose key material and sizes a new file can
+     * copy; the caller must {@link #release} the reference if it doesn't end up using it.
+     */
+    Optional<VaultFile> retainDuplicate(String emailHash, String contentHmac);
+
+    /** Records a newly stored blob, referenced once, so later uploads of the same content can share it. */
+    void register(Client owner, String storageKey, String contentHmac);
+
+    /**
+     * Drops one reference to the blob at storageKey. Returns true when it was the last one,
+     * in which case the caller deletes the blob and releases its quota.
+     */
+    boolean release(String storageKey);
+}
@@ -0,0 +1,67 @@
+package com.example.kms.service;
+
+import com.example.kms.model.Client;
+import com.example.kms.model.VaultBlob;
+import com.example.kms.model.VaultFile;
+import com.example.kms.repository.VaultBlobRepository;
+import com.example.kms.repository.VaultFileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+
+/**
+ * Every step is a single conditional statement, so no locks are needed: a reference is only
+ * added while ref_count > 0, and once it reaches 0 the blob can't be revived, so exactly one
+ * releaser (the one whose delete removes the row) deletes it from storage.
+ */
+@Service
+public class BlobRefServiceImpl implements BlobRefService {
+
+    private final VaultBlobRepository vaultBlobRepository;
+    private final VaultFileRepository vaultFileRepository;
+    private final Counter deduplicated;
+
+    public BlobRefServiceImpl(VaultBlobRepository vaultBlobRepository,
+                              VaultFileRepository vaultFileRepository,
+                              MeterRegistry meterRegistry) {
+        this.vaultBlobRepository = vaultBlobRepository;
+        this.vaultFileRepository = vaultFileRepository;
+        this.deduplicated = Counter.builder("kms.vault.dedup.hits")
+                .description("Uploads that reused an existing blob instead of storing a new one")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Optional<VaultFile> retainDuplicate(String emailHash, String contentHmac) {
+        Optional<String> storageKey = vaultBlobRepository.findLiveStorageKey(emailHash, contentHmac);
+        if (storageKey.isEmpty()) return Optional.empty();
+        // Read the key material before retaining: if the last file using the blob is deleted in
+        // between, retain() fails and the upload just stores its own copy
+        Optional<VaultFile> template = vaultFileRepository.findFirstByStorageKey(storageKey.get());
+        if (template.isEmpty() || vaultBlobRepository.retain(storageKey.get()) == 0) return Optional.empty();
+        deduplicated.increment();
+        return template;
+    }
+
+    @Override
+    public void register(Client owner, String storageKey, String contentHmac) {
+        vaultBlobRepository.save(VaultBlob.builder()
+                .storageKey(storageKey)
+                .owner(owner)
+                .contentHmac(contentHmac)
+                .refCount(1)
+                .build());
+    }
+
+    @Override
+    public boolean release(String storageKey) {
+        if (vaultBlobRepository.release(storageKey) == 1) {
+            return vaultBlobRepository.deleteIfUnreferenced(storageKey) == 1;
+        }
+        // Nothing to release: either never shared (the caller is the sole owner), or another
+        // caller already dropped the last reference and is deleting it
+        return !vaultBlobRepository.existsById(storageKey);
+    }
+}
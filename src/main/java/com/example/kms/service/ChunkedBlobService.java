@@ -0,0 +1,51 @@
+package com.example.kms.service;
+
+import com.example.kms.util.BufferArena;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Stores vault files as content-defined chunks (BlobFormat.GCM_CHUNKED), so a new version of
+ * a file only uploads the chunks that differ from the previous one.
+ *
+ * A chunked blob is a "lineage" directory in storage: the encrypted manifest plus one object
+ * per distinct chunk, all sealed under the file's DEK. New versions stay in the same lineage
+ * and reuse its chunks; superseded ones are reported as stale for the caller to delete once
+ * the file points at the new manifest.
+ */
+public interface ChunkedBlobService {
+
+    /**
+     * Chunks and uploads plaintext (exactly size bytes). With a previousManifestKey (a chunked
+     * blob under the same dek) only chunks that blob doesn't already hold are uploaded; without
+     * one a new lineage is started. Uploaded chunks are tombstoned again if the write fails.
+     */
+    Written write(String emailHash, byte[] dek, InputStream plaintext, long size, String previousManifestKey) throws Exception;
+
+    /** Decrypts the whole file into a pooled buffer; the caller closes the lease. */
+    BufferArena.Lease read(String manifestKey, byte[] dek) throws Exception;
+
+    /** Storage keys of the manifest and every chunk it names, i.e. the objects the version is made of. */
+    List<String> objectKeys(String manifestKey, byte[] dek) throws Exception;
+
+    /** The lineage folder (ending in '/') that holds every version of the file, to delete it as a whole. */
+    String lineage(String manifestKey);
+
+    /** Upper bound on encryptedSize for a size-byte file, for reserving quota before writing. */
+    long maxBlobLength(long size);
+
+    /** Bytes held in memory by one write (read window plus chunks in flight), for the memory budget. */
+    long writeWorkingSet();
+
+    /**
+     * A stored version. encryptedSize counts the manifest and each distinct chunk once;
+     * uploadedBytes is what this write actually sent. Once the file points at manifestKey the
+     * caller deletes staleKeys (the previous manifest and the chunks only it used); if the file
+     * can't be pointed at it, the caller deletes writtenKeys (this write's own objects) instead.
+     */
+    record Written(String manifestKey, long encryptedSize, String blobSha256,
+                   int chunks, int reusedChunks, long uploadedBytes,
+                   List<String> writtenKeys, List<String> staleKeys) {
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.kms.service;
+
+import com.example.kms.util.BufferArena;
+import com.example.kms.util.ChunkManifest;
+import com.example.kms.util.CryptoUtils;
+import com.example.kms.util.FastCdc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Chunks are cut by FastCDC on the calling thread, tagged and sealed there, and stored on the
+ * file I/O pool with at most io-parallelism requests in flight; reads fetch and open chunks the
+ * same way, each straight into its slice of one pooled output buffer.
+ *
+ * A chunk's tag is verified after it is opened, so storage can't substitute one chunk of the
+ * file for another; the manifest itself is an AES-GCM message under the DEK.
+ */
+@Service
+public class ChunkedBlobServiceImpl implements ChunkedBlobService {
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int GCM_OVERHEAD = 12 + 16; // iv + tag, as written by CryptoService.aesGcmEncrypt
+    private static final byte[] CHUNK_TAG_INFO = "VAULT-v1|chunk-tag".getBytes(StandardCharsets.UTF_8);
+
+    private final CryptoService cryptoService;
+    private final SupabaseStorageService supabaseStorageService;
+    private final BufferArena bufferArena;
+    private final BlobGcService blobGcService;
+    private final Executor fileIoExecutor;
+    private final FastCdc chunker;
+    private final int ioParallelism;
+    private final Counter chunksUploaded;
+    private final Counter chunksReused;
+
+    @Value("${supabase.storage.bucket}")
+    private String bucket;
+
+    public ChunkedBlobServiceImpl(CryptoService cryptoService,
+                                  SupabaseStorageService supabaseStorageService,
+                                  BufferArena bufferArena,
+                                  // Lazy: the GC service reads manifests through this one when it reconciles
+                                  @Lazy BlobGcService blobGcService,
+                                  @Qualifier("fileIoExecutor") Executor fileIoExecutor,
+                                  @Value("${app.vault.chunking.avg-bytes:262144}") int avgChunkBytes,
+                                  @Value("${app.vault.chunking.io-parallelism:8}") int ioParallelism,
+                                  MeterRegistry meterRegistry) {
+        this.cryptoService = cryptoService;
+        this.supabaseStorageService = supabaseStorageService;
+        this.bufferArena = bufferArena;
+        this.blobGcService = blobGcService;
+        this.fileIoExecutor = fileIoExecutor;
+        this.chunker = FastCdc.withAverage(avgChunkBytes);
+        this.ioParallelism = Math.max(1, ioParallelism);
+        this.chunksUploaded = Counter.builder("kms.vault.chunks")
+                .description("Chunks written by chunked vault blob writes, by whether they were uploaded or reused")
+                .tag("result", "uploaded")
+                .register(meterRegistry);
+        this.chunksReused = Counter.builder("kms.vault.chunks")
+                .description("Chunks written by chunked vault blob writes, by whether they were uploaded or reused")
+                .tag("result", "reused")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Written write(String emailHash, byte[] dek, InputStream plaintext, long size, String previousManifestKey) throws Exception {
+        String lineage;
+        String previousLineage = null;
+        Map<String, ChunkManifest.Chunk> stored = new HashMap<>();
+        if (previousManifestKey != null) {
+            lineage = lineage(previousManifestKey);
+            previousLineage = lineage;
+            for (ChunkManifest.Chunk chunk : readManifest(previousManifestKey, dek).chunks()) {
+                stored.putIfAbsent(chunk.tag(), chunk);
+            }
+        } else {
+            lineage = "vault/" + emailHash + "/" + UUID.randomUUID() + "/";
+        }
+
+        UUID writeId = UUID.randomUUID();
+        Mac tagMac = chunkTagMac(dek);
+        HexFormat hex = HexFormat.of();
+        List<ChunkManifest.Chunk> chunks = new ArrayList<>();
+        Map<String, ChunkManifest.Chunk> used = new LinkedHashMap<>();
+        List<String> written = new ArrayList<>();
+        Window uploads = new Window(ioParallelism);
+        long uploadedBytes = 0;
+        long total = 0;
+        int reused = 0;
+
+        try {
+            byte[] window = new byte[chunker.maxBytes()];
+            int filled = 0;
+            boolean eof = false;
+            while (true) {
+                if (!eof) {
+                    filled += plaintext.readNBytes(window, filled, window.length - filled);
+                    eof = filled < window.length;
+                }
+                if (filled == 0) break;
+                int length = chunker.cut(window, 0, filled);
+                tagMac.update(window, 0, length);
+                String tag = hex.formatHex(tagMac.doFinal());
+                total += length;
+
+                ChunkManifest.Chunk chunk = used.get(tag);
+                if (chunk == null) chunk = stored.get(tag);
+                if (chunk != null) {
+                    reused++;
+                } else {
+                    chunk = new ChunkManifest.Chunk(tag, writeId, length);
+                    byte[] sealed = new byte[length + GCM_OVERHEAD];
+                    cryptoService.aesGcmEncrypt(dek, ByteBuffer.wrap(window, 0, length), ByteBuffer.wrap(sealed));
+                    String key = lineage + chunk.objectName();
+                    written.add(key);
+                    uploads.submit(() -> supabaseStorageService.putObject(bucket, key, sealed, CONTENT_TYPE));
+                    uploadedBytes += sealed.length;
+                }
+                used.putIfAbsent(tag, chunk);
+                chunks.add(chunk);
+
+                System.arraycopy(window, length, window, 0, filled - length);
+                filled -= length;
+            }
+            if (total != size) {
+                throw new IllegalArgumentException("Expected " + size + " bytes but read " + total);
+            }
+            uploads.await();
+
+            byte[] sealedManifest = cryptoService.aesGcmEncryptBytes(dek, new ChunkManifest(chunks).encode());
+            String manifestKey = lineage + "m-" + writeId;
+            written.add(manifestKey);
+            supabaseStorageService.putObject(bucket, manifestKey, sealedManifest, CONTENT_TYPE);
+            uploadedBytes += sealedManifest.length;
+
+            long encryptedSize = sealedManifest.length;
+            for (ChunkManifest.Chunk chunk : used.values()) encryptedSize += chunk.length() + GCM_OVERHEAD;
+            List<String> stale = new ArrayList<>();
+            if (previousManifestKey != null) {
+                stale.add(previousManifestKey);
+                for (ChunkManifest.Chunk chunk : stored.values()) {
+                    if (used.get(chunk.tag()) != chunk) stale.add(previousLineage + chunk.objectName());
+                }
+            }
+            chunksUploaded.increment(chunks.size() - reused);
+            chunksReused.increment(reused);
+            String blobSha256 = hex.formatHex(MessageDigest.getInstance("SHA-256").digest(sealedManifest));
+            return new Written(manifestKey, encryptedSize, blobSha256, chunks.size(), reused, uploadedBytes,
+                    written, stale);
+        } catch (Exception e) {
+            uploads.cancel();
+            blobGcService.tombstone(written);
+            throw e;
+        }
+    }
+
+    @Override
+    public BufferArena.Lease read(String manifestKey, byte[] dek) throws Exception {
+        String lineage = lineage(manifestKey);
+        ChunkManifest manifest = readManifest(manifestKey, dek);
+        long length = manifest.plaintextLength();
+        if (length > Integer.MAX_VALUE - 8) throw new IllegalStateException("file too large for one buffer: " + length);
+        BufferArena.Lease out = bufferArena.acquire((int) length);
+        Window downloads = new Window(ioParallelism);
+        try {
+            int offset = 0;
+            for (ChunkManifest.Chunk chunk : manifest.chunks()) {
+                ByteBuffer slice = out.buffer().duplicate().position(offset).limit(offset + chunk.length()).slice();
+                String key = lineage + chunk.objectName();
+                downloads.submit(() -> {
+                    try (BufferArena.Lease sealed = supabaseStorageService.getObjectPooled(bucket, key)) {
+                        cryptoService.aesGcmDecrypt(dek, sealed.buffer().duplicate(), slice.duplicate());
+                    }
+                    verifyTag(dek, chunk, slice);
+                    return null;
+                });
+                offset += chunk.length();
+            }
+            downloads.await();
+            return out;
+        } catch (Exception e) {
+            downloads.cancel();
+            out.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> objectKeys(String manifestKey, byte[] dek) throws Exception {
+        String lineage = lineage(manifestKey);
+        List<String> keys = new ArrayList<>();
+        for (ChunkManifest.Chunk chunk : readManifest(manifestKey, dek).chunks()) {
+            String key = lineage + chunk.objectName();
+            if (!keys.contains(key)) keys.add(key);
+        }
+        keys.add(manifestKey);
+        return keys;
+    }
+
+    // Manifest and chunks share the manifest's directory
+    @Override
+    public String lineage(String manifestKey) {
+        return manifestKey.substring(0, manifestKey.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public long maxBlobLength(long size) {
+        long chunks = size / chunker.minBytes() + 1;
+        return size + chunks * GCM_OVERHEAD + ChunkManifest.encodedLength(chunks) + GCM_OVERHEAD;
+    }
+
+    @Override
+    public long writeWorkingSet() {
+        // The cut window plus one sealed chunk per request in flight (and the one being sealed)
+        return (long) chunker.maxBytes() * (ioParallelism + 2);
+    }
+
+    private ChunkManifest readManifest(String manifestKey, byte[] dek) throws Exception {
+        byte[] sealed = supabaseStorageService.getObject(bucket, manifestKey);
+        return ChunkManifest.decode(cryptoService.aesGcmDecryptBytes(dek, sealed));
+    }
+
+    private void verifyTag(byte[] dek, ChunkManifest.Chunk chunk, ByteBuffer plaintext) throws Exception {
+        Mac mac = chunkTagMac(dek);
+        mac.update(plaintext.duplicate());
+        if (!MessageDigest.isEqual(mac.doFinal(), HexFormat.of().parseHex(chunk.tag()))) {
+            throw new IllegalStateException("Chunk does not match its manifest entry: " + chunk.objectName());
+        }
+    }
+
+    private Mac chunkTagMac(byte[] dek) throws Exception {
+        Mac mac = CryptoUtils.newHmac();
+        mac.init(new SecretKeySpec(cryptoService.hkdf(null, dek, CHUNK_TAG_INFO, 32), "HmacSHA256"));
+        return mac;
+    }
+
+    /** Storage requests on the file I/O pool, at most limit of them in flight; the first failure wins. */
+    private final class Window {
+        private final int limit;
+        private final ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Window(int limit) {
+            this.limit = limit;
+        }
+
+        void submit(Callable<?> request) throws Exception {
+            if (inFlight.size() >= limit) join(inFlight.removeFirst());
+            inFlight.addLast(CompletableFuture.runAsync(() -> {
+                if (cancelled.get()) return;
+                try {
+                    request.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, fileIoExecutor));
+        }
+
+        void await() throws Exception {
+            while (!inFlight.isEmpty()) join(inFlight.removeFirst());
+        }
+
+        // Queued requests are skipped and running ones waited for, so nothing touches a buffer after it is released
+        void cancel() {
+            cancelled.set(true);
+            for (CompletableFuture<Void> request : inFlight) {
+                try {
+                    request.join();
+                } catch (RuntimeException ignored) {
+                    // failed; either way it is no longer running
+                }
+            }
+            inFlight.clear();
+        }
+
+        private void join(CompletableFuture<Void> request) throws Exception {
+            try {
+                request.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Exception cause) throw cause;
+                throw e;
+            }
+        }
+    }
+}
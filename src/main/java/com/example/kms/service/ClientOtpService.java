@@ -1,13 +1,13 @@
 package com.example.kms.service;
 
 import com.example.kms.repository.ClientRepository;
+import com.example.kms.util.Drbg;
 import com.example.kms.util.HashUtil;
 
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Service;
 
-import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -31,8 +31,7 @@ public class ClientOtpService {
 
     // ✅ Generate 6-digit OTP
     private String generateOtp() {
-        SecureRandom random = new SecureRandom();
-        int otp = 100000 + random.nextInt(900000);
+        int otp = 100000 + Drbg.current().nextInt(900000);
         return String.valueOf(otp);
     }
 
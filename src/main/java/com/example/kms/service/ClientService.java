@@ -18,6 +18,7 @@ import org.springframework.security.crypto.password.PasswordEncoder;
 
 
 import java.security.KeyPair;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
@@ -122,11 +123,12 @@ public Client loginClient(ClientLoginRequest req) {
 
         EncryptedData ed = new EncryptedData();
         ed.setClient(client);
-        ed.setEncryptedPayload(encryptedDataBase64);
+        ed.setEncryptedPayload(Base64.getDecoder().decode(encryptedDataBase64));
         ed.setIv(ivBase64);
         ed.setSalt(saltBase64);
-        ed.setDekWrapped(dekWrappedForClientBase64);
-        ed.setDekWrappedForRecovery(dekWrappedForRecoveryBase64);
+        ed.setDekWrapped(Base64.getDecoder().decode(dekWrappedForClientBase64));
+        ed.setDekWrappedForRecovery(dekWrappedForRecoveryBase64 == null
+                ? null : Base64.getDecoder().decode(dekWrappedForRecoveryBase64));
         ed.setDataType(storageType);
 
         return encryptedDataRepository.save(ed);
@@ -146,10 +148,9 @@ public Client loginClient(ClientLoginRequest req) {
         // 1) generate random DEK (32 bytes)
         byte[] dek = cryptoService.randomBytes(32);
 
-        // 2) encrypt plaintext with DEK -> AES-256-GCM
-        CryptoService.EncryptResult enc = cryptoService.encryptAndSplit(dek, plaintext);
-        String ciphertextBase64 = enc.getCiphertextBase64();
-        String ivBase64 = enc.getIvBase64();
+        // 2) encrypt plaintext with DEK -> AES-256-GCM (ciphertext stays raw bytes)
+        CryptoService.EncryptedParts enc = cryptoService.encryptDetached(dek, plaintext);
+        String ivBase64 = Base64.getEncoder().encodeToString(enc.getIv());
 
         // 3) generate random salt
         byte[] salt = cryptoService.randomBytes(16);
@@ -159,31 +160,26 @@ public Client loginClient(ClientLoginRequest req) {
         String infoStr = "KMS-v1|dek-wrap|phone:" + client.getPhone();
         byte[] info = infoStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
 
-        // 5) wrap DEK for client
-        String dekWrappedForClient = cryptoService.wrapDekForRecipient(
-                dek,
-                cryptoService.getServerPrivateKey(),
-                client.getPublicKey(),
-                salt,
-                info
-        );
-
-        // 6) optional recovery key
-        String dekWrappedForRecovery = null;
-        if (req.getRecoveryPublicKeyBase64() != null && !req.getRecoveryPublicKeyBase64().isBlank()) {
-            dekWrappedForRecovery = cryptoService.wrapDekForRecipient(
-                    dek,
-                    cryptoService.getServerPrivateKey(),
+        // 5) wrap DEK for client and, optionally, the recovery key in one pass
+        List<CryptoService.WrapRecipient> recipients = new ArrayList<>(2);
+        recipients.add(CryptoService.WrapRecipient.x25519(client.getPublicKey(), salt, info));
+        boolean hasRecovery = req.getRecoveryPublicKeyBase64() != null && !req.getRecoveryPublicKeyBase64().isBlank();
+        if (hasRecovery) {
+            recipients.add(CryptoService.WrapRecipient.x25519(
                     req.getRecoveryPublicKeyBase64(),
                     salt,
-                    ("KMS-v1|dek-wrap|recovery|phone:" + client.getPhone()).getBytes(java.nio.charset.StandardCharsets.UTF_8)
-            );
+                    ("KMS-v1|dek-wrap|recovery|phone:" + client.getPhone()).getBytes(java.nio.charset.StandardCharsets.UTF_8)));
         }
+        List<byte[]> wrapped = cryptoService.wrapDekForRecipients(dek, cryptoService.getServerPrivateKey(), recipients);
+        byte[] dekWrappedForClient = wrapped.get(0);
+
+        // 6) optional recovery key
+        byte[] dekWrappedForRecovery = hasRecovery ? wrapped.get(1) : null;
 
         // 7) persist encrypted entity
         EncryptedData ed = new EncryptedData();
         ed.setClient(client);
-        ed.setEncryptedPayload(ciphertextBase64);
+        ed.setEncryptedPayload(enc.getCiphertext());
         ed.setIv(ivBase64);
         ed.setSalt(saltBase64);
         ed.setDekWrapped(dekWrappedForClient);
@@ -195,8 +191,9 @@ public Client loginClient(ClientLoginRequest req) {
         // 8) build response
         ServerStoreResponse resp = new ServerStoreResponse();
         resp.setEncryptedDataId(saved.getId());
-        resp.setDekWrappedForClient(dekWrappedForClient);
-        resp.setDekWrappedForRecovery(dekWrappedForRecovery);
+        resp.setDekWrappedForClient(Base64.getEncoder().encodeToString(dekWrappedForClient));
+        resp.setDekWrappedForRecovery(dekWrappedForRecovery == null
+                ? null : Base64.getEncoder().encodeToString(dekWrappedForRecovery));
         resp.setIv(ivBase64);
         resp.setSalt(saltBase64);
         resp.setServerPublicKey(cryptoService.getServerPublicKeyBase64());
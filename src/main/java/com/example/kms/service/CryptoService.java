@@ -1,19 +1,41 @@
 package com.example.kms.service;
 
+import com.example.kms.model.BlobFormat;
+import com.example.kms.util.BufferArena;
 import com.example.kms.util.CryptoUtils;
+import com.example.kms.util.Drbg;
+import com.example.kms.util.GcmNonces;
+import com.example.kms.util.MasterKeyRing;
+import com.example.kms.util.SegmentedAead;
+import com.example.kms.util.VersionedCiphertext;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 @Service
 public class CryptoService {
@@ -22,13 +44,64 @@ public class CryptoService {
     private static final int AES_KEY_BYTES = 32; // AES-256
     private static final int GCM_IV_BYTES = 12;
     private static final int GCM_TAG_BITS = 128;
+    private static final byte[] SERVER_KEK_SALT = new byte[16]; // 16 zero bytes
 
     private KeyPair serverKeyPair;
-    private final SecureRandom random = new SecureRandom();
+
+    // HKDF-Extract output per server KEK version; salt and IKM are fixed for the life of the process
+    private final Map<Integer, byte[]> serverKekPrks = new ConcurrentHashMap<>();
+
+    private final SegmentedAead.Parallelism segmentParallelism;
+    private final BufferArena bufferArena;
+
+    private final Timer encryptTimer;
+    private final Timer decryptTimer;
+    private final Timer wrapTimer;
+    private final Timer unwrapTimer;
+    private final DistributionSummary encryptBytes;
+    private final DistributionSummary decryptBytes;
+
+    public CryptoService(MeterRegistry meterRegistry,
+                         @Qualifier("cryptoForkJoinPool") ForkJoinPool cryptoForkJoinPool,
+                         @Value("${app.crypto.parallel-min-bytes:4194304}") long parallelMinBytes,
+                         BufferArena bufferArena) {
+        this.segmentParallelism = new SegmentedAead.Parallelism(cryptoForkJoinPool, parallelMinBytes);
+        this.bufferArena = bufferArena;
+        this.encryptTimer = operationTimer(meterRegistry, "encrypt");
+        this.decryptTimer = operationTimer(meterRegistry, "decrypt");
+        this.wrapTimer = operationTimer(meterRegistry, "wrap");
+        this.unwrapTimer = operationTimer(meterRegistry, "unwrap");
+        this.encryptBytes = payloadSummary(meterRegistry, "encrypt");
+        this.decryptBytes = payloadSummary(meterRegistry, "decrypt");
+    }
+
+    private static Timer operationTimer(MeterRegistry registry, String op) {
+        return Timer.builder("kms.crypto.operation")
+                .description("AES-GCM payload and DEK wrap operations")
+                .tag("op", op)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static DistributionSummary payloadSummary(MeterRegistry registry, String op) {
+        return DistributionSummary.builder("kms.crypto.payload")
+                .description("Plaintext/ciphertext size handled by AES-GCM payload operations")
+                .baseUnit("bytes")
+                .tag("op", op)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static <T> T timed(Timer timer, Callable<T> operation) throws Exception {
+        return timer.recordCallable(operation);
+    }
 
     @PostConstruct
     public void init() throws Exception {
         serverKeyPair = generateX25519KeyPair();
+        // Load both keyrings at startup so a misconfigured key fails fast
+        MasterKeyRing.columnKeys();
+        MasterKeyRing.serverKeks();
     }
 
     public KeyPair generateX25519KeyPair() throws NoSuchAlgorithmException {
@@ -77,143 +150,421 @@ public class CryptoService {
 
     // AES-GCM encrypt: returns iv||ciphertext as bytes
     public byte[] aesGcmEncryptBytes(byte[] key, byte[] plaintext) throws Exception {
-        byte[] iv = new byte[GCM_IV_BYTES];
-        random.nextBytes(iv);
+        encryptBytes.record(plaintext.length);
+        return timed(encryptTimer, () -> encryptBytesUntimed(key, plaintext));
+    }
+
+    // Sized once and written in place: no separate ct array copied behind the iv
+    private byte[] encryptBytesUntimed(byte[] key, byte[] plaintext) throws Exception {
+        byte[] out = new byte[GCM_IV_BYTES + plaintext.length + GCM_TAG_BITS / 8];
+        GcmNonces.next(out, 0);
 
         Cipher cipher = Cipher.getInstance(AES_ALG);
         SecretKeySpec ks = new SecretKeySpec(key, "AES");
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, ks, spec);
-        byte[] ct = cipher.doFinal(plaintext);
+        cipher.init(Cipher.ENCRYPT_MODE, ks, new GCMParameterSpec(GCM_TAG_BITS, out, 0, GCM_IV_BYTES));
+        cipher.doFinal(plaintext, 0, plaintext.length, out, GCM_IV_BYTES);
+        return out;
+    }
+
+    /**
+     * Buffer form of aesGcmEncryptBytes: writes iv||ciphertext for plaintext's remaining bytes
+     * into out, advancing both buffers. Works on pooled direct buffers without heap copies.
+     */
+    public int aesGcmEncrypt(byte[] key, ByteBuffer plaintext, ByteBuffer out) throws Exception {
+        encryptBytes.record(plaintext.remaining());
+        return timed(encryptTimer, () -> {
+            byte[] iv = GcmNonces.next();
+            Cipher cipher = Cipher.getInstance(AES_ALG);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, iv));
+            out.put(iv);
+            return GCM_IV_BYTES + cipher.doFinal(plaintext, out);
+        });
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(iv.length + ct.length);
-        bb.put(iv);
-        bb.put(ct);
-        return bb.array();
+    /** Buffer form of aesGcmDecryptBytes: opens iv||ciphertext into out, advancing both buffers. */
+    public int aesGcmDecrypt(byte[] key, ByteBuffer ivAndCiphertext, ByteBuffer out) throws Exception {
+        decryptBytes.record(ivAndCiphertext.remaining());
+        return timed(decryptTimer, () -> {
+            if (ivAndCiphertext.remaining() < GCM_IV_BYTES + GCM_TAG_BITS / 8) {
+                throw new IllegalArgumentException("ciphertext too short");
+            }
+            byte[] iv = new byte[GCM_IV_BYTES];
+            ivAndCiphertext.get(iv);
+            Cipher cipher = Cipher.getInstance(AES_ALG);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, iv));
+            return cipher.doFinal(ivAndCiphertext, out);
+        });
+    }
+
+    /**
+     * Segmented AES-GCM over a whole in-memory payload: header || segments. Payloads past
+     * app.crypto.parallel-min-bytes have their segments sealed in parallel.
+     */
+    public byte[] aesGcmEncryptSegmented(byte[] key, byte[] plaintext) throws Exception {
+        encryptBytes.record(plaintext.length);
+        return timed(encryptTimer, () -> SegmentedAead.encrypt(
+                key, plaintext, SegmentedAead.DEFAULT_SEGMENT_BYTES, segmentParallelism));
+    }
+
+    /**
+     * Segmented AES-GCM (see SegmentedAead) over one run of a payload: encrypts plaintextBytes
+     * of plaintext into segments numbered from firstIndex, marking segment finalIndex as final.
+     */
+    public SegmentedAead.EncryptingStream aesGcmSegmentStream(byte[] key, InputStream plaintext, int segmentSize,
+                                                              long firstIndex, long plaintextBytes, long finalIndex) throws Exception {
+        encryptBytes.record(plaintextBytes);
+        return new SegmentedAead.EncryptingStream(key, plaintext, segmentSize, firstIndex, plaintextBytes, finalIndex,
+                bufferArena);
+    }
+
+    // Decrypts a stored vault blob in whichever layout it was written
+    public byte[] decryptBlob(BlobFormat format, byte[] key, byte[] blob) throws Exception {
+        if (format == BlobFormat.GCM_SEGMENTED) {
+            decryptBytes.record(blob.length);
+            return timed(decryptTimer, () -> SegmentedAead.decrypt(key, blob, segmentParallelism));
+        }
+        return aesGcmDecryptBytes(key, blob);
+    }
+
+    /**
+     * Decrypts a stored vault blob held in a (pooled) buffer into a buffer leased from the
+     * arena; the caller closes the returned lease. blob's position is left where it was.
+     */
+    public BufferArena.Lease decryptBlob(BlobFormat format, byte[] key, ByteBuffer blob) throws Exception {
+        boolean segmented = format == BlobFormat.GCM_SEGMENTED;
+        int plaintextLength = segmented
+                ? SegmentedAead.plaintextLength(blob)
+                : blob.remaining() - GCM_IV_BYTES - GCM_TAG_BITS / 8;
+        if (plaintextLength < 0) throw new IllegalArgumentException("ciphertext too short");
+        BufferArena.Lease out = bufferArena.acquire(plaintextLength);
+        try {
+            if (segmented) {
+                decryptBytes.record(blob.remaining());
+                timed(decryptTimer, () -> {
+                    SegmentedAead.decrypt(key, blob, out.buffer(), segmentParallelism);
+                    return null;
+                });
+            } else {
+                aesGcmDecrypt(key, blob.duplicate(), out.buffer().duplicate());
+            }
+            return out;
+        } catch (Exception e) {
+            out.close();
+            throw e;
+        }
     }
 
     // AES-GCM decrypt expecting iv||ciphertext bytes
     public byte[] aesGcmDecryptBytes(byte[] key, byte[] ivAndCiphertext) throws Exception {
-        if (ivAndCiphertext.length < GCM_IV_BYTES + 16) throw new IllegalArgumentException("ciphertext too short");
-        byte[] iv = new byte[GCM_IV_BYTES];
-        System.arraycopy(ivAndCiphertext, 0, iv, 0, GCM_IV_BYTES);
-        byte[] ct = new byte[ivAndCiphertext.length - GCM_IV_BYTES];
-        System.arraycopy(ivAndCiphertext, GCM_IV_BYTES, ct, 0, ct.length);
+        decryptBytes.record(ivAndCiphertext.length);
+        return timed(decryptTimer, () -> decryptBytesUntimed(key, ivAndCiphertext));
+    }
 
+    private byte[] decryptBytesUntimed(byte[] key, byte[] ivAndCiphertext) throws Exception {
+        if (ivAndCiphertext.length < GCM_IV_BYTES + 16) throw new IllegalArgumentException("ciphertext too short");
+        // iv and ciphertext are read in place rather than copied out into their own arrays
         Cipher cipher = Cipher.getInstance(AES_ALG);
         SecretKeySpec ks = new SecretKeySpec(key, "AES");
-        cipher.init(Cipher.DECRYPT_MODE, ks, new GCMParameterSpec(GCM_TAG_BITS, iv));
-        return cipher.doFinal(ct);
+        cipher.init(Cipher.DECRYPT_MODE, ks, new GCMParameterSpec(GCM_TAG_BITS, ivAndCiphertext, 0, GCM_IV_BYTES));
+        return cipher.doFinal(ivAndCiphertext, GCM_IV_BYTES, ivAndCiphertext.length - GCM_IV_BYTES);
+    }
+
+    // AES-GCM encrypt keeping iv and ciphertext as separate raw byte arrays
+    public EncryptedParts encryptDetached(byte[] key, byte[] plaintext) throws Exception {
+        encryptBytes.record(plaintext.length);
+        return timed(encryptTimer, () -> encryptDetachedUntimed(key, plaintext));
+    }
+
+    private EncryptedParts encryptDetachedUntimed(byte[] key, byte[] plaintext) throws Exception {
+        byte[] iv = GcmNonces.next();
+
+        Cipher cipher = Cipher.getInstance(AES_ALG);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        return new EncryptedParts(iv, cipher.doFinal(plaintext));
+    }
+
+    // AES-GCM decrypt from a separately stored iv and ciphertext (no iv||ct reassembly)
+    public byte[] aesGcmDecryptDetached(byte[] key, byte[] iv, byte[] ciphertext) throws Exception {
+        decryptBytes.record(ciphertext.length);
+        return timed(decryptTimer, () -> decryptDetachedUntimed(key, iv, ciphertext));
+    }
+
+    /**
+     * Detached decrypt of a ciphertext read from a stream of known length (a bytea column). GCM
+     * releases no plaintext until the tag checks, and the JCE buffers everything passed to
+     * update() in a growing array, so the stream is read once into an exactly sized array.
+     */
+    public byte[] aesGcmDecryptDetached(byte[] key, byte[] iv, InputStream ciphertext, long length) throws Exception {
+        if (length < GCM_TAG_BITS / 8 || length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("invalid ciphertext length " + length);
+        }
+        byte[] bytes = ciphertext.readNBytes((int) length);
+        if (bytes.length != length) throw new EOFException("ciphertext ended " + (length - bytes.length) + " bytes early");
+        return aesGcmDecryptDetached(key, iv, bytes);
+    }
+
+    private byte[] decryptDetachedUntimed(byte[] key, byte[] iv, byte[] ciphertext) throws Exception {
+        if (iv.length != GCM_IV_BYTES) throw new IllegalArgumentException("iv must be " + GCM_IV_BYTES + " bytes");
+        Cipher cipher = Cipher.getInstance(AES_ALG);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        return cipher.doFinal(ciphertext);
     }
 
     // Helper: produce separate base64 iv and ciphertext
     public EncryptResult encryptAndSplit(byte[] key, byte[] plaintext) throws Exception {
-        byte[] combined = aesGcmEncryptBytes(key, plaintext);
-        byte[] iv = new byte[GCM_IV_BYTES];
-        System.arraycopy(combined, 0, iv, 0, GCM_IV_BYTES);
-        byte[] ciphertext = new byte[combined.length - GCM_IV_BYTES];
-        System.arraycopy(combined, GCM_IV_BYTES, ciphertext, 0, ciphertext.length);
-        return new EncryptResult(Base64.getEncoder().encodeToString(ciphertext), Base64.getEncoder().encodeToString(iv));
+        EncryptedParts parts = encryptDetached(key, plaintext);
+        return new EncryptResult(Base64.getEncoder().encodeToString(parts.getCiphertext()), Base64.getEncoder().encodeToString(parts.getIv()));
     }
 
     // Wrap DEK for recipientPublicKeyBase64 using server private and HKDF
     public String wrapDekForRecipient(byte[] dek, PrivateKey ourPriv, String recipientPublicKeyBase64, byte[] hkdfSalt, byte[] hkdfInfo) throws Exception {
-        PublicKey recipientPub = publicKeyFromBase64(recipientPublicKeyBase64);
-        byte[] shared = computeSharedSecret(ourPriv, recipientPub);
-        byte[] kek = hkdf(hkdfSalt, shared, hkdfInfo, AES_KEY_BYTES);
-        byte[] wrapped = aesGcmEncryptBytes(kek, dek); // iv||ciphertext
-        return Base64.getEncoder().encodeToString(wrapped);
+        return Base64.getEncoder().encodeToString(wrapDekForRecipientBytes(dek, ourPriv, recipientPublicKeyBase64, hkdfSalt, hkdfInfo));
+    }
+
+    // Same as wrapDekForRecipient but returns the raw iv||ciphertext for binary columns
+    public byte[] wrapDekForRecipientBytes(byte[] dek, PrivateKey ourPriv, String recipientPublicKeyBase64, byte[] hkdfSalt, byte[] hkdfInfo) throws Exception {
+        return timed(wrapTimer, () -> {
+            PublicKey recipientPub = publicKeyFromBase64(recipientPublicKeyBase64);
+            byte[] shared = computeSharedSecret(ourPriv, recipientPub);
+            byte[] kek = hkdf(hkdfSalt, shared, hkdfInfo, AES_KEY_BYTES);
+            return encryptBytesUntimed(kek, dek); // iv||ciphertext
+        });
+    }
+
+    /**
+     * Wraps one DEK for several recipients in a single pass and returns the wrapped forms
+     * in recipient order (raw bytes; X25519 recipients get iv||ciphertext, server recipients
+     * get the same tagged value as wrapDekForServer).
+     *
+     * The thread's Mac and one KeyAgreement and Cipher are shared across recipients, the ECDH shared secret
+     * and HKDF-Extract output are reused when recipients share a public key and salt, and the
+     * server KEK extract step is cached per key version.
+     */
+    public List<byte[]> wrapDekForRecipients(byte[] dek, PrivateKey ourPriv, List<WrapRecipient> recipients) throws Exception {
+        return timed(wrapTimer, () -> wrapDekForRecipientsUntimed(dek, ourPriv, recipients));
+    }
+
+    private List<byte[]> wrapDekForRecipientsUntimed(byte[] dek, PrivateKey ourPriv, List<WrapRecipient> recipients) throws Exception {
+        Mac mac = CryptoUtils.threadMac();
+        KeyAgreement ka = null;
+        Cipher cipher = Cipher.getInstance(AES_ALG);
+        Map<String, byte[]> sharedSecrets = new HashMap<>();
+        Map<String, byte[]> prks = new HashMap<>();
+        List<byte[]> wrapped = new ArrayList<>(recipients.size());
+
+        for (WrapRecipient r : recipients) {
+            if (r.emailHash != null) {
+                int version = currentServerKekVersion();
+                byte[] kek = CryptoUtils.hkdfExpand(mac, serverKekPrk(mac, version), serverKekInfo(r.emailHash), AES_KEY_BYTES);
+                wrapped.add(VersionedCiphertext.seal(version, kek, dek));
+                continue;
+            }
+            byte[] shared = sharedSecrets.get(r.publicKeyBase64);
+            if (shared == null) {
+                if (ka == null) ka = KeyAgreement.getInstance(KEY_AGREEMENT_ALG);
+                ka.init(ourPriv);
+                ka.doPhase(publicKeyFromBase64(r.publicKeyBase64), true);
+                shared = ka.generateSecret();
+                sharedSecrets.put(r.publicKeyBase64, shared);
+            }
+            String prkKey = r.publicKeyBase64 + '|' + (r.salt == null ? "" : Base64.getEncoder().encodeToString(r.salt));
+            byte[] prk = prks.get(prkKey);
+            if (prk == null) {
+                prk = CryptoUtils.hkdfExtract(mac, r.salt, shared);
+                prks.put(prkKey, prk);
+            }
+            byte[] kek = CryptoUtils.hkdfExpand(mac, prk, r.info, AES_KEY_BYTES);
+
+            byte[] out = new byte[GCM_IV_BYTES + dek.length + GCM_TAG_BITS / 8];
+            GcmNonces.next(out, 0);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kek, "AES"), new GCMParameterSpec(GCM_TAG_BITS, out, 0, GCM_IV_BYTES));
+            cipher.doFinal(dek, 0, dek.length, out, GCM_IV_BYTES);
+            wrapped.add(out);
+        }
+        return wrapped;
     }
 
     // Unwrap DEK (caller must supply appropriate private key and sender public)
     public byte[] unwrapDek(String wrappedBase64, PrivateKey ourPriv, String senderPublicKeyBase64, byte[] hkdfSalt, byte[] hkdfInfo) throws Exception {
-        PublicKey senderPub = publicKeyFromBase64(senderPublicKeyBase64);
-        byte[] shared = computeSharedSecret(ourPriv, senderPub);
-        byte[] kek = hkdf(hkdfSalt, shared, hkdfInfo, AES_KEY_BYTES);
-        byte[] wrapped = Base64.getDecoder().decode(wrappedBase64);
-        return aesGcmDecryptBytes(kek, wrapped);
+        return unwrapDekBytes(Base64.getDecoder().decode(wrappedBase64), ourPriv, senderPublicKeyBase64, hkdfSalt, hkdfInfo);
     }
 
+    // Unwrap a raw iv||ciphertext wrapped DEK
+    public byte[] unwrapDekBytes(byte[] wrapped, PrivateKey ourPriv, String senderPublicKeyBase64, byte[] hkdfSalt, byte[] hkdfInfo) throws Exception {
+        return timed(unwrapTimer, () -> {
+            PublicKey senderPub = publicKeyFromBase64(senderPublicKeyBase64);
+            byte[] shared = computeSharedSecret(ourPriv, senderPub);
+            byte[] kek = hkdf(hkdfSalt, shared, hkdfInfo, AES_KEY_BYTES);
+            return decryptBytesUntimed(kek, wrapped);
+        });
+    }
+
+    // DEKs, salts and other secrets; drawn from the calling thread's DRBG, never a shared instance
     public byte[] randomBytes(int len) {
-        byte[] b = new byte[len];
-        random.nextBytes(b);
-        return b;
+        return Drbg.nextBytes(len);
     }
 
     // -------------------------------------------------------------------------
     // Column-level encryption helpers (mirrors EncryptDecryptConverter logic)
     // -------------------------------------------------------------------------
 
-    private static final String DEV_FALLBACK_COLUMN_KEY_B64 = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=";
-
-    private byte[] loadColumnMasterKey() {
-        String envKey = System.getenv("VAULT_COLUMN_MASTER_KEY");
-        if (envKey == null || envKey.isBlank()) {
-            envKey = DEV_FALLBACK_COLUMN_KEY_B64;
-        }
-        byte[] keyBytes = Base64.getDecoder().decode(envKey);
-        if (keyBytes.length != AES_KEY_BYTES) {
-            throw new IllegalStateException(
-                    "VAULT_COLUMN_MASTER_KEY must be a Base64-encoded 32-byte key, got " + keyBytes.length);
-        }
-        return keyBytes;
-    }
-
     /**
-     * Encrypts a plaintext string using AES-256-GCM with a random 12-byte IV.
-     * Returns Base64(iv[12] || ciphertext_with_auth_tag), or null if plaintext is null.
-     * Master key is loaded from VAULT_COLUMN_MASTER_KEY env var.
+     * Encrypts a plaintext string using AES-256-GCM under the current column master key.
+     * Returns Base64(header[6] || iv[12] || ciphertext_with_auth_tag), or null if plaintext is null.
      */
     public String encryptColumnValue(String plaintext) {
         if (plaintext == null) return null;
         try {
-            byte[] key = loadColumnMasterKey();
-            byte[] combined = aesGcmEncryptBytes(key, plaintext.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-            return Base64.getEncoder().encodeToString(combined);
+            byte[] sealed = MasterKeyRing.columnKeys().seal(plaintext.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(sealed);
         } catch (Exception e) {
             throw new RuntimeException("Error encrypting column value", e);
         }
     }
 
     /**
-     * Decrypts a Base64(iv[12] || ciphertext) string produced by encryptColumnValue.
+     * Decrypts a value produced by encryptColumnValue (or a legacy untagged Base64(iv || ciphertext)),
+     * using the key id named in its header.
      * Returns null if encryptedBase64 is null.
      */
     public String decryptColumnValue(String encryptedBase64) {
         if (encryptedBase64 == null) return null;
         try {
-            byte[] key = loadColumnMasterKey();
-            byte[] combined = Base64.getDecoder().decode(encryptedBase64);
-            byte[] plaintext = aesGcmDecryptBytes(key, combined);
+            byte[] plaintext = MasterKeyRing.columnKeys().open(Base64.getDecoder().decode(encryptedBase64));
             return new String(plaintext, java.nio.charset.StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException("Error decrypting column value", e);
         }
     }
 
+    /**
+     * Re-encrypts a column value under the current master key.
+     * Returns null when the value is null or its header already names the current key.
+     */
+    public String rewrapColumnValue(String encryptedBase64) throws Exception {
+        if (encryptedBase64 == null) return null;
+        MasterKeyRing keys = MasterKeyRing.columnKeys();
+        byte[] data = Base64.getDecoder().decode(encryptedBase64);
+        if (keys.isSealedUnderCurrentKey(data)) return null;
+        return Base64.getEncoder().encodeToString(keys.seal(keys.open(data)));
+    }
+
     // -------------------------------------------------------------------------
     // Server KEK derivation
     // -------------------------------------------------------------------------
 
     /**
-     * Derives a 32-byte server KEK for the given emailHash using HKDF-SHA256.
-     * IKM is loaded from VAULT_SERVER_KEK env var, falling back to VAULT_COLUMN_MASTER_KEY.
+     * Current server KEK key id (VAULT_SERVER_KEK_VERSION, default 1).
+     * Also stored per row in vault_files.server_kek_version for index-backed rewrap scans.
+     */
+    public int currentServerKekVersion() {
+        return MasterKeyRing.serverKeks().currentKeyId();
+    }
+
+    /**
+     * Derives a 32-byte server KEK for the given emailHash using HKDF-SHA256
+     * under the current server KEK version.
+     */
+    public byte[] deriveServerKek(String emailHash) throws Exception {
+        return deriveServerKek(emailHash, currentServerKekVersion());
+    }
+
+    /**
+     * Derives a 32-byte server KEK for the given emailHash and key version using HKDF-SHA256.
+     * IKM is the server keyring entry for that version (see MasterKeyRing.serverKeks()).
      * Salt: 16 zero bytes.
      * Info: "VAULT-v1|dek-wrap|server|emailHash:" + emailHash
      */
-    public byte[] deriveServerKek(String emailHash) throws Exception {
-        String envKey = System.getenv("VAULT_SERVER_KEK");
-        if (envKey == null || envKey.isBlank()) {
-            envKey = System.getenv("VAULT_COLUMN_MASTER_KEY");
-        }
-        if (envKey == null || envKey.isBlank()) {
-            envKey = DEV_FALLBACK_COLUMN_KEY_B64;
+    public byte[] deriveServerKek(String emailHash, int version) throws Exception {
+        Mac mac = CryptoUtils.threadMac();
+        return CryptoUtils.hkdfExpand(mac, serverKekPrk(mac, version), serverKekInfo(emailHash), AES_KEY_BYTES);
+    }
+
+    private byte[] serverKekPrk(Mac mac, int version) throws Exception {
+        byte[] prk = serverKekPrks.get(version);
+        if (prk == null) {
+            prk = CryptoUtils.hkdfExtract(mac, SERVER_KEK_SALT, MasterKeyRing.serverKeks().key(version));
+            serverKekPrks.put(version, prk);
         }
-        byte[] ikm = Base64.getDecoder().decode(envKey);
-        byte[] salt = new byte[16]; // 16 zero bytes
-        byte[] info = ("VAULT-v1|dek-wrap|server|emailHash:" + emailHash)
+        return prk;
+    }
+
+    private static byte[] serverKekInfo(String emailHash) {
+        return ("VAULT-v1|dek-wrap|server|emailHash:" + emailHash)
                 .getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        return hkdf(salt, ikm, info, AES_KEY_BYTES);
+    }
+
+    /**
+     * Keyed tag of a plaintext for per-client deduplication: HMAC-SHA256 under a key expanded
+     * (HKDF) from the current server KEK with info "VAULT-v1|dedup|emailHash:" + emailHash.
+     * A bare hash would let anyone holding the database confirm a guessed file; this tag is
+     * only reproducible with the server key, and never matches across clients. Returned as
+     * "{kekVersion}:{hex}", so tags from before a KEK rotation simply stop matching.
+     */
+    public String contentHmac(String emailHash, InputStream plaintext) throws Exception {
+        int version = currentServerKekVersion();
+        Mac mac = CryptoUtils.newHmac();
+        byte[] key = CryptoUtils.hkdfExpand(mac, serverKekPrk(mac, version),
+                ("VAULT-v1|dedup|emailHash:" + emailHash).getBytes(java.nio.charset.StandardCharsets.UTF_8), AES_KEY_BYTES);
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] buffer = new byte[64 * 1024];
+        for (int n; (n = plaintext.read(buffer)) > 0; ) mac.update(buffer, 0, n);
+        return version + ":" + java.util.HexFormat.of().formatHex(mac.doFinal());
+    }
+
+    /** Wraps a DEK under the current server KEK. Returns Base64(header || iv || ciphertext). */
+    public String wrapDekForServer(String emailHash, byte[] dek) throws Exception {
+        return timed(wrapTimer, () -> {
+            int version = currentServerKekVersion();
+            byte[] sealed = VersionedCiphertext.seal(version, deriveServerKek(emailHash, version), dek);
+            return Base64.getEncoder().encodeToString(sealed);
+        });
+    }
+
+    /**
+     * Unwraps a server-wrapped DEK with the KEK named in its header. Legacy untagged values
+     * use the version recorded alongside them (vault_files.server_kek_version).
+     */
+    public byte[] unwrapDekForServer(String emailHash, String wrappedBase64, int version) throws Exception {
+        return timed(unwrapTimer, () -> unwrapDekForServerUntimed(emailHash, wrappedBase64, version));
+    }
+
+    private byte[] unwrapDekForServerUntimed(String emailHash, String wrappedBase64, int version) throws Exception {
+        byte[] data = Base64.getDecoder().decode(wrappedBase64);
+        int keyId = VersionedCiphertext.keyId(data);
+        if (keyId >= 0 && MasterKeyRing.serverKeks().contains(keyId)) {
+            try {
+                return VersionedCiphertext.open(deriveServerKek(emailHash, keyId), data, true);
+            } catch (AEADBadTagException e) {
+                // legacy value whose random IV happens to look like a header — fall through
+            }
+        }
+        return VersionedCiphertext.open(deriveServerKek(emailHash, version), data, false);
+    }
+
+    /** True when a server-wrapped DEK is not yet tagged with the current server KEK. */
+    public boolean needsServerRewrap(String wrappedBase64) {
+        return VersionedCiphertext.keyId(Base64.getDecoder().decode(wrappedBase64)) != currentServerKekVersion();
+    }
+
+    /**
+     * Short fingerprint of the current key generation (current key ids and key material).
+     * Rotation checkpoints are tied to it so a new rotation restarts its scan from the beginning.
+     */
+    public String keyGenerationFingerprint() throws Exception {
+        MasterKeyRing columnKeys = MasterKeyRing.columnKeys();
+        MasterKeyRing serverKeks = MasterKeyRing.serverKeks();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(("col-" + columnKeys.currentKeyId() + "|kek-" + serverKeks.currentKeyId())
+                .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        digest.update(columnKeys.currentKey());
+        digest.update(serverKeks.currentKey());
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
     }
 
     public String encodeKey(Key key) {
@@ -233,4 +584,44 @@ public class CryptoService {
         public String getCiphertextBase64() { return ciphertextBase64; }
         public String getIvBase64() { return ivBase64; }
     }
+
+    /**
+     * A DEK wrap target for wrapDekForRecipients: either an X25519 public key with its HKDF
+     * salt/info, or the server KEK for an emailHash.
+     */
+    public static final class WrapRecipient {
+        private final String publicKeyBase64;
+        private final byte[] salt;
+        private final byte[] info;
+        private final String emailHash;
+
+        private WrapRecipient(String publicKeyBase64, byte[] salt, byte[] info, String emailHash) {
+            this.publicKeyBase64 = publicKeyBase64;
+            this.salt = salt;
+            this.info = info;
+            this.emailHash = emailHash;
+        }
+
+        public static WrapRecipient x25519(String publicKeyBase64, byte[] hkdfSalt, byte[] hkdfInfo) {
+            return new WrapRecipient(publicKeyBase64, hkdfSalt, hkdfInfo, null);
+        }
+
+        public static WrapRecipient server(String emailHash) {
+            return new WrapRecipient(null, null, null, emailHash);
+        }
+    }
+
+    // Raw (non-Base64) holder for encryptDetached
+    public static class EncryptedParts {
+        private final byte[] iv;
+        private final byte[] ciphertext;
+
+        public EncryptedParts(byte[] iv, byte[] ciphertext) {
+            this.iv = iv;
+            this.ciphertext = ciphertext;
+        }
+
+        public byte[] getIv() { return iv; }
+        public byte[] getCiphertext() { return ciphertext; }
+    }
 }
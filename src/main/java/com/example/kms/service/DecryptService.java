@@ -1,16 +1,12 @@
 package com.example.kms.service;
 
 import com.example.kms.model.Client;
-import com.example.kms.model.EncryptedData;
 import com.example.kms.repository.ClientRepository;
+import com.example.kms.repository.EncryptedDataKeys;
 import com.example.kms.repository.EncryptedDataRepository;
 import com.example.kms.util.HashUtil;
 import org.springframework.stereotype.Service;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Base64;
@@ -21,16 +17,18 @@ public class DecryptService {
     private final ClientRepository clientRepository;
     private final EncryptedDataRepository encryptedDataRepository;
     private final CryptoService cryptoService;
+    private final MemoryBudgetService memoryBudgetService;
 
-    private static final int GCM_TAG_BITS = 128;
     private static final int AES_KEY_BYTES = 32; // 256-bit
 
     public DecryptService(ClientRepository clientRepository,
                           EncryptedDataRepository encryptedDataRepository,
-                          CryptoService cryptoService) {
+                          CryptoService cryptoService,
+                          MemoryBudgetService memoryBudgetService) {
         this.clientRepository = clientRepository;
         this.encryptedDataRepository = encryptedDataRepository;
         this.cryptoService = cryptoService;
+        this.memoryBudgetService = memoryBudgetService;
     }
 
 public DecryptResult decryptRecord(String rawEmail,
@@ -56,7 +54,8 @@ public DecryptResult decryptRecord(String rawEmail,
         throw new IllegalArgumentException("Server public key mismatch. Please enter the correct server key");
     }
 
-    EncryptedData ed = encryptedDataRepository.findById(recordId)
+    // Keys only: the payload is read separately below, never into the entity
+    EncryptedDataKeys ed = encryptedDataRepository.findKeysById(recordId)
             .orElseThrow(() -> new IllegalArgumentException("record not found"));
 
     // 1) parse provided client public key
@@ -67,55 +66,30 @@ public DecryptResult decryptRecord(String rawEmail,
     byte[] shared = cryptoService.computeSharedSecret(serverPrivate, clientPub); // 32 bytes
 
     // 3) derive KEK via HKDF using stored salt and same info used at wrap time
-    byte[] salt = Base64.getDecoder().decode(ed.getSalt());
-    String infoStr = "KMS-v1|unwrap-dek|phone:" + client.getPhone() + "|record:" + ed.getId();
+    byte[] salt = Base64.getDecoder().decode(ed.salt());
+    String infoStr = "KMS-v1|unwrap-dek|phone:" + client.getPhone() + "|record:" + ed.id();
     byte[] info = infoStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
 
     byte[] kek = cryptoService.deriveKey(salt, shared, info, AES_KEY_BYTES);
 
-    // 4) unwrap DEK
-    String wrappedDekBase64 = ed.getDekWrapped();
-    byte[] dek = aesGcmDecryptToBytes(kek, wrappedDekBase64);
+    // 4) unwrap DEK (stored as raw iv||ciphertext)
+    byte[] dek = cryptoService.aesGcmDecryptBytes(kek, ed.dekWrapped());
 
-    // 5) decrypt payload using DEK and stored IV
-    byte[] plaintextBytes = decryptWithAesGcm(dek, ed.getIv(), ed.getEncryptedPayload());
+    // 5) stream the payload column into the decrypt, reserving ciphertext + plaintext once its size is known
+    byte[] iv = Base64.getDecoder().decode(ed.iv());
+    byte[] plaintextBytes = encryptedDataRepository.readPayload(recordId, (payload, length) -> {
+        try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(2 * length)) {
+            return cryptoService.aesGcmDecryptDetached(dek, iv, payload, length);
+        }
+    });
 
     DecryptResult result = new DecryptResult();
-    result.setDataType(ed.getDataType().name());
+    result.setDataType(ed.dataType().name());
     result.setPlaintextBytes(plaintextBytes);
     return result;
 }
 
 
-    private byte[] decryptWithAesGcm(byte[] dek, String ivBase64, String ciphertextBase64) throws Exception {
-        byte[] iv = Base64.getDecoder().decode(ivBase64);
-        byte[] ct = Base64.getDecoder().decode(ciphertextBase64);
-
-        SecretKeySpec key = new SecretKeySpec(dek, 0, Math.min(dek.length, 32), "AES");
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, spec);
-        return cipher.doFinal(ct);
-    }
-
-    private byte[] aesGcmDecryptToBytes(byte[] kek, String base64IvCt) throws Exception {
-        byte[] all = Base64.getDecoder().decode(base64IvCt);
-
-        if (all.length > 12 + 16) {
-            byte[] iv = new byte[12];
-            System.arraycopy(all, 0, iv, 0, 12);
-            byte[] ct = new byte[all.length - 12];
-            System.arraycopy(all, 12, ct, 0, ct.length);
-
-            SecretKeySpec key = new SecretKeySpec(kek, 0, Math.min(kek.length, 32), "AES");
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
-            return cipher.doFinal(ct);
-        } else {
-            throw new IllegalArgumentException("Wrapped DEK format not supported (missing IV)");
-        }
-    }
-
     public static class DecryptResult {
         private byte[] plaintextBytes;
         private String dataType;
@@ -11,15 +11,19 @@ import org.docx4j.fonts.Mapper;
 import org.docx4j.fonts.PhysicalFonts;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.time.LocalDateTime;
 import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
@@ -33,8 +37,30 @@ public class DocumentService {
     @Autowired
     private CryptoService cryptoService;
 
+    @Autowired
+    private SupabaseStorageService supabaseStorageService;
+
+    @Autowired
+    private MemoryBudgetService memoryBudgetService;
+
+    @Autowired
+    private BlobGcService blobGcService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${supabase.storage.bucket}")
+    private String bucket;
+
     @Transactional
     public Document storeDocument(MultipartFile file, Client owner) throws Exception {
+        // The body and its ciphertext are both held in memory
+        try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(2 * file.getSize())) {
+            return storeDocumentBudgeted(file, owner);
+        }
+    }
+
+    private Document storeDocumentBudgeted(MultipartFile file, Client owner) throws Exception {
         byte[] originalBytes = file.getBytes();
         String filename = file.getOriginalFilename();
         String contentType = file.getContentType();
@@ -43,7 +69,7 @@ public class DocumentService {
         byte[] dek = cryptoService.randomBytes(32);
 
         // 2. Encrypt the file content with DEK
-        CryptoService.EncryptResult encryptedContent = cryptoService.encryptAndSplit(dek, originalBytes);
+        CryptoService.EncryptedParts encryptedContent = cryptoService.encryptDetached(dek, originalBytes);
 
         // 3. Wrap the DEK with Server's Public Key (so server can decrypt later for
         // conversion)
@@ -80,10 +106,9 @@ public class DocumentService {
         doc.setOriginalSize(file.getSize());
         doc.setGuest(owner == null);
 
-        // Store encrypted data
-        byte[] encryptedBytes = Base64.getDecoder().decode(encryptedContent.getCiphertextBase64());
-        doc.setData(encryptedBytes);
-        doc.setIv(encryptedContent.getIvBase64());
+        // Store encrypted body in the object store; the row only keeps metadata and key material
+        doc.setStorageKey(putEncryptedBody(encryptedContent.getCiphertext(), owner));
+        doc.setIv(Base64.getEncoder().encodeToString(encryptedContent.getIv()));
         doc.setEncryptedDek(wrappedDek);
 
         // We should store salt/info if we want to unwrap.
@@ -95,13 +120,15 @@ public class DocumentService {
         String saltBase64 = Base64.getEncoder().encodeToString(salt);
         doc.setEncryptedDek(saltBase64 + ":" + wrappedDek);
 
-        return documentRepository.save(doc);
+        return saveOrTombstone(doc);
     }
 
     public byte[] retrieveDocumentBytes(UUID documentId) throws Exception {
         Document doc = documentRepository.findById(documentId)
                 .orElseThrow(() -> new RuntimeException("Document not found"));
-        return decryptDocument(doc);
+        try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(2 * doc.getOriginalSize())) {
+            return decryptDocument(doc);
+        }
     }
 
     private byte[] decryptDocument(Document doc) throws Exception {
@@ -124,22 +151,13 @@ public class DocumentService {
                 salt,
                 info);
 
-        // Decrypt content
+        // Decrypt content (bodies live in the object store; legacy rows still carry them inline)
         byte[] iv = Base64.getDecoder().decode(doc.getIv());
-        byte[] content = doc.getData();
-
-        // The CryptoService expects iv||ciphertext for `aesGcmDecryptBytes`?
-        // Let's check CryptoService.aesGcmDecryptBytes:
-        // "public byte[] aesGcmDecryptBytes(byte[] key, byte[] ivAndCiphertext)"
-        // It expects IV prepended.
+        byte[] content = doc.getStorageKey() != null
+                ? supabaseStorageService.getObject(bucket, doc.getStorageKey())
+                : doc.getData();
 
-        // Need to combine IV + Content
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(iv);
-        baos.write(content);
-        byte[] ivAndCiphertext = baos.toByteArray();
-
-        return cryptoService.aesGcmDecryptBytes(dek, ivAndCiphertext);
+        return cryptoService.aesGcmDecryptDetached(dek, iv, content);
     }
 
     public Document convertDocument(UUID documentId, String targetFormat) throws Exception {
@@ -152,6 +170,13 @@ public class DocumentService {
             // If the request is for PDF, proceed.
         }
 
+        // Ciphertext and plaintext of the source, then the PDF and its ciphertext
+        try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(4 * originalDoc.getOriginalSize())) {
+            return convertDecrypted(originalDoc);
+        }
+    }
+
+    private Document convertDecrypted(Document originalDoc) throws Exception {
         // 2. Decrypt
         byte[] docxBytes = decryptDocument(originalDoc);
 
@@ -185,7 +210,7 @@ public class DocumentService {
     // Helper to store raw bytes
     private Document storeBytes(byte[] data, String filename, String contentType, Client owner) throws Exception {
         byte[] dek = cryptoService.randomBytes(32);
-        CryptoService.EncryptResult encryptedContent = cryptoService.encryptAndSplit(dek, data);
+        CryptoService.EncryptedParts encryptedContent = cryptoService.encryptDetached(dek, data);
 
         String serverPubKeyBase64 = cryptoService.getServerPublicKeyBase64();
         byte[] salt = cryptoService.randomBytes(16);
@@ -205,11 +230,44 @@ public class DocumentService {
         doc.setOriginalSize(data.length);
         doc.setGuest(owner == null);
 
-        doc.setData(Base64.getDecoder().decode(encryptedContent.getCiphertextBase64()));
-        doc.setIv(encryptedContent.getIvBase64());
+        doc.setStorageKey(putEncryptedBody(encryptedContent.getCiphertext(), owner));
+        doc.setIv(Base64.getEncoder().encodeToString(encryptedContent.getIv()));
         doc.setEncryptedDek(Base64.getEncoder().encodeToString(salt) + ":" + wrappedDek);
 
-        return documentRepository.save(doc);
+        return saveOrTombstone(doc);
+    }
+
+    // Helper to upload an encrypted body and return its storage key
+    private String putEncryptedBody(byte[] ciphertext, Client owner) {
+        String ownerSegment = owner != null ? owner.getEmailHash() : "guest";
+        String storageKey = "documents/" + ownerSegment + "/" + UUID.randomUUID();
+        supabaseStorageService.putObject(bucket, storageKey, ciphertext, "application/octet-stream");
+        return storageKey;
+    }
+
+    // Saves a document whose body is already stored, tombstoning the body if the row never commits:
+    // when the surrounding transaction rolls back, or when the save fails outside one
+    private Document saveOrTombstone(Document doc) {
+        List<String> storageKey = List.of(doc.getStorageKey());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) return;
+                    // The finished transaction's connection is still bound here, so write in a new one
+                    TransactionTemplate requiresNew = new TransactionTemplate(transactionManager);
+                    requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+                    requiresNew.executeWithoutResult(tx -> blobGcService.tombstone(storageKey));
+                }
+            });
+            return documentRepository.save(doc);
+        }
+        try {
+            return documentRepository.save(doc);
+        } catch (RuntimeException e) {
+            blobGcService.tombstone(storageKey);
+            throw e;
+        }
     }
 
     public List<Document> getDocumentsForClient(Client client) {
@@ -219,12 +277,4 @@ public class DocumentService {
     public Document getDocument(UUID id) {
         return documentRepository.findById(id).orElse(null);
     }
-
-    // Cleanup Task: Runs every minute
-    @Scheduled(fixedRate = 60000)
-    @Transactional
-    public void deleteExpiredGuestDocuments() {
-        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(30);
-        documentRepository.deleteByCreatedAtBeforeAndIsGuestTrue(cutoff);
-    }
 }
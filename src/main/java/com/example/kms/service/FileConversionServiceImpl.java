@@ -8,6 +8,8 @@ import com.example.kms.model.*;
 import com.example.kms.repository.ClientRepository;
 import com.example.kms.repository.ConversionJobRepository;
 import com.example.kms.repository.VaultFileRepository;
+import com.example.kms.util.BufferArena;
+import com.example.kms.util.PayloadCodec;
 import org.apache.pdfbox.Loader;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
@@ -23,6 +25,8 @@ import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 import com.lowagie.text.Document;
 import com.lowagie.text.Paragraph;
 import com.lowagie.text.pdf.PdfWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import ws.schild.jave.Encoder;
 import ws.schild.jave.MultimediaObject;
 import ws.schild.jave.encode.AudioAttributes;
@@ -35,7 +39,9 @@ import org.springframework.web.multipart.MultipartFile;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -53,7 +59,11 @@ public class FileConversionServiceImpl implements FileConversionService {
     private final CryptoService cryptoService;
     private final SupabaseStorageService supabaseStorageService;
     private final GuestCacheService guestCacheService;
+    private final StorageQuotaService storageQuotaService;
+    private final MemoryBudgetService memoryBudgetService;
+    private final ChunkedBlobService chunkedBlobService;
     private final Executor cryptoExecutor;
+    private final MeterRegistry meterRegistry;
 
     @Value("${supabase.storage.bucket}")
     private String bucket;
@@ -65,14 +75,22 @@ public class FileConversionServiceImpl implements FileConversionService {
             CryptoService cryptoService,
             SupabaseStorageService supabaseStorageService,
             GuestCacheService guestCacheService,
-            @Qualifier("cryptoExecutor") Executor cryptoExecutor) {
+            StorageQuotaService storageQuotaService,
+            MemoryBudgetService memoryBudgetService,
+            ChunkedBlobService chunkedBlobService,
+            @Qualifier("cryptoExecutor") Executor cryptoExecutor,
+            MeterRegistry meterRegistry) {
         this.conversionJobRepository = conversionJobRepository;
         this.vaultFileRepository = vaultFileRepository;
         this.clientRepository = clientRepository;
         this.cryptoService = cryptoService;
         this.supabaseStorageService = supabaseStorageService;
         this.guestCacheService = guestCacheService;
+        this.storageQuotaService = storageQuotaService;
+        this.memoryBudgetService = memoryBudgetService;
+        this.chunkedBlobService = chunkedBlobService;
         this.cryptoExecutor = cryptoExecutor;
+        this.meterRegistry = meterRegistry;
     }
 
     // -------------------------------------------------------------------------
@@ -90,7 +108,9 @@ public class FileConversionServiceImpl implements FileConversionService {
         ConversionJob saved = conversionJobRepository.save(job);
 
         CompletableFuture.runAsync(() -> {
-            try {
+            // Peak: input, converted output (budgeted at the input's size) and its ciphertext
+            long inMemory = 3 * file.getSize();
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(inMemory)) {
                 // Update to PROCESSING
                 saved.setStatus(JobStatus.PROCESSING);
                 conversionJobRepository.save(saved);
@@ -105,13 +125,8 @@ public class FileConversionServiceImpl implements FileConversionService {
                 byte[] tempDek = cryptoService.randomBytes(32);
                 byte[] encryptedOutput = cryptoService.aesGcmEncryptBytes(tempDek, converted);
 
-                // Extract IV (first 12 bytes) and encode as Base64
-                byte[] ivBytes = new byte[12];
-                System.arraycopy(encryptedOutput, 0, ivBytes, 0, 12);
-                String ivBase64 = Base64.getEncoder().encodeToString(ivBytes);
-
-                // Store in guest cache
-                String token = guestCacheService.store(encryptedOutput, tempDek, ivBase64, Duration.ofMinutes(30));
+                // Store in guest cache (iv||ciphertext; the temp DEK is kept in memory only)
+                String token = guestCacheService.store(encryptedOutput, tempDek, Duration.ofMinutes(30));
 
                 // Update job to DONE
                 saved.setStatus(JobStatus.DONE);
@@ -142,20 +157,34 @@ public class FileConversionServiceImpl implements FileConversionService {
         ConversionJob saved = conversionJobRepository.save(job);
 
         CompletableFuture.runAsync(() -> {
-            try {
+            long reservedBytes = 0;
+            // Peak: source ciphertext (and its deflated payload) and plaintext, converted output and its ciphertext
+            long inMemory = sourceFile.getEncryptedSize() + 3 * sourceFile.getOriginalSize()
+                    + (sourceFile.getCompression() == Compression.DEFLATE ? sourceFile.getEncryptedSize() : 0);
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(inMemory)) {
                 saved.setStatus(JobStatus.PROCESSING);
                 conversionJobRepository.save(saved);
 
-                // Fetch encrypted blob from Supabase
-                byte[] encryptedBlob = supabaseStorageService.getObject(bucket, sourceFile.getStorageKey());
-
-                // Unwrap server DEK
-                byte[] serverKek = cryptoService.deriveServerKek(emailHash);
-                byte[] wrappedDekBytes = Base64.getDecoder().decode(sourceFile.getDekWrappedServer());
-                byte[] dek = cryptoService.aesGcmDecryptBytes(serverKek, wrappedDekBytes);
-
-                // Decrypt source file
-                byte[] plaintext = cryptoService.aesGcmDecryptBytes(dek, encryptedBlob);
+                // Unwrap server DEK under the KEK version it was wrapped with
+                byte[] dek = cryptoService.unwrapDekForServer(
+                        emailHash, sourceFile.getDekWrappedServer(), sourceFile.getServerKekVersion());
+
+                // Fetch the source from Supabase and decrypt it
+                byte[] plaintext;
+                if (sourceFile.getBlobFormat() == BlobFormat.GCM_CHUNKED) {
+                    try (BufferArena.Lease lease = chunkedBlobService.read(sourceFile.getStorageKey(), dek)) {
+                        plaintext = new byte[lease.buffer().remaining()];
+                        lease.buffer().get(plaintext);
+                    }
+                } else {
+                    byte[] encryptedBlob = supabaseStorageService.getObject(bucket, sourceFile.getStorageKey());
+                    plaintext = cryptoService.decryptBlob(sourceFile.getBlobFormat(), dek, encryptedBlob);
+                    if (sourceFile.getCompression() == Compression.DEFLATE) {
+                        byte[] inflated = new byte[Math.toIntExact(sourceFile.getOriginalSize())];
+                        PayloadCodec.inflate(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(inflated));
+                        plaintext = inflated;
+                    }
+                }
 
                 // Determine source format from content type
                 String srcFormat = formatFromMimeType(sourceFile.getContentType());
@@ -164,26 +193,22 @@ public class FileConversionServiceImpl implements FileConversionService {
                 // Convert
                 byte[] converted = convertBytes(plaintext, srcFormat, tgt);
 
-                // Re-encrypt with new DEK
+                // Re-encrypt with new DEK (segmented, so large results are sealed across cores)
                 byte[] newDek = cryptoService.randomBytes(32);
-                byte[] newEncryptedBlob = cryptoService.aesGcmEncryptBytes(newDek, converted);
+                byte[] newEncryptedBlob = cryptoService.aesGcmEncryptSegmented(newDek, converted);
 
-                // Wrap new DEK for server
-                byte[] newServerKek = cryptoService.deriveServerKek(emailHash);
-                byte[] wrappedNewDekBytes = cryptoService.aesGcmEncryptBytes(newServerKek, newDek);
-                String dekWrappedServer = Base64.getEncoder().encodeToString(wrappedNewDekBytes);
-
-                // Wrap new DEK for client
+                // Wrap new DEK for server and client in one pass
                 Client client = clientRepository.findByEmailHash(emailHash)
                         .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
                 byte[] salt = cryptoService.randomBytes(16);
                 String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
-                String dekWrappedClient = cryptoService.wrapDekForRecipient(
+                List<byte[]> wrapped = cryptoService.wrapDekForRecipients(
                         newDek,
                         cryptoService.getServerPrivateKey(),
-                        client.getPublicKey(),
-                        salt,
-                        info.getBytes());
+                        List.of(CryptoService.WrapRecipient.server(emailHash),
+                                CryptoService.WrapRecipient.x25519(client.getPublicKey(), salt, info.getBytes())));
+                String dekWrappedServer = Base64.getEncoder().encodeToString(wrapped.get(0));
+                String dekWrappedClient = Base64.getEncoder().encodeToString(wrapped.get(1));
 
                 // Build result filename
                 String originalName = sourceFile.getFilename();
@@ -192,13 +217,13 @@ public class FileConversionServiceImpl implements FileConversionService {
                         : originalName;
                 String resultFilename = baseName + "." + tgt;
 
-                // Extract IV
-                byte[] ivBytes = new byte[12];
-                System.arraycopy(newEncryptedBlob, 0, ivBytes, 0, 12);
-                String ivBase64 = Base64.getEncoder().encodeToString(ivBytes);
+                // Segmented blobs carry a nonce per segment, so there is no blob-level IV
+                String ivBase64 = "";
                 String saltBase64 = Base64.getEncoder().encodeToString(salt);
 
-                // Store in Supabase
+                // Charge the result against the owner's storage quota, then store in Supabase
+                storageQuotaService.reserve(emailHash, newEncryptedBlob.length);
+                reservedBytes = newEncryptedBlob.length;
                 String storageKey = "vault/" + emailHash + "/" + UUID.randomUUID();
                 String resultMimeType = mimeTypeFromFormat(tgt);
                 supabaseStorageService.putObject(bucket, storageKey, newEncryptedBlob, resultMimeType);
@@ -213,13 +238,17 @@ public class FileConversionServiceImpl implements FileConversionService {
                         .storageKey(storageKey)
                         .originalSize(converted.length)
                         .encryptedSize(newEncryptedBlob.length)
+                        .blobSha256(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(newEncryptedBlob)))
+                        .blobFormat(BlobFormat.GCM_SEGMENTED)
                         .dekWrappedClient(dekWrappedClient)
                         .dekWrappedServer(dekWrappedServer)
+                        .serverKekVersion(cryptoService.currentServerKekVersion())
                         .iv(ivBase64)
                         .salt(saltBase64)
                         .guest(false)
                         .build();
                 VaultFile savedResult = vaultFileRepository.save(resultFile);
+                reservedBytes = 0; // now owned by the saved VaultFile
 
                 // Update job to DONE
                 saved.setStatus(JobStatus.DONE);
@@ -227,6 +256,7 @@ public class FileConversionServiceImpl implements FileConversionService {
                 saved.setCompletedAt(LocalDateTime.now());
                 conversionJobRepository.save(saved);
             } catch (Exception e) {
+                storageQuotaService.release(emailHash, reservedBytes);
                 saved.setStatus(JobStatus.FAILED);
                 saved.setErrorMessage(e.getMessage());
                 conversionJobRepository.save(saved);
@@ -256,6 +286,32 @@ public class FileConversionServiceImpl implements FileConversionService {
         String src = sourceFormat.toLowerCase().trim();
         String tgt = targetFormat.toLowerCase().trim();
 
+        Timer.Sample sample = Timer.start(meterRegistry);
+        byte[] converted;
+        try {
+            converted = routeConversion(input, src, tgt);
+        } catch (UnsupportedConversionException e) {
+            // Not recorded: unsupported pairs come straight from user input and would make tags unbounded
+            throw e;
+        } catch (Exception e) {
+            sample.stop(conversionTimer(src, tgt, "error"));
+            throw e;
+        }
+        sample.stop(conversionTimer(src, tgt, "success"));
+        return converted;
+    }
+
+    private Timer conversionTimer(String src, String tgt, String outcome) {
+        return Timer.builder("kms.conversion")
+                .description("File conversion latency by source and target format")
+                .tag("source", src)
+                .tag("target", tgt)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private byte[] routeConversion(byte[] input, String src, String tgt) throws Exception {
         // Document conversions
         if (src.equals("docx") && tgt.equals("pdf")) return docxToPdf(input);
         if (src.equals("pdf") && tgt.equals("docx")) return pdfToDocx(input);
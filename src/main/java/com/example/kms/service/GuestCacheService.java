@@ -3,7 +3,8 @@ package com.example.kms.service;
 import java.time.Duration;
 
 public interface GuestCacheService {
-    String store(byte[] encryptedBytes, byte[] tempDek, String iv, Duration ttl);
+    /** Caches a guest result (iv||ciphertext under tempDek) and returns its one-time download token. */
+    String store(byte[] ivAndCiphertext, byte[] tempDek, Duration ttl);
     byte[] retrieveAndConsume(String downloadToken) throws Exception;
     void purgeExpired();
 }
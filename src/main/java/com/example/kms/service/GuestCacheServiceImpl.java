@@ -1,100 +1,200 @@
 package com.example.kms.service;
 
 import com.example.kms.exception.GuestTokenExpiredException;
-import com.example.kms.model.FileCategory;
-import com.example.kms.model.VaultFile;
-import com.example.kms.repository.VaultFileRepository;
+import com.example.kms.exception.StorageUnavailableException;
+import com.example.kms.util.Drbg;
+import com.example.kms.util.TimerWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.security.SecureRandom;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.Base64;
-import java.util.List;
-
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Guest conversion results, kept out of vault_files.
+ *
+ * Ciphertext (iv||ct under a per-result temp DEK) goes to a local spool directory; the token →
+ * (file, DEK, expiry) index lives only in memory, so a spooled file is unreadable without the
+ * process that wrote it. Expiry runs on a one-second timer wheel and consume removes the index
+ * entry in one step, so a token can be redeemed at most once.
+ *
+ * Results are node-local: guest downloads must reach the node that ran the conversion
+ * (sticky routing), and a restart drops outstanding results (they live for minutes).
+ */
 @Service
 public class GuestCacheServiceImpl implements GuestCacheService {
 
-    private final VaultFileRepository vaultFileRepository;
-    private final CryptoService cryptoService;
-    private final SecureRandom secureRandom = new SecureRandom();
+    private static final Logger LOG = Logger.getLogger(GuestCacheServiceImpl.class.getName());
 
-    public GuestCacheServiceImpl(VaultFileRepository vaultFileRepository, CryptoService cryptoService) {
-        this.vaultFileRepository = vaultFileRepository;
+    private final CryptoService cryptoService;
+    private final MemoryBudgetService memoryBudgetService;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final TimerWheel<String> expiryWheel = new TimerWheel<>(Duration.ofSeconds(1), 512);
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final Timer storeTimer;
+    private final Timer consumeTimer;
+    private final Counter consumeMisses;
+    private final Counter expirations;
+
+    @Value("${app.guest-cache.dir:${java.io.tmpdir}/kms-guest-cache}")
+    private Path spoolDir;
+
+    public GuestCacheServiceImpl(CryptoService cryptoService, MemoryBudgetService memoryBudgetService,
+                                 MeterRegistry meterRegistry) {
         this.cryptoService = cryptoService;
+        this.memoryBudgetService = memoryBudgetService;
+        this.storeTimer = Timer.builder("kms.guest.cache")
+                .description("Guest result cache latency")
+                .tag("op", "store")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.consumeTimer = Timer.builder("kms.guest.cache")
+                .description("Guest result cache latency")
+                .tag("op", "consume")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.consumeMisses = Counter.builder("kms.guest.cache.misses")
+                .description("Guest downloads rejected as missing, consumed or expired")
+                .register(meterRegistry);
+        this.expirations = Counter.builder("kms.guest.cache.expired")
+                .description("Guest results removed unclaimed after their TTL")
+                .register(meterRegistry);
+        Gauge.builder("kms.guest.cache.entries", index, Map::size)
+                .description("Guest results waiting to be downloaded")
+                .register(meterRegistry);
+        Gauge.builder("kms.guest.cache.bytes", cachedBytes, AtomicLong::get)
+                .description("Ciphertext bytes held in the guest spool directory")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(spoolDir);
+        // Files left by a previous process can't be decrypted any more (their DEKs were in memory)
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
     }
 
     @Override
-    public String store(byte[] encryptedBytes, byte[] tempDek, String iv, Duration ttl) {
+    public String store(byte[] ivAndCiphertext, byte[] tempDek, Duration ttl) {
+        Timer.Sample sample = Timer.start();
+        try {
+            return storeUntimed(ivAndCiphertext, tempDek, ttl);
+        } finally {
+            sample.stop(storeTimer);
+        }
+    }
+
+    private String storeUntimed(byte[] ivAndCiphertext, byte[] tempDek, Duration ttl) {
         // Generate 32-byte hex download token
-        byte[] tokenBytes = new byte[32];
-        secureRandom.nextBytes(tokenBytes);
+        byte[] tokenBytes = Drbg.nextBytes(32);
         StringBuilder sb = new StringBuilder(64);
         for (byte b : tokenBytes) {
             sb.append(String.format("%02x", b));
         }
         String downloadToken = sb.toString();
 
-        VaultFile guestFile = VaultFile.builder()
-                .guest(true)
-                .guestSessionToken(downloadToken)
-                .expiresAt(LocalDateTime.now().plus(ttl))
-                .storageKey("guest-cache/" + downloadToken)
-                .dekWrappedServer(Base64.getEncoder().encodeToString(encryptedBytes))
-                .dekWrappedClient(Base64.getEncoder().encodeToString(tempDek))
-                .iv(iv)
-                .filename("guest-conversion")
-                .contentType("application/octet-stream")
-                .category(FileCategory.DOCUMENT)
-                .originalSize(encryptedBytes.length)
-                .encryptedSize(encryptedBytes.length)
-                .salt("")
-                .build();
-
-        vaultFileRepository.save(guestFile);
+        // The spool file name is unrelated to the token, so a directory listing reveals nothing
+        Path file = spoolDir.resolve(UUID.randomUUID().toString());
+        try {
+            Files.write(file, ivAndCiphertext, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new StorageUnavailableException("Failed to spool guest result", e);
+        }
+        cachedBytes.addAndGet(ivAndCiphertext.length);
+
+        index.put(downloadToken, new Entry(file, tempDek.clone(), ivAndCiphertext.length,
+                System.currentTimeMillis() + ttl.toMillis()));
+        expiryWheel.schedule(downloadToken, ttl);
         return downloadToken;
     }
 
     @Override
     public byte[] retrieveAndConsume(String downloadToken) throws Exception {
-        VaultFile guestFile = vaultFileRepository.findByGuestSessionToken(downloadToken)
-                .orElseThrow(() -> new GuestTokenExpiredException("Guest download token not found or already consumed"));
-
-        if (guestFile.getGuestSessionToken() == null) {
-            throw new GuestTokenExpiredException("Guest download token already consumed");
+        Timer.Sample sample = Timer.start();
+        try {
+            return retrieveAndConsumeUntimed(downloadToken);
+        } catch (GuestTokenExpiredException e) {
+            consumeMisses.increment();
+            throw e;
+        } finally {
+            sample.stop(consumeTimer);
         }
+    }
 
-        if (guestFile.getExpiresAt() != null && guestFile.getExpiresAt().isBefore(LocalDateTime.now())) {
-            throw new GuestTokenExpiredException("Guest download token has expired");
+    private byte[] retrieveAndConsumeUntimed(String downloadToken) throws Exception {
+        Entry peeked = index.get(downloadToken);
+        if (peeked == null) {
+            throw new GuestTokenExpiredException("Guest download token not found or already consumed");
+        }
+        // Reserve before consuming, so a busy server leaves the token redeemable for a retry.
+        // The spooled ciphertext and its plaintext are both read into memory.
+        try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(2 * peeked.size())) {
+            // Removing the entry is the consume: a second redeem of the same token finds nothing
+            Entry entry = index.remove(downloadToken);
+            if (entry == null) {
+                throw new GuestTokenExpiredException("Guest download token not found or already consumed");
+            }
+            try {
+                if (entry.expiresAtMillis() < System.currentTimeMillis()) {
+                    throw new GuestTokenExpiredException("Guest download token has expired");
+                }
+                byte[] ivAndCiphertext = Files.readAllBytes(entry.file());
+                return cryptoService.aesGcmDecryptBytes(entry.dek(), ivAndCiphertext);
+            } finally {
+                discard(entry);
+            }
         }
-
-        byte[] tempDek = Base64.getDecoder().decode(guestFile.getDekWrappedClient());
-        byte[] encryptedBytes = Base64.getDecoder().decode(guestFile.getDekWrappedServer());
-        String ivStr = guestFile.getIv();
-
-        // Reconstruct iv||ciphertext for aesGcmDecryptBytes
-        byte[] ivBytes = Base64.getDecoder().decode(ivStr);
-        byte[] ivAndCiphertext = new byte[ivBytes.length + encryptedBytes.length];
-        System.arraycopy(ivBytes, 0, ivAndCiphertext, 0, ivBytes.length);
-        System.arraycopy(encryptedBytes, 0, ivAndCiphertext, ivBytes.length, encryptedBytes.length);
-
-        byte[] plaintext = cryptoService.aesGcmDecryptBytes(tempDek, ivAndCiphertext);
-
-        // Invalidate token (one-time use)
-        guestFile.setGuestSessionToken(null);
-        vaultFileRepository.save(guestFile);
-
-        return plaintext;
     }
 
+    /** Advances the expiry wheel one tick and drops every result whose TTL has passed. */
     @Override
-    @Scheduled(fixedRate = 300_000)
+    @Scheduled(fixedRate = 1_000)
     public void purgeExpired() {
-        List<VaultFile> expired = vaultFileRepository.findByExpiresAtBefore(LocalDateTime.now());
-        List<VaultFile> expiredGuests = expired.stream()
-                .filter(VaultFile::isGuest)
-                .toList();
-        vaultFileRepository.deleteAll(expiredGuests);
+        expiryWheel.advance(token -> {
+            Entry entry = index.get(token);
+            if (entry == null) return; // already consumed
+            long remaining = entry.expiresAtMillis() - System.currentTimeMillis();
+            if (remaining > 0) {
+                expiryWheel.schedule(token, Duration.ofMillis(remaining));
+            } else if (index.remove(token, entry)) {
+                discard(entry);
+                expirations.increment();
+            }
+        });
     }
+
+    private void discard(Entry entry) {
+        Arrays.fill(entry.dek(), (byte) 0);
+        try {
+            if (Files.deleteIfExists(entry.file())) {
+                cachedBytes.addAndGet(-entry.size());
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete guest spool file " + entry.file(), e);
+        }
+    }
+
+    private record Entry(Path file, byte[] dek, long size, long expiresAtMillis) {}
 }
@@ -0,0 +1,9 @@
+package com.example.kms.service;
+
+/**
+ * Deletes expired guest data (guest vault_files rows and guest documents with their blobs)
+ * in bounded, index-backed batches on whichever node holds the purge lease.
+ */
+public interface GuestPurgeService {
+    void purgeExpired();
+}
@@ -0,0 +1,185 @@
+package com.example.kms.service;
+
+import com.example.kms.exception.StorageUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Array;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the old per-minute findAll-then-delete sweep.
+ *
+ * Each run walks guest rows in (timestamp, id) keyset order over the partial indexes from V7,
+ * batchSize rows at a time: the batch's blobs go in one bulk storage delete, then the rows go
+ * in one DELETE ... WHERE id = ANY(?). Every batch is its own short statement, so a large
+ * backlog never holds one long transaction or loads every expired row into memory.
+ *
+ * Only the node holding the "guest-purge" lease runs a pass; the lease is renewed per batch.
+ */
+@Service
+public class GuestPurgeServiceImpl implements GuestPurgeService {
+
+    private static final Logger LOG = Logger.getLogger(GuestPurgeServiceImpl.class.getName());
+
+    private static final String LEASE_NAME = "guest-purge";
+    private static final Duration LEASE_TTL = Duration.ofMinutes(2);
+    private static final Duration GUEST_DOCUMENT_TTL = Duration.ofMinutes(30);
+    // Guest results stored before the local spool had their data inline; no blob to delete
+    private static final String LEGACY_GUEST_CACHE_PREFIX = "guest-cache/";
+
+    private static final String VAULT_FILES_BATCH_SQL =
+            "SELECT id, storage_key, expires_at AS ts FROM vault_files " +
+            "WHERE is_guest AND expires_at < ? AND (expires_at, id) > (?, ?) " +
+            "ORDER BY expires_at, id LIMIT ?";
+    private static final String DOCUMENTS_BATCH_SQL =
+            "SELECT id, storage_key, created_at AS ts FROM documents " +
+            "WHERE is_guest AND created_at < ? AND (created_at, id) > (?, ?) " +
+            "ORDER BY created_at, id LIMIT ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final SchedulerLeaseService leaseService;
+    private final SupabaseStorageService supabaseStorageService;
+    private final MeterRegistry meterRegistry;
+    private final Counter skippedRuns;
+
+    @Value("${supabase.storage.bucket}")
+    private String bucket;
+
+    @Value("${app.purge.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.purge.batch-pause-ms:50}")
+    private long batchPauseMillis;
+
+    public GuestPurgeServiceImpl(JdbcTemplate jdbcTemplate,
+                                 SchedulerLeaseService leaseService,
+                                 SupabaseStorageService supabaseStorageService,
+                                 MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.leaseService = leaseService;
+        this.supabaseStorageService = supabaseStorageService;
+        this.meterRegistry = meterRegistry;
+        this.skippedRuns = Counter.builder("kms.purge.skipped")
+                .description("Purge runs skipped because another node holds the lease")
+                .register(meterRegistry);
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${app.purge.interval-ms:60000}")
+    public void purgeExpired() {
+        if (!leaseService.tryAcquire(LEASE_NAME, LEASE_TTL)) {
+            skippedRuns.increment();
+            return;
+        }
+        Instant now = Instant.now();
+        try {
+            purgeTable("vault_files", VAULT_FILES_BATCH_SQL, now);
+            purgeTable("documents", DOCUMENTS_BATCH_SQL, now.minus(GUEST_DOCUMENT_TTL));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Guest purge failed; will retry on the next run", e);
+        }
+    }
+
+    private void purgeTable(String table, String batchSql, Instant cutoff) throws InterruptedException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Timestamp cutoffTs = Timestamp.from(cutoff);
+        // Keyset cursor: strictly after the last (timestamp, id) seen, so kept rows aren't revisited
+        Timestamp afterTs = new Timestamp(0L);
+        UUID afterId = new UUID(0L, 0L);
+        try {
+            while (true) {
+                List<Candidate> batch = jdbcTemplate.query(batchSql,
+                        (rs, i) -> new Candidate(
+                                rs.getObject("id", UUID.class),
+                                rs.getString("storage_key"),
+                                rs.getTimestamp("ts")),
+                        cutoffTs, afterTs, afterId, batchSize);
+                if (batch.isEmpty()) return;
+
+                Candidate last = batch.get(batch.size() - 1);
+                afterTs = last.ts();
+                afterId = last.id();
+
+                List<UUID> deletable = deleteBlobs(batch);
+                if (!deletable.isEmpty()) {
+                    int rows = jdbcTemplate.update(con -> {
+                        var ps = con.prepareStatement("DELETE FROM " + table + " WHERE id = ANY(?)");
+                        Array ids = con.createArrayOf("uuid", deletable.toArray());
+                        ps.setArray(1, ids);
+                        return ps;
+                    });
+                    purgedRows(table).increment(rows);
+                }
+
+                if (batch.size() < batchSize) return;
+                if (!leaseService.tryAcquire(LEASE_NAME, LEASE_TTL)) return; // lost the lease mid-run
+                Thread.sleep(batchPauseMillis);
+            }
+        } finally {
+            sample.stop(Timer.builder("kms.purge.run")
+                    .description("Time spent purging one table")
+                    .tag("table", table)
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Deletes the batch's blobs and returns the ids whose rows may now go. If storage is down
+     * the rows are kept so the blobs are retried next run instead of being orphaned.
+     */
+    private List<UUID> deleteBlobs(List<Candidate> batch) {
+        List<UUID> ids = new ArrayList<>(batch.size());
+        List<String> keys = new ArrayList<>(batch.size());
+        List<UUID> keyedIds = new ArrayList<>(batch.size());
+        for (Candidate candidate : batch) {
+            String key = candidate.storageKey();
+            if (key == null || key.startsWith(LEGACY_GUEST_CACHE_PREFIX)) {
+                ids.add(candidate.id());
+            } else {
+                keys.add(key);
+                keyedIds.add(candidate.id());
+            }
+        }
+        if (keys.isEmpty()) return ids;
+        try {
+            supabaseStorageService.deleteObjects(bucket, keys);
+            purgedObjects("deleted").increment(keys.size());
+            ids.addAll(keyedIds);
+        } catch (StorageUnavailableException e) {
+            purgedObjects("failed").increment(keys.size());
+            LOG.log(Level.WARNING, "Storage unavailable during guest purge; keeping " + keys.size() + " rows", e);
+        }
+        return ids;
+    }
+
+    private Counter purgedRows(String table) {
+        return Counter.builder("kms.purge.rows")
+                .description("Expired guest rows deleted")
+                .tag("table", table)
+                .register(meterRegistry);
+    }
+
+    private Counter purgedObjects(String outcome) {
+        return Counter.builder("kms.purge.objects")
+                .description("Guest blobs handed to bulk storage deletes")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private record Candidate(UUID id, String storageKey, Timestamp ts) {}
+}
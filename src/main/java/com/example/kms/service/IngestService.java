@@ -0,0 +1,47 @@
+package com.example.kms.service;
+
+import com.example.kms.model.Compression;
+import com.example.kms.model.FileCategory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+
+public interface IngestService {
+
+    /**
+     * Opens a single-pass ingest over an upload body of exactly size bytes: sniffs the MIME type
+     * from a bounded peek buffer and returns a stream that encrypts the same bytes under dek as
+     * it is read, hashing the resulting blob on the way through.
+     *
+     * If compress is set, body can be opened again from the start (a stored multipart file), and
+     * a sample of its head deflates well, the body is read once more to measure its deflated
+     * length and the blob carries the deflated payload instead (see PayloadCodec).
+     */
+    IngestedStream open(Callable<InputStream> body, String filename, long size, byte[] dek, boolean compress) throws Exception;
+
+    /** Sniffs the MIME type from the head of in, which must support mark/reset; in is left at its start. */
+    String detectMimeType(InputStream in, String filename) throws IOException;
+
+    /** Wraps in so that {@link #detectMimeType} can peek at it without consuming anything. */
+    InputStream peekable(InputStream in);
+
+    /**
+     * Detected type plus the blob stream (a SegmentedAead blob of encryptedLength bytes, holding
+     * the payload compressed as compression says). blobSha256() is only meaningful once
+     * encryptedBlob has been read to EOF, and may be called once. Closing closes the body.
+     */
+    record IngestedStream(String mimeType, FileCategory category, Compression compression,
+                          InputStream encryptedBlob, long encryptedLength, MessageDigest blobDigest)
+            implements AutoCloseable {
+        public byte[] blobSha256() {
+            return blobDigest.digest();
+        }
+
+        @Override
+        public void close() throws IOException {
+            encryptedBlob.close();
+        }
+    }
+}
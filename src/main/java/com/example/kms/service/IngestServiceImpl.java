@@ -0,0 +1,100 @@
+package com.example.kms.service;
+
+import com.example.kms.model.Compression;
+import com.example.kms.model.FileCategory;
+import com.example.kms.util.PayloadCodec;
+import com.example.kms.util.SegmentedAead;
+import org.apache.tika.Tika;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+
+/**
+ * Single-pass upload ingest.
+ *
+ * The body is wrapped once in a BufferedInputStream big enough for Tika's magic-byte window;
+ * detection marks and resets within that buffer, so the bytes it looks at are then encrypted
+ * from memory rather than read again, and the rest is encrypted chunk by chunk as the storage
+ * upload pulls it. Per-upload memory is the peek buffer plus one plaintext and one ciphertext
+ * segment.
+ *
+ * One shared Tika serves every request (detection is thread-safe), instead of loading the MIME
+ * registry per upload.
+ *
+ * Compressible uploads (text, CSV, uncompressed audio and bitmaps) are deflated before they are
+ * encrypted. The peek buffer doubles as the sample for that decision, so bodies that don't
+ * compress cost nothing more; those that do are read once more to measure their deflated
+ * length, and kept uncompressed if the whole body saves less than the sample promised.
+ */
+@Service
+public class IngestServiceImpl implements IngestService {
+
+    // Tika's MIME magic needs at most 64 KiB of the head of the file
+    private static final int PEEK_BYTES = 64 * 1024;
+
+    private final Tika tika = new Tika();
+    private final CryptoService cryptoService;
+    private final boolean compressionEnabled;
+    private final double maxCompressionRatio;
+
+    public IngestServiceImpl(CryptoService cryptoService,
+                             @Value("${app.vault.compression.enabled:true}") boolean compressionEnabled,
+                             @Value("${app.vault.compression.max-ratio:0.9}") double maxCompressionRatio) {
+        this.cryptoService = cryptoService;
+        this.compressionEnabled = compressionEnabled;
+        this.maxCompressionRatio = maxCompressionRatio;
+    }
+
+    @Override
+    public IngestedStream open(Callable<InputStream> body, String filename, long size, byte[] dek, boolean compress) throws Exception {
+        InputStream peekable = peekable(body.call());
+        try {
+            String mimeType = detectMimeType(peekable, filename);
+
+            // Deflate only if the sample, and then the whole body, shrink by enough to pay for inflating on download
+            Compression compression = Compression.NONE;
+            InputStream payload = peekable;
+            long payloadSize = size;
+            if (compress && compressionEnabled && PayloadCodec.sampleRatio(peekable, PEEK_BYTES) <= maxCompressionRatio) {
+                long deflatedSize = PayloadCodec.deflatedLength(body.call());
+                if (deflatedSize <= size * maxCompressionRatio) {
+                    compression = Compression.DEFLATE;
+                    payload = PayloadCodec.deflating(peekable, deflatedSize);
+                    payloadSize = deflatedSize;
+                }
+            }
+
+            // Segmented layout so downloads can open the blob across cores; segments are sealed as storage pulls them
+            int segmentSize = SegmentedAead.DEFAULT_SEGMENT_BYTES;
+            InputStream segments = cryptoService.aesGcmSegmentStream(
+                    dek, payload, segmentSize, 0, payloadSize, SegmentedAead.segmentCount(payloadSize, segmentSize) - 1);
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            InputStream blob = new DigestInputStream(
+                    new SequenceInputStream(new ByteArrayInputStream(SegmentedAead.header(segmentSize)), segments), sha256);
+            return new IngestedStream(mimeType, FileCategory.fromMimeType(mimeType), compression, blob,
+                    SegmentedAead.blobLength(payloadSize, segmentSize), sha256);
+        } catch (Exception e) {
+            peekable.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String detectMimeType(InputStream in, String filename) throws IOException {
+        // Tika marks the stream, reads its window and resets, leaving the stream at byte 0
+        return tika.detect(in, filename);
+    }
+
+    @Override
+    public InputStream peekable(InputStream in) {
+        return in.markSupported() ? in : new BufferedInputStream(in, PEEK_BYTES);
+    }
+}
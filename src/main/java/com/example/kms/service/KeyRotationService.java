@@ -0,0 +1,12 @@
+package com.example.kms.service;
+
+import com.example.kms.dto.KeyRotationProgressDTO;
+
+import java.util.List;
+
+public interface KeyRotationService {
+    /** Starts a rewrap run in the background; false if one is already running here or on another node. */
+    boolean startRewrap();
+    boolean isRunning();
+    List<KeyRotationProgressDTO> getProgress();
+}
@@ -0,0 +1,354 @@
+package com.example.kms.service;
+
+import com.example.kms.dto.KeyRotationProgressDTO;
+import com.example.kms.model.KeyRotationCheckpoint;
+import com.example.kms.repository.KeyRotationCheckpointRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rewraps master-key protected material after VAULT_SERVER_KEK or VAULT_COLUMN_MASTER_KEY is rotated.
+ *
+ * Only key material is touched: server-wrapped DEKs are unwrapped with the KEK named in their header
+ * and wrapped with the current one, and converter-encrypted columns are re-encrypted under the current
+ * column key. Untagged legacy values are tagged along the way.
+ * Storage blobs are never read. Tables are scanned in keyset-paged batches, each batch is rewrapped
+ * in parallel on the keyRotationExecutor, and a checkpoint is written after every batch so a restart
+ * resumes where the last run stopped. Rows that fail to rewrap keep their table incomplete; the next
+ * run scans it again from the start, and rows already under the current keys are skipped.
+ * Only the node holding the "key-rotation" lease runs the job, renewing it after every batch.
+ *
+ * encrypted_data is not scanned: its DEKs are wrapped for X25519 recipients, not under the master keys.
+ */
+@Service
+public class KeyRotationServiceImpl implements KeyRotationService {
+
+    private static final Logger LOG = Logger.getLogger(KeyRotationServiceImpl.class.getName());
+
+    private static final String VAULT_FILES = "vault_files";
+    private static final String CLIENTS = "clients";
+    private static final String MIN_UUID = "00000000-0000-0000-0000-000000000000";
+    private static final String LEASE = "key-rotation";
+    private static final Duration LEASE_TTL = Duration.ofMinutes(5);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final KeyRotationCheckpointRepository checkpointRepository;
+    private final CryptoService cryptoService;
+    private final SchedulerLeaseService leaseService;
+    private final Executor keyRotationExecutor;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @Value("${app.vault.rotation.enabled:false}")
+    private boolean runOnStartup;
+
+    @Value("${app.vault.rotation.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.vault.rotation.parallelism:4}")
+    private int parallelism;
+
+    @Value("${app.vault.rotation.max-rows-per-second:5000}")
+    private int maxRowsPerSecond;
+
+    public KeyRotationServiceImpl(
+            JdbcTemplate jdbcTemplate,
+            KeyRotationCheckpointRepository checkpointRepository,
+            CryptoService cryptoService,
+            SchedulerLeaseService leaseService,
+            @Qualifier("keyRotationExecutor") Executor keyRotationExecutor) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.checkpointRepository = checkpointRepository;
+        this.cryptoService = cryptoService;
+        this.leaseService = leaseService;
+        this.keyRotationExecutor = keyRotationExecutor;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (runOnStartup) {
+            startRewrap();
+        }
+    }
+
+    @Override
+    public boolean startRewrap() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        if (!leaseService.tryAcquire(LEASE, LEASE_TTL)) {
+            // Every node starts the job when it comes up; one of them does the work
+            running.set(false);
+            LOG.info("Key rotation rewrap is running on another node");
+            return false;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                String generation = cryptoService.keyGenerationFingerprint();
+                boolean vaultFilesDone = rewrapVaultFiles(generation);
+                boolean clientsDone = rewrapClients(generation);
+                if (vaultFilesDone && clientsDone) {
+                    LOG.info("Key rotation rewrap finished for key generation " + generation);
+                } else {
+                    LOG.warning("Key rotation rewrap left rows under older keys for generation " + generation
+                            + "; the next run retries them");
+                }
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Key rotation rewrap aborted; it will resume from the last checkpoint", e);
+            } finally {
+                running.set(false);
+            }
+        }, keyRotationExecutor);
+        return true;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public List<KeyRotationProgressDTO> getProgress() {
+        return checkpointRepository.findAll().stream()
+                .map(cp -> new KeyRotationProgressDTO(
+                        cp.getTableName(),
+                        cp.getLastId(),
+                        cp.getProcessedRows(),
+                        cp.getRewrappedRows(),
+                        cp.getFailedRows(),
+                        cp.isCompleted(),
+                        cp.getUpdatedAt()))
+                .toList();
+    }
+
+    // -------------------------------------------------------------------------
+    // vault_files: server-wrapped DEK + encrypted filename
+    // -------------------------------------------------------------------------
+
+    private record VaultFileRow(UUID id, String filenameEnc, String dekWrappedServer, int serverKekVersion, String emailHash) {}
+
+    private record VaultFileUpdate(VaultFileRow row, String filenameEnc, String dekWrappedServer, int serverKekVersion) {}
+
+    private boolean rewrapVaultFiles(String generation) throws Exception {
+        int currentVersion = cryptoService.currentServerKekVersion();
+        // Guest rows are skipped: they expire within minutes and carry no server-wrapped DEK
+        return rewrapTable(VAULT_FILES, generation, MIN_UUID,
+                lastId -> jdbcTemplate.query(
+                        "SELECT f.id, f.filename_enc, f.dek_wrapped_server, f.server_kek_version, c.email_hash " +
+                        "FROM vault_files f LEFT JOIN clients c ON c.id = f.client_id " +
+                        "WHERE f.is_guest = false AND f.id > ? ORDER BY f.id LIMIT ?",
+                        (rs, i) -> new VaultFileRow(
+                                rs.getObject("id", UUID.class),
+                                rs.getString("filename_enc"),
+                                rs.getString("dek_wrapped_server"),
+                                rs.getInt("server_kek_version"),
+                                rs.getString("email_hash")),
+                        UUID.fromString(lastId), batchSize),
+                row -> row.id().toString(),
+                row -> {
+                    String filename = cryptoService.rewrapColumnValue(row.filenameEnc());
+                    String dekWrapped = null;
+                    if (row.dekWrappedServer() != null && row.emailHash() != null
+                            && (row.serverKekVersion() != currentVersion
+                                || cryptoService.needsServerRewrap(row.dekWrappedServer()))) {
+                        byte[] dek = cryptoService.unwrapDekForServer(
+                                row.emailHash(), row.dekWrappedServer(), row.serverKekVersion());
+                        dekWrapped = cryptoService.wrapDekForServer(row.emailHash(), dek);
+                    }
+                    if (filename == null && dekWrapped == null) return null;
+                    return new VaultFileUpdate(
+                            row,
+                            filename != null ? filename : row.filenameEnc(),
+                            dekWrapped != null ? dekWrapped : row.dekWrappedServer(),
+                            dekWrapped != null ? currentVersion : row.serverKekVersion());
+                },
+                updates -> jdbcTemplate.batchUpdate(
+                        // Guarded on the values we read so a concurrent rename/replace is never overwritten
+                        "UPDATE vault_files SET filename_enc = ?, dek_wrapped_server = ?, server_kek_version = ? " +
+                        "WHERE id = ? AND filename_enc = ? AND dek_wrapped_server IS NOT DISTINCT FROM ? " +
+                        "AND server_kek_version = ?",
+                        updates.stream().map(u -> new Object[]{
+                                u.filenameEnc(), u.dekWrappedServer(), u.serverKekVersion(),
+                                u.row().id(), u.row().filenameEnc(), u.row().dekWrappedServer(),
+                                u.row().serverKekVersion()
+                        }).toList()));
+    }
+
+    // -------------------------------------------------------------------------
+    // clients: converter-encrypted name, email and phone
+    // -------------------------------------------------------------------------
+
+    private record ClientRow(long id, String name, String email, String phone) {}
+
+    private record ClientUpdate(ClientRow row, String name, String email, String phone) {}
+
+    private boolean rewrapClients(String generation) throws Exception {
+        return rewrapTable(CLIENTS, generation, "0",
+                lastId -> jdbcTemplate.query(
+                        "SELECT id, name, email, phone FROM clients WHERE id > ? ORDER BY id LIMIT ?",
+                        (rs, i) -> new ClientRow(
+                                rs.getLong("id"),
+                                rs.getString("name"),
+                                rs.getString("email"),
+                                rs.getString("phone")),
+                        Long.parseLong(lastId), batchSize),
+                row -> Long.toString(row.id()),
+                row -> {
+                    String name = cryptoService.rewrapColumnValue(row.name());
+                    String email = cryptoService.rewrapColumnValue(row.email());
+                    String phone = cryptoService.rewrapColumnValue(row.phone());
+                    if (name == null && email == null && phone == null) return null;
+                    return new ClientUpdate(
+                            row,
+                            name != null ? name : row.name(),
+                            email != null ? email : row.email(),
+                            phone != null ? phone : row.phone());
+                },
+                updates -> jdbcTemplate.batchUpdate(
+                        "UPDATE clients SET name = ?, email = ?, phone = ? " +
+                        "WHERE id = ? AND name = ? AND email = ? AND phone = ?",
+                        updates.stream().map(u -> new Object[]{
+                                u.name(), u.email(), u.phone(),
+                                u.row().id(), u.row().name(), u.row().email(), u.row().phone()
+                        }).toList()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Shared keyset-paged, checkpointed, throttled batch loop
+    // -------------------------------------------------------------------------
+
+    @FunctionalInterface
+    private interface RowRewrapper<R, U> {
+        /** Returns the update for a row, or null when the row is already under the current keys. */
+        U rewrap(R row) throws Exception;
+    }
+
+    /** Returns whether every row of table is now under the current keys. */
+    private <R, U> boolean rewrapTable(String table,
+                                    String generation,
+                                    String initialId,
+                                    Function<String, List<R>> pageLoader,
+                                    Function<R, String> idOf,
+                                    RowRewrapper<R, U> rewrapper,
+                                    Consumer<List<U>> writer) throws Exception {
+        KeyRotationCheckpoint checkpoint = checkpointRepository.findById(table)
+                .filter(cp -> generation.equals(cp.getKeyGeneration()))
+                .orElseGet(() -> KeyRotationCheckpoint.builder()
+                        .tableName(table)
+                        .keyGeneration(generation)
+                        .lastId(initialId)
+                        .build());
+        if (checkpoint.isCompleted()) {
+            LOG.info("Key rotation: " + table + " already rewrapped for generation " + generation);
+            return true;
+        }
+        if (checkpoint.getLastId().equals(initialId)) {
+            // A fresh scan, possibly retrying a pass that had failures: count this pass only
+            checkpoint.setProcessedRows(0);
+            checkpoint.setRewrappedRows(0);
+            checkpoint.setFailedRows(0);
+        }
+
+        long startNanos = System.nanoTime();
+        long rowsThisRun = 0;
+        String lastId = checkpoint.getLastId();
+        while (true) {
+            List<R> page = pageLoader.apply(lastId);
+            if (page.isEmpty()) break;
+
+            AtomicLong failed = new AtomicLong();
+            List<U> updates = rewrapInParallel(table, page, idOf, rewrapper, failed);
+            if (!updates.isEmpty()) {
+                writer.accept(updates);
+            }
+
+            lastId = idOf.apply(page.get(page.size() - 1));
+            checkpoint.setLastId(lastId);
+            checkpoint.setProcessedRows(checkpoint.getProcessedRows() + page.size());
+            checkpoint.setRewrappedRows(checkpoint.getRewrappedRows() + updates.size());
+            checkpoint.setFailedRows(checkpoint.getFailedRows() + failed.get());
+            checkpointRepository.save(checkpoint);
+
+            rowsThisRun += page.size();
+            double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+            LOG.info(String.format("Key rotation: %s processed=%d rewrapped=%d failed=%d (%.0f rows/s)",
+                    table, checkpoint.getProcessedRows(), checkpoint.getRewrappedRows(),
+                    checkpoint.getFailedRows(), rowsThisRun / Math.max(elapsedSeconds, 0.001)));
+
+            if (page.size() < batchSize) break;
+            throttle(startNanos, rowsThisRun);
+            if (!leaseService.tryAcquire(LEASE, LEASE_TTL)) {
+                throw new IllegalStateException("Key rotation lease was taken over by another node");
+            }
+        }
+
+        if (checkpoint.getFailedRows() > 0) {
+            // Left incomplete and rewound, so the next run rescans the table for the rows that failed
+            LOG.warning("Key rotation: " + table + " has " + checkpoint.getFailedRows()
+                    + " rows that could not be rewrapped");
+            checkpoint.setLastId(initialId);
+            checkpointRepository.save(checkpoint);
+            return false;
+        }
+        checkpoint.setCompleted(true);
+        checkpointRepository.save(checkpoint);
+        return true;
+    }
+
+    private <R, U> List<U> rewrapInParallel(String table,
+                                            List<R> page,
+                                            Function<R, String> idOf,
+                                            RowRewrapper<R, U> rewrapper,
+                                            AtomicLong failed) {
+        int chunkSize = Math.max(1, (page.size() + parallelism - 1) / parallelism);
+        List<CompletableFuture<List<U>>> futures = new ArrayList<>();
+        for (int from = 0; from < page.size(); from += chunkSize) {
+            List<R> chunk = page.subList(from, Math.min(from + chunkSize, page.size()));
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<U> out = new ArrayList<>(chunk.size());
+                for (R row : chunk) {
+                    try {
+                        U update = rewrapper.rewrap(row);
+                        if (update != null) out.add(update);
+                    } catch (Exception e) {
+                        // A single unreadable row must not stall the whole rotation
+                        failed.incrementAndGet();
+                        LOG.log(Level.WARNING, "Key rotation: could not rewrap " + table + " row " + idOf.apply(row), e);
+                    }
+                }
+                return out;
+            }, keyRotationExecutor));
+        }
+        List<U> updates = new ArrayList<>(page.size());
+        for (CompletableFuture<List<U>> future : futures) {
+            updates.addAll(future.join());
+        }
+        return updates;
+    }
+
+    // Sleeps just long enough to keep the run at or below max-rows-per-second
+    private void throttle(long startNanos, long rowsThisRun) throws InterruptedException {
+        if (maxRowsPerSecond <= 0) return;
+        long targetNanos = rowsThisRun * 1_000_000_000L / maxRowsPerSecond;
+        long aheadNanos = targetNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.kms.service;
+
+/**
+ * Process-wide budget for payload bytes held in memory at once (uploads being encrypted,
+ * downloads being decrypted, conversions, guest results). Work reserves its estimated peak
+ * before buffering anything and releases it when the buffers are gone.
+ */
+public interface MemoryBudgetService {
+
+    /**
+     * Reserves bytes against the budget, waiting up to app.memory.max-wait for other work to
+     * release enough. Throws MemoryBudgetExceededException if the wait runs out. A request
+     * larger than the whole budget waits for the entire budget, so it runs alone.
+     */
+    Reservation reserve(long bytes);
+
+    interface Reservation extends AutoCloseable {
+        long bytes();
+
+        /** Returns the bytes to the budget; later calls do nothing. */
+        @Override
+        void close();
+    }
+}
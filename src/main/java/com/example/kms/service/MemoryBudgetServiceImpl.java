@@ -0,0 +1,123 @@
+package com.example.kms.service;
+
+import com.example.kms.exception.MemoryBudgetExceededException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-weighted admission over a fair Semaphore whose permits are KiB, so a budget of many
+ * GiB fits an int and reservations round up to the next KiB.
+ *
+ * Fairness matters here: with barging, a steady stream of small reservations could keep a
+ * large one waiting forever. Waiters are served in arrival order, and whoever cannot get their
+ * bytes within max-wait is turned away with a 503 instead of queueing unboundedly.
+ */
+@Service
+public class MemoryBudgetServiceImpl implements MemoryBudgetService {
+
+    private static final int UNIT_SHIFT = 10; // one permit = 1 KiB
+
+    private static final Reservation NONE = new Reservation() {
+        @Override
+        public long bytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final Semaphore permits;
+    private final int totalPermits;
+    private final long maxWaitNanos;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final Timer waitTimer;
+    private final Counter rejections;
+
+    public MemoryBudgetServiceImpl(@Value("${app.memory.budget:0}") DataSize budget,
+                                   @Value("${app.memory.max-wait:5s}") Duration maxWait,
+                                   MeterRegistry meterRegistry) {
+        // 0 = half the max heap, leaving the rest for everything that isn't payload
+        long budgetBytes = budget.toBytes() > 0 ? budget.toBytes() : Runtime.getRuntime().maxMemory() / 2;
+        this.totalPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes >> UNIT_SHIFT));
+        this.permits = new Semaphore(totalPermits, true);
+        this.maxWaitNanos = maxWait.toNanos();
+
+        this.waitTimer = Timer.builder("kms.memory.wait")
+                .description("Time spent waiting for payload memory budget")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejections = Counter.builder("kms.memory.rejected")
+                .description("Requests turned away because the payload memory budget stayed exhausted")
+                .register(meterRegistry);
+        Gauge.builder("kms.memory.reserved", reservedBytes, AtomicLong::get)
+                .description("Payload bytes currently reserved against the budget")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("kms.memory.budget", this, s -> (double) ((long) s.totalPermits << UNIT_SHIFT))
+                .description("Total payload memory budget")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Reservation reserve(long bytes) {
+        if (bytes <= 0) return NONE;
+        int units = (int) Math.min(totalPermits, (bytes + (1L << UNIT_SHIFT) - 1) >> UNIT_SHIFT);
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            // Timed tryAcquire honours fairness even with a zero wait; the untimed form would barge
+            acquired = permits.tryAcquire(units, maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (!acquired) {
+            rejections.increment();
+            throw new MemoryBudgetExceededException("Server is busy with other large transfers; retry shortly",
+                    Math.max(1, TimeUnit.NANOSECONDS.toSeconds(maxWaitNanos)));
+        }
+        long reserved = (long) units << UNIT_SHIFT;
+        reservedBytes.addAndGet(reserved);
+        return new Held(units, reserved);
+    }
+
+    private final class Held implements Reservation {
+        private final int units;
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Held(int units, long bytes) {
+            this.units = units;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                reservedBytes.addAndGet(-bytes);
+                permits.release(units);
+            }
+        }
+    }
+}
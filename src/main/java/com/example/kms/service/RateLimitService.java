@@ -0,0 +1,22 @@
+package com.example.kms.service;
+
+/**
+ * Per-tenant token buckets for request count (ops/sec) and payload volume (bytes/sec).
+ * Authenticated callers are keyed by emailHash, guests by client address.
+ */
+public interface RateLimitService {
+
+    static String userKey(String emailHash) {
+        return "user:" + emailHash;
+    }
+
+    static String guestKey(String remoteAddress) {
+        return "ip:" + remoteAddress;
+    }
+
+    /** Takes one op and {@code bytes} byte tokens, or throws RateLimitExceededException. */
+    void acquire(String tenantKey, long bytes);
+
+    /** Charges bytes known only after the fact (e.g. download size); never rejects. */
+    void charge(String tenantKey, long bytes);
+}
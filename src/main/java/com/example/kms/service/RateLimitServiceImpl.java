@@ -0,0 +1,107 @@
+package com.example.kms.service;
+
+import com.example.kms.exception.RateLimitExceededException;
+import com.example.kms.util.TokenBucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class RateLimitServiceImpl implements RateLimitService {
+
+    private final ConcurrentHashMap<String, TokenBucket> opsBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> byteBuckets = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.rate-limit.user.ops-per-second:5}")
+    private double userOpsPerSecond;
+    @Value("${app.rate-limit.user.ops-burst:20}")
+    private long userOpsBurst;
+    @Value("${app.rate-limit.user.bytes-per-second:20971520}")
+    private double userBytesPerSecond;
+    @Value("${app.rate-limit.user.bytes-burst:209715200}")
+    private long userBytesBurst;
+
+    @Value("${app.rate-limit.guest.ops-per-second:1}")
+    private double guestOpsPerSecond;
+    @Value("${app.rate-limit.guest.ops-burst:5}")
+    private long guestOpsBurst;
+    @Value("${app.rate-limit.guest.bytes-per-second:5242880}")
+    private double guestBytesPerSecond;
+    @Value("${app.rate-limit.guest.bytes-burst:52428800}")
+    private long guestBytesBurst;
+
+    public RateLimitServiceImpl(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("kms.ratelimit.buckets", opsBuckets, Map::size)
+                .description("Tenants with a live rate-limit bucket")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void acquire(String tenantKey, long bytes) {
+        if (!enabled) return;
+        boolean guest = isGuest(tenantKey);
+
+        TokenBucket ops = opsBuckets.computeIfAbsent(tenantKey, k -> guest
+                ? new TokenBucket(guestOpsPerSecond, guestOpsBurst)
+                : new TokenBucket(userOpsPerSecond, userOpsBurst));
+        long opsWait = ops.tryAcquire(1);
+        if (opsWait > 0) throw rejected(guest, "ops", opsWait);
+
+        if (bytes > 0) {
+            long bytesWait = bytesBucket(tenantKey, guest).tryAcquire(bytes);
+            if (bytesWait > 0) {
+                ops.refund(1);
+                throw rejected(guest, "bytes", bytesWait);
+            }
+        }
+    }
+
+    @Override
+    public void charge(String tenantKey, long bytes) {
+        if (!enabled || bytes <= 0) return;
+        bytesBucket(tenantKey, isGuest(tenantKey)).charge(bytes);
+    }
+
+    /** Drops buckets that have refilled completely; a new request recreates them full. */
+    @Scheduled(fixedRate = 60_000)
+    public void evictIdleBuckets() {
+        opsBuckets.forEach((key, bucket) -> {
+            if (bucket.isFull()) opsBuckets.remove(key, bucket);
+        });
+        byteBuckets.forEach((key, bucket) -> {
+            if (bucket.isFull()) byteBuckets.remove(key, bucket);
+        });
+    }
+
+    private TokenBucket bytesBucket(String tenantKey, boolean guest) {
+        return byteBuckets.computeIfAbsent(tenantKey, k -> guest
+                ? new TokenBucket(guestBytesPerSecond, guestBytesBurst)
+                : new TokenBucket(userBytesPerSecond, userBytesBurst));
+    }
+
+    private static boolean isGuest(String tenantKey) {
+        return tenantKey.startsWith("ip:");
+    }
+
+    private RateLimitExceededException rejected(boolean guest, String kind, long waitNanos) {
+        Counter.builder("kms.ratelimit.rejected")
+                .description("Requests rejected by per-tenant rate limits")
+                .tag("tenant", guest ? "guest" : "user")
+                .tag("kind", kind)
+                .register(meterRegistry)
+                .increment();
+        long retryAfter = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+        return new RateLimitExceededException("Rate limit exceeded (" + kind + "), retry after " + retryAfter + "s", retryAfter);
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.kms.service;
+
+import java.time.Duration;
+
+/**
+ * Leader election for scheduled jobs via a lease row per job (scheduler_leases).
+ * The holder renews on every run; if it stops, another node takes over once the lease lapses.
+ */
+public interface SchedulerLeaseService {
+
+    /** Acquires or renews the named lease for this node. Returns false if another node holds it. */
+    boolean tryAcquire(String leaseName, Duration ttl);
+
+    String nodeId();
+}
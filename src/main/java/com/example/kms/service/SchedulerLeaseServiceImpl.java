@@ -0,0 +1,45 @@
+package com.example.kms.service;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.UUID;
+
+@Service
+public class SchedulerLeaseServiceImpl implements SchedulerLeaseService {
+
+    // Take the lease if it is free, expired, or already ours; a single statement, so no race
+    private static final String ACQUIRE_SQL =
+            "INSERT INTO scheduler_leases (name, owner, lease_until) " +
+            "VALUES (?, ?, now() + make_interval(secs => ?)) " +
+            "ON CONFLICT (name) DO UPDATE SET owner = EXCLUDED.owner, lease_until = EXCLUDED.lease_until " +
+            "WHERE scheduler_leases.owner = EXCLUDED.owner OR scheduler_leases.lease_until < now()";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String nodeId;
+
+    public SchedulerLeaseServiceImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.nodeId = hostName() + "/" + UUID.randomUUID();
+    }
+
+    @Override
+    public boolean tryAcquire(String leaseName, Duration ttl) {
+        return jdbcTemplate.update(ACQUIRE_SQL, leaseName, nodeId, (double) ttl.toSeconds()) == 1;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown-host";
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.kms.service;
+
+/**
+ * Per-client storage accounting against VaultFile.encryptedSize.
+ *
+ * Usage is an incrementally maintained counter on clients.storage_used_bytes: every write
+ * reserves its bytes with one conditional UPDATE and every delete releases them, so no request
+ * ever has to SUM the client's files.
+ */
+public interface StorageQuotaService {
+
+    /** Adds bytes to the client's usage, or throws QuotaExceededException if that would exceed the quota. */
+    void reserve(String emailHash, long bytes);
+
+    /** Returns bytes to the client's usage (delete, failed upload, replaced blob). */
+    void release(String emailHash, long bytes);
+
+    long usedBytes(String emailHash);
+
+    long quotaBytes();
+}
@@ -0,0 +1,50 @@
+package com.example.kms.service;
+
+import com.example.kms.exception.QuotaExceededException;
+import com.example.kms.repository.ClientRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+@Service
+public class StorageQuotaServiceImpl implements StorageQuotaService {
+
+    private final ClientRepository clientRepository;
+    private final Counter rejections;
+
+    @Value("${app.quota.storage-bytes-per-client:10737418240}")
+    private long quotaBytes;
+
+    public StorageQuotaServiceImpl(ClientRepository clientRepository, MeterRegistry meterRegistry) {
+        this.clientRepository = clientRepository;
+        this.rejections = Counter.builder("kms.quota.rejected")
+                .description("Writes rejected because the client's storage quota was exhausted")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void reserve(String emailHash, long bytes) {
+        if (bytes <= 0) return;
+        if (clientRepository.tryAddStorageUsed(emailHash, bytes, quotaBytes) == 0) {
+            rejections.increment();
+            throw new QuotaExceededException("Storage quota of " + quotaBytes + " bytes exceeded");
+        }
+    }
+
+    @Override
+    public void release(String emailHash, long bytes) {
+        if (bytes <= 0) return;
+        clientRepository.subtractStorageUsed(emailHash, bytes);
+    }
+
+    @Override
+    public long usedBytes(String emailHash) {
+        return clientRepository.findStorageUsedBytes(emailHash).orElse(0L);
+    }
+
+    @Override
+    public long quotaBytes() {
+        return quotaBytes;
+    }
+}
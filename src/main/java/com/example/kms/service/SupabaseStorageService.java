@@ -1,7 +1,28 @@
 package com.example.kms.service;
 
+import com.example.kms.util.BufferArena;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.List;
+
 public interface SupabaseStorageService {
     String putObject(String bucket, String objectKey, byte[] encryptedBytes, String contentType);
+    /** Uploads exactly contentLength bytes pulled from body as the request is sent, then closes body. */
+    String putObjectStream(String bucket, String objectKey, InputStream body, long contentLength, String contentType);
     byte[] getObject(String bucket, String objectKey);
+    /** Fetches an object into a buffer leased from the BufferArena; the caller closes the lease. */
+    BufferArena.Lease getObjectPooled(String bucket, String objectKey);
     void deleteObject(String bucket, String objectKey);
+    /** Deletes several objects in one request; keys that don't exist are ignored. */
+    void deleteObjects(String bucket, List<String> objectKeys);
+    /**
+     * One page of the entries directly under folder (a key prefix ending in '/'), in name order.
+     * Not recursive: subfolders come back as entries with folder() set.
+     */
+    List<StorageEntry> listFolder(String bucket, String folder, int limit, int offset);
+
+    /** A listed object or subfolder; name is relative to the folder listed, createdAt is null for folders. */
+    record StorageEntry(String name, boolean folder, Instant createdAt) {
+    }
 }
@@ -1,32 +1,77 @@
 package com.example.kms.service;
 
 import com.example.kms.exception.StorageUnavailableException;
+import com.example.kms.util.BufferArena;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @Service
 public class SupabaseStorageServiceImpl implements SupabaseStorageService {
 
+    private static final int STREAM_CHUNK_BYTES = 64 * 1024;
+
     @Value("${supabase.url}")
     private String supabaseUrl;
 
     @Value("${supabase.service-role-key}")
     private String serviceRoleKey;
 
+    // Whole-object reads (getObject) are aggregated in memory; the codec default of 256 KiB is
+    // far below the objects stored here
+    @Value("${supabase.storage.max-in-memory-bytes:1073741824}")
+    private int maxInMemoryBytes;
+
+    private final MeterRegistry meterRegistry;
+    private final BufferArena bufferArena;
+    private final BlobCacheService blobCache;
+    private final DistributionSummary bytesPut;
+    private final DistributionSummary bytesGot;
+
     private WebClient webClient;
 
+    public SupabaseStorageServiceImpl(MeterRegistry meterRegistry, BufferArena bufferArena, BlobCacheService blobCache) {
+        this.meterRegistry = meterRegistry;
+        this.bufferArena = bufferArena;
+        this.blobCache = blobCache;
+        this.bytesPut = payloadSummary("put");
+        this.bytesGot = payloadSummary("get");
+    }
+
     @PostConstruct
     public void init() {
         this.webClient = WebClient.builder()
                 .baseUrl(supabaseUrl)
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxInMemoryBytes))
                 .build();
     }
 
     @Override
     public String putObject(String bucket, String objectKey, byte[] encryptedBytes, String contentType) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
         try {
             webClient.put()
                     .uri("/storage/v1/object/{bucket}/{key}", bucket, objectKey)
@@ -36,34 +81,168 @@ public class SupabaseStorageServiceImpl implements SupabaseStorageService {
                     .retrieve()
                     .toBodilessEntity()
                     .block();
+            bytesPut.record(encryptedBytes.length);
+            blobCache.put(bucket, objectKey, ByteBuffer.wrap(encryptedBytes));
+            outcome = "success";
+            return objectKey;
+        } catch (WebClientResponseException e) {
+            throw new StorageUnavailableException(
+                    "Failed to upload object: " + objectKey + " — HTTP " + e.getStatusCode(), e);
+        } catch (Exception e) {
+            throw new StorageUnavailableException("Failed to upload object: " + objectKey, e);
+        } finally {
+            sample.stop(requestTimer("put", outcome));
+        }
+    }
+
+    @Override
+    public String putObjectStream(String bucket, String objectKey, InputStream body, long contentLength, String contentType) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        BlobCacheService.Tee tee = blobCache.tee(bucket, objectKey, body);
+        try {
+            // Pulled chunk by chunk as the connection drains, so only STREAM_CHUNK_BYTES are buffered here.
+            // Reading the body blocks (client socket reads, encryption, cache spooling, storage reads
+            // for concatenated parts), so it runs on boundedElastic rather than the Netty event loop
+            // every other storage request shares.
+            Flux<DataBuffer> chunks = DataBufferUtils.readInputStream(
+                            tee::stream, DefaultDataBufferFactory.sharedInstance, STREAM_CHUNK_BYTES)
+                    .subscribeOn(Schedulers.boundedElastic());
+            webClient.put()
+                    .uri("/storage/v1/object/{bucket}/{key}", bucket, objectKey)
+                    .header("Authorization", "Bearer " + serviceRoleKey)
+                    .header("Content-Type", contentType)
+                    .contentLength(contentLength)
+                    .body(BodyInserters.fromDataBuffers(chunks))
+                    .retrieve()
+                    .toBodilessEntity()
+                    .block();
+            bytesPut.record(contentLength);
+            tee.commit();
+            outcome = "success";
             return objectKey;
         } catch (WebClientResponseException e) {
             throw new StorageUnavailableException(
                     "Failed to upload object: " + objectKey + " — HTTP " + e.getStatusCode(), e);
         } catch (Exception e) {
             throw new StorageUnavailableException("Failed to upload object: " + objectKey, e);
+        } finally {
+            tee.abort();
+            sample.stop(requestTimer("put_stream", outcome));
         }
     }
 
     @Override
     public byte[] getObject(String bucket, String objectKey) {
+        Optional<ByteBuffer> cached = blobCache.get(bucket, objectKey);
+        if (cached.isPresent()) {
+            byte[] body = new byte[cached.get().remaining()];
+            cached.get().get(body);
+            return body;
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
         try {
-            return webClient.get()
+            byte[] body = webClient.get()
                     .uri("/storage/v1/object/{bucket}/{key}", bucket, objectKey)
                     .header("Authorization", "Bearer " + serviceRoleKey)
                     .retrieve()
                     .bodyToMono(byte[].class)
                     .block();
+            if (body != null) {
+                bytesGot.record(body.length);
+                blobCache.offer(bucket, objectKey, ByteBuffer.wrap(body));
+            }
+            outcome = "success";
+            return body;
         } catch (WebClientResponseException e) {
             throw new StorageUnavailableException(
                     "Failed to retrieve object: " + objectKey + " — HTTP " + e.getStatusCode(), e);
         } catch (Exception e) {
             throw new StorageUnavailableException("Failed to retrieve object: " + objectKey, e);
+        } finally {
+            sample.stop(requestTimer("get", outcome));
+        }
+    }
+
+    @Override
+    public BufferArena.Lease getObjectPooled(String bucket, String objectKey) {
+        Optional<ByteBuffer> cached = blobCache.get(bucket, objectKey);
+        if (cached.isPresent()) {
+            // Served straight from the page cache; the mapping is unmapped by the GC, not the arena
+            return BufferArena.unpooled(cached.get());
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        BufferArena.Lease lease = null;
+        try {
+            ResponseEntity<Flux<DataBuffer>> response = webClient.get()
+                    .uri("/storage/v1/object/{bucket}/{key}", bucket, objectKey)
+                    .header("Authorization", "Bearer " + serviceRoleKey)
+                    .retrieve()
+                    .toEntityFlux(DataBuffer.class)
+                    .block();
+            long length = response.getHeaders().getContentLength();
+            Flux<DataBuffer> body = response.getBody();
+            if (length < 0) {
+                // No Content-Length (chunked): gather the body first to learn its size
+                body = DataBufferUtils.join(body).flux();
+                lease = copyInto(body, -1);
+            } else {
+                if (length > Integer.MAX_VALUE - 8) throw new IllegalStateException("object too large: " + length);
+                lease = copyInto(body, (int) length);
+            }
+            bytesGot.record(lease.buffer().remaining());
+            blobCache.offer(bucket, objectKey, lease.buffer().duplicate());
+            outcome = "success";
+            return lease;
+        } catch (WebClientResponseException e) {
+            if (lease != null) lease.close();
+            throw new StorageUnavailableException(
+                    "Failed to retrieve object: " + objectKey + " — HTTP " + e.getStatusCode(), e);
+        } catch (Exception e) {
+            if (lease != null) lease.close();
+            throw new StorageUnavailableException("Failed to retrieve object: " + objectKey, e);
+        } finally {
+            sample.stop(requestTimer("get_pooled", outcome));
+        }
+    }
+
+    /**
+     * Copies the response buffers (pooled and off-heap in Reactor Netty) straight into one
+     * leased buffer as they arrive, releasing each as soon as it is copied.
+     */
+    private BufferArena.Lease copyInto(Flux<DataBuffer> body, int length) {
+        BufferArena.Lease[] target = new BufferArena.Lease[1];
+        try {
+            body.doOnNext(chunk -> {
+                try (DataBuffer.ByteBufferIterator buffers = chunk.readableByteBuffers()) {
+                    if (target[0] == null) target[0] = bufferArena.acquire(length >= 0 ? length : chunk.readableByteCount());
+                    ByteBuffer dst = target[0].buffer();
+                    while (buffers.hasNext()) {
+                        ByteBuffer src = buffers.next();
+                        if (src.remaining() > dst.remaining()) throw new IllegalStateException("object longer than its Content-Length");
+                        dst.put(src);
+                    }
+                } finally {
+                    DataBufferUtils.release(chunk);
+                }
+            }).blockLast();
+            if (target[0] == null) target[0] = bufferArena.acquire(0);
+            ByteBuffer dst = target[0].buffer();
+            if (dst.hasRemaining()) throw new IllegalStateException("object shorter than its Content-Length");
+            dst.flip();
+            return target[0];
+        } catch (RuntimeException e) {
+            if (target[0] != null) target[0].close();
+            throw e;
         }
     }
 
     @Override
     public void deleteObject(String bucket, String objectKey) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
         try {
             webClient.delete()
                     .uri("/storage/v1/object/{bucket}/{key}", bucket, objectKey)
@@ -71,11 +250,94 @@ public class SupabaseStorageServiceImpl implements SupabaseStorageService {
                     .retrieve()
                     .toBodilessEntity()
                     .block();
+            blobCache.evict(bucket, objectKey);
+            outcome = "success";
         } catch (WebClientResponseException e) {
             throw new StorageUnavailableException(
                     "Failed to delete object: " + objectKey + " — HTTP " + e.getStatusCode(), e);
         } catch (Exception e) {
             throw new StorageUnavailableException("Failed to delete object: " + objectKey, e);
+        } finally {
+            sample.stop(requestTimer("delete", outcome));
         }
     }
+
+    @Override
+    public void deleteObjects(String bucket, List<String> objectKeys) {
+        if (objectKeys.isEmpty()) return;
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            webClient.method(HttpMethod.DELETE)
+                    .uri("/storage/v1/object/{bucket}", bucket)
+                    .header("Authorization", "Bearer " + serviceRoleKey)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("prefixes", objectKeys))
+                    .retrieve()
+                    .toBodilessEntity()
+                    .block();
+            objectKeys.forEach(key -> blobCache.evict(bucket, key));
+            outcome = "success";
+        } catch (WebClientResponseException e) {
+            throw new StorageUnavailableException(
+                    "Failed to delete " + objectKeys.size() + " objects — HTTP " + e.getStatusCode(), e);
+        } catch (Exception e) {
+            throw new StorageUnavailableException("Failed to delete " + objectKeys.size() + " objects", e);
+        } finally {
+            sample.stop(requestTimer("delete_batch", outcome));
+        }
+    }
+
+    @Override
+    public List<StorageEntry> listFolder(String bucket, String folder, int limit, int offset) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            List<Map<String, Object>> entries = webClient.post()
+                    .uri("/storage/v1/object/list/{bucket}", bucket)
+                    .header("Authorization", "Bearer " + serviceRoleKey)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of(
+                            "prefix", folder,
+                            "limit", limit,
+                            "offset", offset,
+                            "sortBy", Map.of("column", "name", "order", "asc")))
+                    .retrieve()
+                    .bodyToMono(new ParameterizedTypeReference<List<Map<String, Object>>>() {})
+                    .block();
+            outcome = "success";
+            if (entries == null) return List.of();
+            // Folders are synthesized from key prefixes, so they have no id or timestamps
+            return entries.stream()
+                    .map(e -> new StorageEntry(
+                            (String) e.get("name"),
+                            e.get("id") == null,
+                            e.get("created_at") == null ? null : Instant.parse((String) e.get("created_at"))))
+                    .toList();
+        } catch (WebClientResponseException e) {
+            throw new StorageUnavailableException(
+                    "Failed to list folder: " + folder + " — HTTP " + e.getStatusCode(), e);
+        } catch (Exception e) {
+            throw new StorageUnavailableException("Failed to list folder: " + folder, e);
+        } finally {
+            sample.stop(requestTimer("list", outcome));
+        }
+    }
+
+    private Timer requestTimer(String op, String outcome) {
+        return Timer.builder("kms.storage.request")
+                .description("Supabase Storage request latency")
+                .tag("op", op)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private DistributionSummary payloadSummary(String op) {
+        return DistributionSummary.builder("kms.storage.payload")
+                .description("Object bytes transferred to/from Supabase Storage")
+                .baseUnit("bytes")
+                .tag("op", op)
+                .register(meterRegistry);
+    }
 }
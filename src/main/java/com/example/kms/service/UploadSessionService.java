@@ -0,0 +1,36 @@
+package com.example.kms.service;
+
+import com.example.kms.dto.UploadSessionDTO;
+import com.example.kms.dto.VaultFileDTO;
+
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resumable (tus-style) vault uploads: create a session for a known length, append chunks at
+ * the session's current offset, then finalize into a VaultFile. Chunks are encrypted into
+ * SegmentedAead segments and stored as they arrive, so a dropped connection only loses the
+ * chunk in flight.
+ */
+public interface UploadSessionService {
+
+    UploadSessionDTO create(String emailHash, String filename, long length) throws Exception;
+
+    UploadSessionDTO status(String emailHash, UUID sessionId);
+
+    /**
+     * Appends a chunk of chunkLength bytes that starts at offset. Only whole segments are kept
+     * (plus the final partial segment once the chunk reaches the end), so the returned offset
+     * may be less than offset + chunkLength; the client resumes from the returned offset. A
+     * chunk that stops short of the end must be at least one segment long.
+     */
+    CompletableFuture<Long> appendAsync(String emailHash, UUID sessionId, long offset,
+                                        InputStream body, long chunkLength) throws Exception;
+
+    CompletableFuture<VaultFileDTO> completeAsync(String emailHash, UUID sessionId) throws Exception;
+
+    void abort(String emailHash, UUID sessionId);
+
+    void purgeExpired();
+}
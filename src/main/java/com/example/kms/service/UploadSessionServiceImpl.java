@@ -0,0 +1,414 @@
+package com.example.kms.service;
+
+import com.example.kms.dto.UploadSessionDTO;
+import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.exception.MemoryBudgetExceededException;
+import com.example.kms.exception.ResourceNotFoundException;
+import com.example.kms.exception.UploadOffsetConflictException;
+import com.example.kms.model.BlobFormat;
+import com.example.kms.model.Client;
+import com.example.kms.model.FileCategory;
+import com.example.kms.model.UploadSession;
+import com.example.kms.model.VaultFile;
+import com.example.kms.repository.ClientRepository;
+import com.example.kms.repository.UploadSessionRepository;
+import com.example.kms.repository.VaultFileRepository;
+import com.example.kms.util.BufferArena;
+import com.example.kms.util.SegmentedAead;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+@Service
+public class UploadSessionServiceImpl implements UploadSessionService {
+
+    private static final String PURGE_LEASE = "upload-session-purge";
+    private static final Duration PURGE_LEASE_TTL = Duration.ofMinutes(2);
+    private static final String PART_CONTENT_TYPE = "application/octet-stream";
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final VaultFileRepository vaultFileRepository;
+    private final ClientRepository clientRepository;
+    private final CryptoService cryptoService;
+    private final IngestService ingestService;
+    private final SupabaseStorageService supabaseStorageService;
+    private final StorageQuotaService storageQuotaService;
+    private final SchedulerLeaseService leaseService;
+    private final MemoryBudgetService memoryBudgetService;
+    private final BlobGcService blobGcService;
+    private final Executor cryptoExecutor;
+
+    @Value("${supabase.storage.bucket}")
+    private String bucket;
+
+    @Value("${app.upload.segment-bytes:1048576}")
+    private int segmentBytes;
+
+    @Value("${app.upload.session-ttl:PT24H}")
+    private Duration sessionTtl;
+
+    @Value("${app.upload.max-bytes:1073741824}")
+    private long maxUploadBytes;
+
+    @Value("${app.upload.max-chunk-bytes:67108864}")
+    private long maxChunkBytes;
+
+    public UploadSessionServiceImpl(
+            UploadSessionRepository uploadSessionRepository,
+            VaultFileRepository vaultFileRepository,
+            ClientRepository clientRepository,
+            CryptoService cryptoService,
+            IngestService ingestService,
+            SupabaseStorageService supabaseStorageService,
+            StorageQuotaService storageQuotaService,
+            SchedulerLeaseService leaseService,
+            MemoryBudgetService memoryBudgetService,
+            BlobGcService blobGcService,
+            @Qualifier("cryptoExecutor") Executor cryptoExecutor) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.vaultFileRepository = vaultFileRepository;
+        this.clientRepository = clientRepository;
+        this.cryptoService = cryptoService;
+        this.ingestService = ingestService;
+        this.supabaseStorageService = supabaseStorageService;
+        this.storageQuotaService = storageQuotaService;
+        this.leaseService = leaseService;
+        this.memoryBudgetService = memoryBudgetService;
+        this.blobGcService = blobGcService;
+        this.cryptoExecutor = cryptoExecutor;
+    }
+
+    @Override
+    public UploadSessionDTO create(String emailHash, String filename, long length) throws Exception {
+        if (length < 0) throw new IllegalArgumentException("Upload-Length must not be negative");
+        if (length > maxUploadBytes) throw new MaxUploadSizeExceededException(maxUploadBytes);
+        Client client = clientRepository.findByEmailHash(emailHash)
+                .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
+
+        // The whole blob is charged up front, so appending chunks never has to touch the quota
+        long blobLength = SegmentedAead.blobLength(length, segmentBytes);
+        storageQuotaService.reserve(emailHash, blobLength);
+        try {
+            byte[] dek = cryptoService.randomBytes(32);
+            int kekVersion = cryptoService.currentServerKekVersion();
+            String dekWrappedServer = cryptoService.wrapDekForServer(emailHash, dek);
+            Arrays.fill(dek, (byte) 0);
+
+            UploadSession session = UploadSession.builder()
+                    .owner(client)
+                    .filename(filename)
+                    .totalSize(length)
+                    .segmentSize(segmentBytes)
+                    .receivedBytes(0)
+                    .dekWrappedServer(dekWrappedServer)
+                    .serverKekVersion(kekVersion)
+                    .expiresAt(LocalDateTime.now().plus(sessionTtl))
+                    .build();
+            return toDTO(uploadSessionRepository.save(session));
+        } catch (Exception e) {
+            storageQuotaService.release(emailHash, blobLength);
+            throw e;
+        }
+    }
+
+    @Override
+    public UploadSessionDTO status(String emailHash, UUID sessionId) {
+        return toDTO(load(emailHash, sessionId));
+    }
+
+    @Override
+    public CompletableFuture<Long> appendAsync(String emailHash, UUID sessionId, long offset,
+                                               InputStream body, long chunkLength) throws Exception {
+        if (chunkLength > maxChunkBytes) throw new MaxUploadSizeExceededException(maxChunkBytes);
+        UploadSession session = load(emailHash, sessionId);
+        if (offset != session.getReceivedBytes()) {
+            throw new UploadOffsetConflictException(
+                    "Upload-Offset " + offset + " does not match the session offset", session.getReceivedBytes());
+        }
+        long total = session.getTotalSize();
+        if (chunkLength < 0 || offset + chunkLength > total) {
+            throw new IllegalArgumentException("Chunk runs past Upload-Length " + total);
+        }
+        // A chunk that ends short of Upload-Length keeps only whole segments; one shorter than a
+        // segment would keep nothing and leave the offset where it was, however often it is re-sent
+        if (offset + chunkLength < total && chunkLength < session.getSegmentSize()) {
+            throw new IllegalArgumentException("Chunks before the last must be at least Upload-Segment-Size ("
+                    + session.getSegmentSize() + " bytes)");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            // A chunk is encrypted one segment at a time: a plaintext and a sealed segment in memory
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(2L * session.getSegmentSize())) {
+                return append(emailHash, session, offset, body, chunkLength);
+            } catch (UploadOffsetConflictException | MemoryBudgetExceededException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Chunk upload failed", e);
+            }
+        }, cryptoExecutor);
+    }
+
+    private long append(String emailHash, UploadSession session, long offset,
+                        InputStream body, long chunkLength) throws Exception {
+        long total = session.getTotalSize();
+        int segmentSize = session.getSegmentSize();
+        long end = offset + chunkLength;
+        long finalIndex = SegmentedAead.segmentCount(total, segmentSize) - 1;
+        boolean reachesEnd = end == total;
+
+        // Keep whole segments only, unless this chunk completes the payload (then keep everything)
+        long keep = reachesEnd ? chunkLength : (end / segmentSize) * segmentSize - offset;
+        boolean emptyPayload = total == 0 && session.getPartKeys().length == 0;
+        InputStream in = ingestService.peekable(body);
+        if (keep <= 0 && !emptyPayload) {
+            // Only an empty chunk at the end of an already complete payload gets here
+            StreamUtils.drain(in);
+            return offset;
+        }
+
+        long firstIndex = offset / segmentSize;
+        long segments = reachesEnd ? finalIndex - firstIndex + 1 : keep / segmentSize;
+        long partLength = SegmentedAead.segmentsLength(keep, segments);
+        String contentType = offset == 0 ? ingestService.detectMimeType(in, session.getFilename()) : null;
+
+        byte[] dek = unwrapDek(emailHash, session);
+        String partKey = "uploads/" + session.getId() + "/" + UUID.randomUUID();
+        try (InputStream segmentStream = cryptoService.aesGcmSegmentStream(
+                dek, StreamUtils.nonClosing(in), segmentSize, firstIndex, keep, finalIndex)) {
+            supabaseStorageService.putObjectStream(bucket, partKey, segmentStream, partLength, PART_CONTENT_TYPE);
+        } finally {
+            Arrays.fill(dek, (byte) 0);
+        }
+        // The unkept tail of the chunk is re-sent by the client from the returned offset
+        StreamUtils.drain(in);
+
+        if (uploadSessionRepository.advance(session.getId(), offset, offset + keep, partKey, contentType) != 1) {
+            // Another request for the same offset won; ours is a duplicate
+            blobGcService.tombstone(List.of(partKey));
+            long current = uploadSessionRepository.findById(session.getId())
+                    .map(UploadSession::getReceivedBytes)
+                    .orElse(offset);
+            throw new UploadOffsetConflictException("Upload session advanced concurrently", current);
+        }
+        return offset + keep;
+    }
+
+    @Override
+    public CompletableFuture<VaultFileDTO> completeAsync(String emailHash, UUID sessionId) throws Exception {
+        UploadSession session = load(emailHash, sessionId);
+        if (session.getReceivedBytes() != session.getTotalSize() || session.getPartKeys().length == 0) {
+            throw new UploadOffsetConflictException("Upload is not complete", session.getReceivedBytes());
+        }
+        // Parts are copied through one at a time, each held in a leased buffer while it streams
+        long largestPart = SegmentedAead.blobLength(Math.min(maxChunkBytes, session.getTotalSize()), session.getSegmentSize());
+        return CompletableFuture.supplyAsync(() -> {
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(largestPart)) {
+                return complete(emailHash, session);
+            } catch (ResourceNotFoundException | MemoryBudgetExceededException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Upload finalize failed", e);
+            }
+        }, cryptoExecutor);
+    }
+
+    private VaultFileDTO complete(String emailHash, UploadSession session) throws Exception {
+        Client client = clientRepository.findByEmailHash(emailHash)
+                .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
+        long blobLength = SegmentedAead.blobLength(session.getTotalSize(), session.getSegmentSize());
+
+        // 1. Concatenate header + parts into the final object; parts are already encrypted, so
+        //    this is a storage-side copy through one part-sized buffer, not a re-encryption
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        String storageKey = "vault/" + emailHash + "/" + UUID.randomUUID();
+        String contentType = session.getContentType() != null ? session.getContentType() : PART_CONTENT_TYPE;
+        try (InputStream blob = new DigestInputStream(concatenatedParts(session), sha256)) {
+            supabaseStorageService.putObjectStream(bucket, storageKey, blob, blobLength, contentType);
+        }
+
+        // 2. Wrap the session DEK for the client, and re-wrap it for the server under the current KEK
+        byte[] dek = unwrapDek(emailHash, session);
+        byte[] salt = cryptoService.randomBytes(16);
+        String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
+        List<byte[]> wrapped;
+        try {
+            wrapped = cryptoService.wrapDekForRecipients(
+                    dek,
+                    cryptoService.getServerPrivateKey(),
+                    List.of(CryptoService.WrapRecipient.x25519(client.getPublicKey(), salt, info.getBytes()),
+                            CryptoService.WrapRecipient.server(emailHash)));
+        } finally {
+            Arrays.fill(dek, (byte) 0);
+        }
+
+        // 3. Persist the VaultFile; its encrypted size is exactly what create() reserved
+        VaultFile vaultFile = VaultFile.builder()
+                .owner(client)
+                .filename(session.getFilename())
+                .contentType(contentType)
+                .category(FileCategory.fromMimeType(contentType))
+                .storageKey(storageKey)
+                .originalSize(session.getTotalSize())
+                .encryptedSize(blobLength)
+                .blobSha256(HexFormat.of().formatHex(sha256.digest()))
+                .blobFormat(BlobFormat.GCM_SEGMENTED)
+                .dekWrappedClient(Base64.getEncoder().encodeToString(wrapped.get(0)))
+                .dekWrappedServer(Base64.getEncoder().encodeToString(wrapped.get(1)))
+                .serverKekVersion(cryptoService.currentServerKekVersion())
+                .iv("") // segmented blobs carry a nonce per segment
+                .salt(Base64.getEncoder().encodeToString(salt))
+                .guest(false)
+                .build();
+
+        // Deleting the session is the claim: a concurrent finalize of the same session loses here
+        if (uploadSessionRepository.deleteByIdAndReceivedBytes(session.getId(), session.getTotalSize()) != 1) {
+            blobGcService.tombstone(List.of(storageKey));
+            throw new ResourceNotFoundException("Upload session not found: " + session.getId());
+        }
+        VaultFile saved;
+        try {
+            saved = vaultFileRepository.save(vaultFile);
+        } catch (RuntimeException e) {
+            // The session is gone, so nothing else will return its reservation or its objects
+            storageQuotaService.release(emailHash, blobLength);
+            List<String> orphans = new ArrayList<>(Arrays.asList(session.getPartKeys()));
+            orphans.add(storageKey);
+            blobGcService.tombstone(orphans);
+            throw e;
+        }
+        blobGcService.tombstone(Arrays.asList(session.getPartKeys()));
+        return new VaultFileDTO(saved.getId(), saved.getFilename(), saved.getContentType(), saved.getCategory(),
+                saved.getOriginalSize(), saved.getCreatedAt(), saved.getUpdatedAt());
+    }
+
+    private InputStream concatenatedParts(UploadSession session) {
+        String[] partKeys = session.getPartKeys();
+        Enumeration<InputStream> streams = new Enumeration<>() {
+            private int next = -1; // -1 is the header
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < partKeys.length;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                InputStream stream = next < 0
+                        ? new ByteArrayInputStream(SegmentedAead.header(session.getSegmentSize()))
+                        : new LeaseInputStream(supabaseStorageService.getObjectPooled(bucket, partKeys[next]));
+                next++;
+                return stream;
+            }
+        };
+        return new SequenceInputStream(streams);
+    }
+
+    /** Reads a fetched part out of its leased buffer; SequenceInputStream closes it, returning the lease, before fetching the next. */
+    private static final class LeaseInputStream extends InputStream {
+
+        private final BufferArena.Lease lease;
+        private final ByteBuffer buffer;
+
+        LeaseInputStream(BufferArena.Lease lease) {
+            this.lease = lease;
+            this.buffer = lease.buffer().duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            lease.close();
+        }
+    }
+
+    @Override
+    public void abort(String emailHash, UUID sessionId) {
+        UploadSession session = load(emailHash, sessionId);
+        discard(emailHash, session);
+    }
+
+    /** Drops sessions past their TTL, a page at a time, on whichever node holds the lease. */
+    @Override
+    @Scheduled(fixedDelayString = "${app.upload.purge-interval-ms:300000}")
+    public void purgeExpired() {
+        if (!leaseService.tryAcquire(PURGE_LEASE, PURGE_LEASE_TTL)) return;
+        List<UploadSession> expired;
+        do {
+            expired = uploadSessionRepository.findExpiredWithOwner(LocalDateTime.now(), PageRequest.of(0, 100));
+            for (UploadSession session : expired) {
+                discard(session.getOwner().getEmailHash(), session);
+            }
+        } while (expired.size() == 100 && leaseService.tryAcquire(PURGE_LEASE, PURGE_LEASE_TTL));
+    }
+
+    private void discard(String emailHash, UploadSession session) {
+        if (uploadSessionRepository.deleteByIdAndReceivedBytes(session.getId(), session.getReceivedBytes()) != 1) {
+            return; // finalized or advanced meanwhile
+        }
+        blobGcService.tombstone(Arrays.asList(session.getPartKeys()));
+        storageQuotaService.release(emailHash,
+                SegmentedAead.blobLength(session.getTotalSize(), session.getSegmentSize()));
+    }
+
+    private UploadSession load(String emailHash, UUID sessionId) {
+        UploadSession session = uploadSessionRepository.findByIdAndOwner_EmailHash(sessionId, emailHash)
+                .orElseThrow(() -> new ResourceNotFoundException("Upload session not found: " + sessionId));
+        if (session.getExpiresAt().isBefore(LocalDateTime.now())) {
+            throw new ResourceNotFoundException("Upload session expired: " + sessionId);
+        }
+        return session;
+    }
+
+    private byte[] unwrapDek(String emailHash, UploadSession session) throws Exception {
+        return cryptoService.unwrapDekForServer(emailHash, session.getDekWrappedServer(), session.getServerKekVersion());
+    }
+
+    private UploadSessionDTO toDTO(UploadSession session) {
+        return new UploadSessionDTO(
+                session.getId(),
+                session.getFilename(),
+                session.getTotalSize(),
+                session.getReceivedBytes(),
+                session.getSegmentSize(),
+                session.getExpiresAt());
+    }
+}
@@ -1,16 +1,25 @@
 package com.example.kms.service;
 
 import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.util.BufferArena;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 public interface VaultService {
     CompletableFuture<VaultFileDTO> uploadFileAsync(String emailHash, MultipartFile file) throws Exception;
+    /** Uploads a raw body of exactly size bytes, encrypting and forwarding it to storage as it is read. */
+    CompletableFuture<VaultFileDTO> uploadStreamAsync(String emailHash, InputStream body, String filename, long size) throws Exception;
     List<VaultFileDTO> listFiles(String emailHash);
-    CompletableFuture<byte[]> downloadFileAsync(String emailHash, UUID fileId) throws Exception;
+    /** Strong ETag of the listing returned by listFiles; changes whenever any file is added, removed, renamed or replaced. */
+    String listETag(String emailHash);
+    /** Strong ETag of a file's decrypted contents, from stored metadata only (no storage or crypto work). */
+    String fileETag(String emailHash, UUID fileId);
+    /** Decrypted file contents in a pooled buffer; the caller closes the lease once it is written out. */
+    CompletableFuture<BufferArena.Lease> downloadFileAsync(String emailHash, UUID fileId) throws Exception;
     VaultFileDTO renameFile(String emailHash, UUID fileId, String newName);
     CompletableFuture<VaultFileDTO> replaceFileAsync(String emailHash, UUID fileId, MultipartFile newFile) throws Exception;
     void deleteFile(String emailHash, UUID fileId);
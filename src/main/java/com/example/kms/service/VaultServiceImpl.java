@@ -1,33 +1,66 @@
 package com.example.kms.service;
 
 import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.exception.FileVersionConflictException;
+import com.example.kms.exception.MemoryBudgetExceededException;
 import com.example.kms.exception.ResourceNotFoundException;
+import com.example.kms.model.BlobFormat;
 import com.example.kms.model.Client;
+import com.example.kms.model.Compression;
 import com.example.kms.model.FileCategory;
 import com.example.kms.model.VaultFile;
 import com.example.kms.repository.ClientRepository;
 import com.example.kms.repository.VaultFileRepository;
-import org.apache.tika.Tika;
+import com.example.kms.repository.VaultListingVersion;
+import com.example.kms.util.BufferArena;
+import com.example.kms.util.EncryptDecryptConverter;
+import com.example.kms.util.PayloadCodec;
+import com.example.kms.util.SegmentedAead;
+import com.example.kms.util.SingleFlight;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Base64;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 @Service
 public class VaultServiceImpl implements VaultService {
 
+    private static final Logger LOG = Logger.getLogger(VaultServiceImpl.class.getName());
+
+    // Held in memory per streaming upload: a plaintext and a sealed segment, plus read-ahead
+    private static final long STREAM_WORKING_SET_BYTES = 2L * SegmentedAead.DEFAULT_SEGMENT_BYTES + 128 * 1024;
+
     private final VaultFileRepository vaultFileRepository;
     private final ClientRepository clientRepository;
     private final CryptoService cryptoService;
     private final SupabaseStorageService supabaseStorageService;
+    private final StorageQuotaService storageQuotaService;
+    private final IngestService ingestService;
+    private final MemoryBudgetService memoryBudgetService;
+    private final BlobRefService blobRefService;
+    private final ChunkedBlobService chunkedBlobService;
+    private final BlobGcService blobGcService;
+    private final BufferArena bufferArena;
     private final Executor cryptoExecutor;
+    private final SingleFlight<DownloadKey> downloads = new SingleFlight<>();
 
     @Value("${supabase.storage.bucket}")
     private String bucket;
@@ -37,86 +70,201 @@ public class VaultServiceImpl implements VaultService {
             ClientRepository clientRepository,
             CryptoService cryptoService,
             SupabaseStorageService supabaseStorageService,
-            @Qualifier("cryptoExecutor") Executor cryptoExecutor) {
+            StorageQuotaService storageQuotaService,
+            IngestService ingestService,
+            MemoryBudgetService memoryBudgetService,
+            BlobRefService blobRefService,
+            ChunkedBlobService chunkedBlobService,
+            BlobGcService blobGcService,
+            BufferArena bufferArena,
+            @Qualifier("cryptoExecutor") Executor cryptoExecutor,
+            MeterRegistry meterRegistry) {
         this.vaultFileRepository = vaultFileRepository;
         this.clientRepository = clientRepository;
         this.cryptoService = cryptoService;
         this.supabaseStorageService = supabaseStorageService;
+        this.storageQuotaService = storageQuotaService;
+        this.ingestService = ingestService;
+        this.memoryBudgetService = memoryBudgetService;
+        this.blobRefService = blobRefService;
+        this.chunkedBlobService = chunkedBlobService;
+        this.blobGcService = blobGcService;
+        this.bufferArena = bufferArena;
         this.cryptoExecutor = cryptoExecutor;
+        FunctionCounter.builder("kms.vault.download.coalesced", downloads, SingleFlight::coalesced)
+                .description("Downloads served by joining an identical download already in flight")
+                .register(meterRegistry);
     }
 
     @Override
     public CompletableFuture<VaultFileDTO> uploadFileAsync(String emailHash, MultipartFile file) throws Exception {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // 1. Detect MIME type via Apache Tika
-                Tika tika = new Tika();
-                String detectedMimeType = tika.detect(file.getInputStream(), file.getOriginalFilename());
+        // The multipart body is spooled, so it can be read once for the dedup tag and again to encrypt
+        return uploadAsync(emailHash, file::getInputStream, file.getOriginalFilename(), file.getSize(), true);
+    }
 
-                // 2. Determine FileCategory from MIME type
-                FileCategory category = FileCategory.fromMimeType(detectedMimeType);
+    @Override
+    public CompletableFuture<VaultFileDTO> uploadStreamAsync(String emailHash, InputStream body, String filename, long size) throws Exception {
+        return uploadAsync(emailHash, () -> body, filename, size, false);
+    }
 
-                // 3. Generate random 32-byte DEK
-                byte[] dek = cryptoService.randomBytes(32);
+    private CompletableFuture<VaultFileDTO> uploadAsync(String emailHash, Callable<InputStream> body, String filename, long size,
+                                                        boolean deduplicate) throws Exception {
+        // Reserve quota before queueing any work; released again if the upload fails or is deduplicated
+        long reserved = SegmentedAead.blobLength(size, SegmentedAead.DEFAULT_SEGMENT_BYTES);
+        storageQuotaService.reserve(emailHash, reserved);
+        return CompletableFuture.supplyAsync(() -> {
+            // 0. Same content already stored for this client: share its blob and skip the upload
+            String contentHmac = null;
+            if (deduplicate) {
+                contentHmac = contentHmac(emailHash, body);
+                Optional<VaultFileDTO> duplicate = saveDuplicate(emailHash, contentHmac, filename);
+                if (duplicate.isPresent()) {
+                    storageQuotaService.release(emailHash, reserved);
+                    return duplicate.get();
+                }
+            }
+            // 1. Generate random 32-byte DEK
+            byte[] dek = cryptoService.randomBytes(32);
 
-                // 4. Encrypt file bytes → iv||ciphertext
-                byte[] encryptedBlob = cryptoService.aesGcmEncryptBytes(dek, file.getBytes());
+            // 2-4. One read of the upload: detect MIME type/category, then (deflate and) encrypt as storage pulls it.
+            //      Only multipart bodies can be read again to measure their deflated length.
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(STREAM_WORKING_SET_BYTES);
+                 IngestService.IngestedStream ingested = ingestService.open(body, filename, size, dek, deduplicate)) {
+                String detectedMimeType = ingested.mimeType();
+                FileCategory category = ingested.category();
 
                 // 5. Generate random 16-byte salt
                 byte[] salt = cryptoService.randomBytes(16);
 
-                // 6. Wrap DEK for client using X25519
+                // 6. Wrap DEK for client (X25519) and server in one pass
                 Client client = clientRepository.findByEmailHash(emailHash)
                         .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
                 String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
-                String dekWrappedClient = cryptoService.wrapDekForRecipient(
+                List<byte[]> wrapped = cryptoService.wrapDekForRecipients(
                         dek,
                         cryptoService.getServerPrivateKey(),
-                        client.getPublicKey(),
-                        salt,
-                        info.getBytes());
+                        List.of(CryptoService.WrapRecipient.x25519(client.getPublicKey(), salt, info.getBytes()),
+                                CryptoService.WrapRecipient.server(emailHash)));
+                String dekWrappedClient = Base64.getEncoder().encodeToString(wrapped.get(0));
 
-                // 7. Wrap DEK for server using HKDF
-                byte[] serverKek = cryptoService.deriveServerKek(emailHash);
-                byte[] wrappedServerBytes = cryptoService.aesGcmEncryptBytes(serverKek, dek);
-                String dekWrappedServer = Base64.getEncoder().encodeToString(wrappedServerBytes);
+                // 7. Server-wrapped DEK (HKDF under the current server KEK version), wrapped above
+                String dekWrappedServer = Base64.getEncoder().encodeToString(wrapped.get(1));
 
                 // 8. Build storage key
                 String storageKey = "vault/" + emailHash + "/" + UUID.randomUUID();
 
-                // 9. Store encrypted blob in Supabase
-                supabaseStorageService.putObject(bucket, storageKey, encryptedBlob, detectedMimeType);
+                // 9. Stream the encrypted blob to Supabase, encrypting as the request body is sent
+                long encryptedSize = ingested.encryptedLength();
+                supabaseStorageService.putObjectStream(bucket, storageKey, ingested.encryptedBlob(), encryptedSize, detectedMimeType);
 
-                // 10. Extract IV from encrypted result (first 12 bytes) and encode as Base64
-                byte[] ivBytes = new byte[12];
-                System.arraycopy(encryptedBlob, 0, ivBytes, 0, 12);
-                String ivBase64 = Base64.getEncoder().encodeToString(ivBytes);
+                // 10. No blob-level IV: segmented blobs carry a nonce per segment
+                String ivBase64 = "";
                 String saltBase64 = Base64.getEncoder().encodeToString(salt);
 
                 // 11. Save VaultFile entity
                 VaultFile vaultFile = VaultFile.builder()
                         .owner(client)
-                        .filename(file.getOriginalFilename())
+                        .filename(filename)
                         .contentType(detectedMimeType)
                         .category(category)
                         .storageKey(storageKey)
-                        .originalSize(file.getSize())
-                        .encryptedSize(encryptedBlob.length)
+                        .originalSize(size)
+                        .encryptedSize(encryptedSize)
+                        .blobSha256(HexFormat.of().formatHex(ingested.blobSha256()))
+                        .blobFormat(BlobFormat.GCM_SEGMENTED)
+                        .compression(ingested.compression())
                         .dekWrappedClient(dekWrappedClient)
                         .dekWrappedServer(dekWrappedServer)
+                        .serverKekVersion(cryptoService.currentServerKekVersion())
                         .iv(ivBase64)
                         .salt(saltBase64)
                         .guest(false)
                         .build();
 
-                VaultFile saved = vaultFileRepository.save(vaultFile);
+                // Registered before the file exists, so nothing can delete the file and release the blob
+                // while it has no reference row yet
+                boolean shared = contentHmac != null && registerBlob(client, storageKey, contentHmac);
+                VaultFile saved;
+                try {
+                    saved = vaultFileRepository.save(vaultFile);
+                } catch (RuntimeException e) {
+                    if (!shared || blobRefService.release(storageKey)) blobGcService.tombstone(List.of(storageKey));
+                    throw e;
+                }
+                // The reservation assumed an uncompressed payload
+                if (encryptedSize < reserved) storageQuotaService.release(emailHash, reserved - encryptedSize);
 
                 // 12. Return VaultFileDTO
                 return toDTO(saved);
+            } catch (MemoryBudgetExceededException e) {
+                throw e;
             } catch (Exception e) {
                 throw new RuntimeException("Upload failed", e);
             }
-        }, cryptoExecutor);
+        }, cryptoExecutor).whenComplete((dto, ex) -> {
+            if (ex != null) storageQuotaService.release(emailHash, reserved);
+        });
+    }
+
+    private String contentHmac(String emailHash, Callable<InputStream> body) {
+        try (InputStream in = body.call()) {
+            return cryptoService.contentHmac(emailHash, in);
+        } catch (Exception e) {
+            throw new RuntimeException("Upload failed", e);
+        }
+    }
+
+    /**
+     * Adds a file that shares the blob (and so the DEK) of an earlier upload with the same
+     * content tag. Only the same client's files can match, so the client-wrapped DEK is reused as is.
+     */
+    private Optional<VaultFileDTO> saveDuplicate(String emailHash, String contentHmac, String filename) {
+        Optional<VaultFile> template = blobRefService.retainDuplicate(emailHash, contentHmac);
+        if (template.isEmpty()) return Optional.empty();
+        VaultFile source = template.get();
+        try {
+            VaultFile duplicate = VaultFile.builder()
+                    .owner(source.getOwner())
+                    .filename(filename)
+                    .contentType(source.getContentType())
+                    .category(source.getCategory())
+                    .storageKey(source.getStorageKey())
+                    .originalSize(source.getOriginalSize())
+                    .encryptedSize(source.getEncryptedSize())
+                    .blobSha256(source.getBlobSha256())
+                    .blobFormat(source.getBlobFormat())
+                    .compression(source.getCompression())
+                    .dekWrappedClient(source.getDekWrappedClient())
+                    .dekWrappedServer(source.getDekWrappedServer())
+                    .serverKekVersion(source.getServerKekVersion())
+                    .iv(source.getIv())
+                    .salt(source.getSalt())
+                    .guest(false)
+                    .build();
+            return Optional.of(toDTO(vaultFileRepository.save(duplicate)));
+        } catch (RuntimeException e) {
+            releaseBlob(emailHash, source.getStorageKey(), source.getEncryptedSize());
+            throw e;
+        }
+    }
+
+    // Dedup is best-effort: a failure here only means the blob isn't shared
+    private boolean registerBlob(Client owner, String storageKey, String contentHmac) {
+        try {
+            blobRefService.register(owner, storageKey, contentHmac);
+            return true;
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to register vault blob for deduplication", e);
+            return false;
+        }
+    }
+
+    /** Drops a file's reference to its blob; the last reference tombstones it and frees its quota. */
+    private void releaseBlob(String emailHash, String storageKey, long encryptedSize) {
+        if (blobRefService.release(storageKey)) {
+            blobGcService.tombstone(List.of(storageKey));
+            storageQuotaService.release(emailHash, encryptedSize);
+        }
     }
 
     @Override
@@ -128,124 +276,211 @@ public class VaultServiceImpl implements VaultService {
     }
 
     @Override
-    public CompletableFuture<byte[]> downloadFileAsync(String emailHash, UUID fileId) throws Exception {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // 1. Find VaultFile by id and owner emailHash
-                VaultFile vaultFile = vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
-                        .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId));
+    public String listETag(String emailHash) {
+        VaultListingVersion version = vaultFileRepository.findListingVersion(emailHash);
+        // Only used as a version token, so the zone the timestamp is read in doesn't matter
+        long lastUpdatedMicros = version.lastUpdated() == null ? 0
+                : version.lastUpdated().toEpochSecond(ZoneOffset.UTC) * 1_000_000 + version.lastUpdated().getNano() / 1_000;
+        return "\"" + version.count() + "-" + Long.toHexString(lastUpdatedMicros) + "\"";
+    }
 
-                // 2. Fetch encrypted blob from Supabase
-                byte[] encryptedBlob = supabaseStorageService.getObject(bucket, vaultFile.getStorageKey());
+    @Override
+    public String fileETag(String emailHash, UUID fileId) {
+        VaultFile vaultFile = vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
+                .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId));
+        // The ciphertext digest pins the exact stored blob, and so the plaintext it decrypts to.
+        // Files from before V8 have none; their storage key is just as unique per blob version.
+        String version = vaultFile.getBlobSha256() != null
+                ? vaultFile.getBlobSha256()
+                : vaultFile.getStorageKey().substring(vaultFile.getStorageKey().lastIndexOf('/') + 1);
+        return "\"" + version + "\"";
+    }
 
-                // 3. Unwrap DEK for client
-                Client client = clientRepository.findByEmailHash(emailHash)
-                        .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
-                byte[] saltBytes = Base64.getDecoder().decode(vaultFile.getSalt());
-                String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
-                byte[] dek = cryptoService.unwrapDek(
-                        vaultFile.getDekWrappedClient(),
-                        cryptoService.getServerPrivateKey(),
-                        client.getPublicKey(),
-                        saltBytes,
-                        info.getBytes());
+    @Override
+    public CompletableFuture<BufferArena.Lease> downloadFileAsync(String emailHash, UUID fileId) throws Exception {
+        // 1. Find VaultFile by id and owner emailHash; ownership is checked per caller, before coalescing
+        return CompletableFuture.supplyAsync(() -> vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
+                        .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId)), cryptoExecutor)
+                // Concurrent downloads of the same stored blob share one fetch and decrypt. The
+                // storage key changes on every replace, so a download never joins a stale version.
+                .thenCompose(vaultFile -> downloads.lease(
+                        new DownloadKey(fileId, vaultFile.getStorageKey()),
+                        () -> CompletableFuture.supplyAsync(() -> fetchAndDecrypt(emailHash, vaultFile), cryptoExecutor)));
+    }
 
-                // 4. Decrypt blob (blob already has iv prepended)
-                return cryptoService.aesGcmDecryptBytes(dek, encryptedBlob);
-            } catch (ResourceNotFoundException e) {
-                throw e;
+    private BufferArena.Lease fetchAndDecrypt(String emailHash, VaultFile vaultFile) {
+        try {
+            // 2. Unwrap DEK for client
+            Client client = clientRepository.findByEmailHash(emailHash)
+                    .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
+            byte[] saltBytes = Base64.getDecoder().decode(vaultFile.getSalt());
+            String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
+            byte[] dek = cryptoService.unwrapDek(
+                    vaultFile.getDekWrappedClient(),
+                    cryptoService.getServerPrivateKey(),
+                    client.getPublicKey(),
+                    saltBytes,
+                    info.getBytes());
+
+            // 3. Chunked files are fetched chunk by chunk, each decrypted into its slice of the output
+            if (vaultFile.getBlobFormat() == BlobFormat.GCM_CHUNKED) {
+                MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(vaultFile.getOriginalSize());
+                try {
+                    return chunkedBlobService.read(vaultFile.getStorageKey(), dek).onClose(memory::close);
+                } catch (Exception e) {
+                    memory.close();
+                    throw e;
+                }
+            }
+
+            //    Otherwise fetch the encrypted blob into a pooled buffer and decrypt it into another,
+            //    so neither the ciphertext nor the plaintext becomes a file-sized heap array.
+            //    Both are budgeted once per flight; the reservation lasts until every caller
+            //    sharing the plaintext has sent it. A deflated payload (no larger than its
+            //    ciphertext) is inflated into a third buffer.
+            boolean deflated = vaultFile.getCompression() == Compression.DEFLATE;
+            MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(
+                    (deflated ? 2 * vaultFile.getEncryptedSize() : vaultFile.getEncryptedSize()) + vaultFile.getOriginalSize());
+            try (BufferArena.Lease encryptedBlob = supabaseStorageService.getObjectPooled(bucket, vaultFile.getStorageKey())) {
+                BufferArena.Lease plaintext = cryptoService.decryptBlob(vaultFile.getBlobFormat(), dek, encryptedBlob.buffer());
+                if (deflated) {
+                    try (BufferArena.Lease payload = plaintext) {
+                        plaintext = bufferArena.acquire(Math.toIntExact(vaultFile.getOriginalSize()));
+                        PayloadCodec.inflate(payload.buffer(), plaintext.buffer().duplicate());
+                    } catch (Exception e) {
+                        plaintext.close();
+                        throw e;
+                    }
+                }
+                return plaintext.onClose(memory::close);
             } catch (Exception e) {
-                throw new RuntimeException("Download failed", e);
+                memory.close();
+                throw e;
             }
-        }, cryptoExecutor);
+        } catch (ResourceNotFoundException | MemoryBudgetExceededException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Download failed", e);
+        }
     }
 
     @Override
     public VaultFileDTO renameFile(String emailHash, UUID fileId, String newName) {
         VaultFile vaultFile = vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
                 .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId));
-        // Update filename — converter will re-encrypt
+        // Targeted update, encrypted the way the entity's converter would, so a concurrent replace is never undone
+        vaultFileRepository.rename(fileId, new EncryptDecryptConverter().convertToDatabaseColumn(newName));
         vaultFile.setFilename(newName);
-        VaultFile saved = vaultFileRepository.save(vaultFile);
-        return toDTO(saved);
+        vaultFile.setUpdatedAt(LocalDateTime.now());
+        return toDTO(vaultFile);
     }
 
     @Override
     public CompletableFuture<VaultFileDTO> replaceFileAsync(String emailHash, UUID fileId, MultipartFile newFile) throws Exception {
+        // Reserve the most the new version can take; trimmed to its real size once it is stored,
+        // and the old version's bytes are released once the file no longer points at it
+        long reserved = chunkedBlobService.maxBlobLength(newFile.getSize());
+        storageQuotaService.reserve(emailHash, reserved);
         return CompletableFuture.supplyAsync(() -> {
-            try {
+            try (MemoryBudgetService.Reservation memory = memoryBudgetService.reserve(chunkedBlobService.writeWorkingSet());
+                 InputStream in = ingestService.peekable(newFile.getInputStream())) {
                 // Find VaultFile, verify ownership
                 VaultFile vaultFile = vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
                         .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId));
-
-                // Detect MIME type
-                Tika tika = new Tika();
-                String detectedMimeType = tika.detect(newFile.getInputStream(), newFile.getOriginalFilename());
-                FileCategory category = FileCategory.fromMimeType(detectedMimeType);
-
-                // Generate new DEK
-                byte[] dek = cryptoService.randomBytes(32);
-
-                // Encrypt new file bytes
-                byte[] encryptedBlob = cryptoService.aesGcmEncryptBytes(dek, newFile.getBytes());
-
-                // Generate new salt
-                byte[] salt = cryptoService.randomBytes(16);
-
-                // Wrap DEK for client
-                Client client = clientRepository.findByEmailHash(emailHash)
-                        .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
-                String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
-                String dekWrappedClient = cryptoService.wrapDekForRecipient(
-                        dek,
-                        cryptoService.getServerPrivateKey(),
-                        client.getPublicKey(),
-                        salt,
-                        info.getBytes());
-
-                // Wrap DEK for server
-                byte[] serverKek = cryptoService.deriveServerKek(emailHash);
-                byte[] wrappedServerBytes = cryptoService.aesGcmEncryptBytes(serverKek, dek);
-                String dekWrappedServer = Base64.getEncoder().encodeToString(wrappedServerBytes);
-
-                // Delete old blob, put new blob
-                supabaseStorageService.deleteObject(bucket, vaultFile.getStorageKey());
-                String newStorageKey = "vault/" + emailHash + "/" + UUID.randomUUID();
-                supabaseStorageService.putObject(bucket, newStorageKey, encryptedBlob, detectedMimeType);
-
-                // Extract IV
-                byte[] ivBytes = new byte[12];
-                System.arraycopy(encryptedBlob, 0, ivBytes, 0, 12);
-                String ivBase64 = Base64.getEncoder().encodeToString(ivBytes);
-                String saltBase64 = Base64.getEncoder().encodeToString(salt);
-
-                // Update all key material fields in DB
+                String replacedKey = vaultFile.getStorageKey();
+                long replacedSize = vaultFile.getEncryptedSize();
+
+                // Detect MIME type from the head of the new file; the stream is left at its start
+                String detectedMimeType = ingestService.detectMimeType(in, newFile.getOriginalFilename());
+
+                // A chunked file keeps its DEK, so the new version can reuse every unchanged chunk
+                // and only upload the rest. Any other file becomes chunked under a new DEK; its old
+                // blob may be shared by deduplicated copies, which keep using it. (Chunked blobs are
+                // only ever written here and never registered for dedup, so they are never shared.)
+                boolean delta = vaultFile.getBlobFormat() == BlobFormat.GCM_CHUNKED;
+                byte[] dek;
+                if (delta) {
+                    dek = cryptoService.unwrapDekForServer(
+                            emailHash, vaultFile.getDekWrappedServer(), vaultFile.getServerKekVersion());
+                } else {
+                    // Generate new DEK and salt, and wrap the DEK for client and server
+                    dek = cryptoService.randomBytes(32);
+                    byte[] salt = cryptoService.randomBytes(16);
+                    Client client = clientRepository.findByEmailHash(emailHash)
+                            .orElseThrow(() -> new ResourceNotFoundException("Client not found: " + emailHash));
+                    String info = "VAULT-v1|dek-wrap|client|emailHash:" + emailHash;
+                    List<byte[]> wrapped = cryptoService.wrapDekForRecipients(
+                            dek,
+                            cryptoService.getServerPrivateKey(),
+                            List.of(CryptoService.WrapRecipient.x25519(client.getPublicKey(), salt, info.getBytes()),
+                                    CryptoService.WrapRecipient.server(emailHash)));
+                    vaultFile.setDekWrappedClient(Base64.getEncoder().encodeToString(wrapped.get(0)));
+                    vaultFile.setDekWrappedServer(Base64.getEncoder().encodeToString(wrapped.get(1)));
+                    vaultFile.setServerKekVersion(cryptoService.currentServerKekVersion());
+                    vaultFile.setIv(""); // chunks carry their own IVs
+                    vaultFile.setSalt(Base64.getEncoder().encodeToString(salt));
+                }
+
+                ChunkedBlobService.Written written = chunkedBlobService.write(
+                        emailHash, dek, in, newFile.getSize(), delta ? replacedKey : null);
+
+                // Point the file at the new version, unless another replace got there first
                 vaultFile.setContentType(detectedMimeType);
-                vaultFile.setCategory(category);
-                vaultFile.setStorageKey(newStorageKey);
+                vaultFile.setCategory(FileCategory.fromMimeType(detectedMimeType));
+                vaultFile.setStorageKey(written.manifestKey());
                 vaultFile.setOriginalSize(newFile.getSize());
-                vaultFile.setEncryptedSize(encryptedBlob.length);
-                vaultFile.setDekWrappedClient(dekWrappedClient);
-                vaultFile.setDekWrappedServer(dekWrappedServer);
-                vaultFile.setIv(ivBase64);
-                vaultFile.setSalt(saltBase64);
-
-                VaultFile saved = vaultFileRepository.save(vaultFile);
-                return toDTO(saved);
-            } catch (ResourceNotFoundException e) {
+                vaultFile.setEncryptedSize(written.encryptedSize());
+                vaultFile.setBlobSha256(written.blobSha256());
+                vaultFile.setBlobFormat(BlobFormat.GCM_CHUNKED);
+                vaultFile.setCompression(Compression.NONE);
+                vaultFile.setUpdatedAt(LocalDateTime.now());
+                if (vaultFileRepository.swapBlob(vaultFile, replacedKey) != 1) {
+                    blobGcService.tombstone(written.writtenKeys());
+                    throw new FileVersionConflictException("File " + fileId + " was replaced concurrently");
+                }
+                storageQuotaService.release(emailHash, reserved - written.encryptedSize());
+
+                // Drop the old version: the chunks only it used, or the whole blob once unreferenced.
+                // If this fails the file is still replaced; reconciliation finds the leftovers.
+                try {
+                    if (delta) {
+                        blobGcService.tombstone(written.staleKeys());
+                        storageQuotaService.release(emailHash, replacedSize);
+                    } else {
+                        releaseBlob(emailHash, replacedKey, replacedSize);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Failed to release the replaced blob of file " + fileId, e);
+                }
+                return toDTO(vaultFile);
+            } catch (ResourceNotFoundException | MemoryBudgetExceededException | FileVersionConflictException e) {
                 throw e;
             } catch (Exception e) {
                 throw new RuntimeException("Replace failed", e);
             }
-        }, cryptoExecutor);
+        }, cryptoExecutor).whenComplete((dto, ex) -> {
+            if (ex != null) storageQuotaService.release(emailHash, reserved);
+        });
     }
 
+    // One transaction: the row goes together with the tombstone for its blob, which is deleted in the background
     @Override
+    @Transactional
     public void deleteFile(String emailHash, UUID fileId) {
         VaultFile vaultFile = vaultFileRepository.findByIdAndOwner_EmailHash(fileId, emailHash)
                 .orElseThrow(() -> new ResourceNotFoundException("File not found: " + fileId));
-        supabaseStorageService.deleteObject(bucket, vaultFile.getStorageKey());
+        // Other files may share the blob (deduplicated uploads); only the last one deletes it
         vaultFileRepository.delete(vaultFile);
+        if (vaultFile.getBlobFormat() == BlobFormat.GCM_CHUNKED) {
+            // Never shared; every version lives in the lineage folder, which goes as a whole
+            blobGcService.tombstone(List.of(chunkedBlobService.lineage(vaultFile.getStorageKey())));
+            storageQuotaService.release(emailHash, vaultFile.getEncryptedSize());
+        } else {
+            releaseBlob(emailHash, vaultFile.getStorageKey(), vaultFile.getEncryptedSize());
+        }
+    }
+
+    private record DownloadKey(UUID fileId, String storageKey) {
     }
 
     private VaultFileDTO toDTO(VaultFile vaultFile) {
@@ -0,0 +1,178 @@
+package com.example.kms.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gradient-style adaptive concurrency limit (after Netflix concurrency-limits' Gradient2).
+ *
+ * The limit follows the ratio of a long-term RTT baseline to the recent RTT: while latency stays
+ * near the baseline the limit grows by a sqrt(limit) headroom, and once queueing inflates the
+ * recent RTT the gradient drops below 1 and the limit shrinks before pools and queues saturate.
+ *
+ * Callers are keyed (user / client address) and each active key may hold at most its fair share
+ * of the current limit, so one noisy caller cannot take every permit.
+ */
+public final class AdaptiveConcurrencyLimiter {
+
+    public enum Rejection { LIMIT, FAIRNESS }
+
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double LONG_WINDOW_ALPHA = 2.0 / (600 + 1);
+    private static final double SHORT_WINDOW_ALPHA = 2.0 / (10 + 1);
+    private static final double DRAIN_ALPHA = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> inFlightByKey = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private double limit;
+    private double longRttNanos;
+    private double shortRttNanos;
+    private double drainPerSecond;
+    private long drainWindowStart = System.nanoTime();
+    private int drainWindowCount;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) throw new IllegalArgumentException("invalid limit bounds");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /** Acquires a permit for key, or returns a rejected permit (see {@link Permit#rejection()}). */
+    public Permit tryAcquire(String key) {
+        int currentLimit = getLimit();
+        int total = inFlight.incrementAndGet();
+        if (total > currentLimit) {
+            inFlight.decrementAndGet();
+            return Permit.rejected(Rejection.LIMIT);
+        }
+
+        int mine = inFlightByKey.merge(key, 1, Integer::sum);
+        int fairShare = Math.max(1, (int) Math.ceil((double) currentLimit / Math.max(1, inFlightByKey.size())));
+        if (mine > fairShare) {
+            releaseKey(key);
+            inFlight.decrementAndGet();
+            return Permit.rejected(Rejection.FAIRNESS);
+        }
+        return new Permit(this, key, System.nanoTime());
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Seconds a rejected caller should wait: the work ahead of it (in-flight requests over the
+     * limit plus any executor backlog) divided by the observed completion rate, clamped to [1, 60].
+     */
+    public long retryAfterSeconds(int queuedBehind) {
+        double rate;
+        int currentLimit;
+        synchronized (this) {
+            rate = drainPerSecond;
+            currentLimit = (int) limit;
+        }
+        int ahead = Math.max(1, inFlight.get() - currentLimit + 1 + Math.max(0, queuedBehind));
+        if (rate <= 0.0) return 5;
+        return Math.max(1, Math.min(60, (long) Math.ceil(ahead / rate)));
+    }
+
+    private void onComplete(String key, long rttNanos, boolean success) {
+        int inFlightAtCompletion = inFlight.getAndDecrement();
+        releaseKey(key);
+        synchronized (this) {
+            recordDrain();
+            if (success) updateLimit(rttNanos, inFlightAtCompletion);
+        }
+    }
+
+    private void releaseKey(String key) {
+        inFlightByKey.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    // Called while holding this
+    private void recordDrain() {
+        drainWindowCount++;
+        long now = System.nanoTime();
+        long elapsed = now - drainWindowStart;
+        if (elapsed >= 1_000_000_000L) {
+            double observed = drainWindowCount * 1e9 / elapsed;
+            drainPerSecond = drainPerSecond == 0.0 ? observed : drainPerSecond + DRAIN_ALPHA * (observed - drainPerSecond);
+            drainWindowStart = now;
+            drainWindowCount = 0;
+        }
+    }
+
+    // Called while holding this
+    private void updateLimit(long rttNanos, int inFlightAtCompletion) {
+        if (longRttNanos == 0.0) {
+            longRttNanos = rttNanos;
+            shortRttNanos = rttNanos;
+            return;
+        }
+        shortRttNanos += SHORT_WINDOW_ALPHA * (rttNanos - shortRttNanos);
+        longRttNanos += LONG_WINDOW_ALPHA * (shortRttNanos - longRttNanos);
+        // Let the baseline recover quickly after a period of elevated latency
+        if (longRttNanos / shortRttNanos > 2.0) longRttNanos *= 0.95;
+
+        // Don't grow while the limit isn't the bottleneck (app-limited)
+        if (inFlightAtCompletion < limit / 2 && shortRttNanos <= longRttNanos * RTT_TOLERANCE) return;
+
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttNanos / shortRttNanos));
+        double target = limit * gradient + Math.sqrt(limit);
+        double next = limit * (1 - SMOOTHING) + target * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    /** An admission decision; successful permits must be released exactly once. */
+    public static final class Permit {
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final String key;
+        private final long startNanos;
+        private final Rejection rejection;
+        private boolean released;
+
+        private Permit(AdaptiveConcurrencyLimiter limiter, String key, long startNanos) {
+            this.limiter = limiter;
+            this.key = key;
+            this.startNanos = startNanos;
+            this.rejection = null;
+        }
+
+        private Permit(Rejection rejection) {
+            this.limiter = null;
+            this.key = null;
+            this.startNanos = 0L;
+            this.rejection = rejection;
+        }
+
+        private static Permit rejected(Rejection rejection) {
+            return new Permit(rejection);
+        }
+
+        public boolean isAcquired() {
+            return rejection == null;
+        }
+
+        public Rejection rejection() {
+            return rejection;
+        }
+
+        /** Releases the permit; only successful completions feed the RTT estimate. */
+        public synchronized void release(boolean success) {
+            if (rejection != null || released) return;
+            released = true;
+            limiter.onComplete(key, System.nanoTime() - startNanos, success);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.kms.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers in power-of-two size classes, for payload data on the crypto and
+ * storage paths (ciphertext fetched from storage, decrypted plaintext, upload segments).
+ *
+ * Whole-file heap arrays of a MiB or more are humongous objects for G1: they bypass the young
+ * generation and are reclaimed only by marking cycles, which is why pauses tracked upload
+ * volume. Direct buffers live off-heap and are recycled here instead of reallocated.
+ *
+ * Classes run from 64 KiB to maxClassBytes; each class has 4 KiB of headroom so a power-of-two
+ * payload plus its framing (segment nonce and tag, blob header) stays in its class. Released
+ * buffers are kept until maxRetainedBytes are idle, after which they are left to the GC.
+ * Requests above the largest class, or made when direct memory is exhausted, get an unpooled
+ * heap buffer so callers never fail for lack of a pooled one.
+ */
+public final class BufferArena {
+
+    private static final int MIN_CLASS_SHIFT = 16; // 64 KiB
+    private static final int CLASS_HEADROOM = 4096;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int classCount;
+    private final long maxRetainedBytes;
+    private final ConcurrentLinkedDeque<ByteBuffer>[] free;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferArena(int maxClassBytes, long maxRetainedBytes) {
+        int maxShift = 32 - Integer.numberOfLeadingZeros(Math.max(maxClassBytes, 1 << MIN_CLASS_SHIFT) - 1);
+        this.classCount = maxShift - MIN_CLASS_SHIFT + 1;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.free = new ConcurrentLinkedDeque[classCount];
+        for (int i = 0; i < classCount; i++) free[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    /**
+     * Leases a buffer with exactly size bytes between position 0 and its limit. Closing the
+     * lease hands the buffer back; it must not be used afterwards.
+     */
+    public Lease acquire(int size) {
+        if (size < 0) throw new IllegalArgumentException("size must not be negative");
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = free[sizeClass].pollFirst();
+            if (buffer != null) {
+                retainedBytes.addAndGet(-buffer.capacity());
+                hits.incrementAndGet();
+            } else {
+                buffer = allocateDirect(classCapacity(sizeClass));
+            }
+        }
+        if (buffer == null) {
+            unpooled.incrementAndGet();
+            return new Lease(this, -1, ByteBuffer.allocate(size).limit(size));
+        }
+        buffer.clear().limit(size);
+        return new Lease(this, sizeClass, buffer);
+    }
+
+    /**
+     * Wraps a buffer that doesn't belong to any arena (e.g. a memory-mapped cache file) so it
+     * can be handed out where a lease is expected. Closing it only runs the onClose actions.
+     */
+    public static Lease unpooled(ByteBuffer buffer) {
+        return new Lease(null, -1, buffer);
+    }
+
+    private ByteBuffer allocateDirect(int capacity) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            allocations.incrementAndGet();
+            return buffer;
+        } catch (OutOfMemoryError e) {
+            return null; // -XX:MaxDirectMemorySize reached; fall back to the heap
+        }
+    }
+
+    private void release(int sizeClass, ByteBuffer buffer) {
+        if (sizeClass < 0) return;
+        if (retainedBytes.addAndGet(buffer.capacity()) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        // LIFO keeps recently used (cache-warm, already faulted-in) buffers in circulation
+        free[sizeClass].offerFirst(buffer);
+    }
+
+    private int sizeClass(int size) {
+        int payload = Math.max(size - CLASS_HEADROOM, 1);
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(payload - 1));
+        int sizeClass = shift - MIN_CLASS_SHIFT;
+        return sizeClass < classCount ? sizeClass : -1;
+    }
+
+    private static int classCapacity(int sizeClass) {
+        return (1 << (sizeClass + MIN_CLASS_SHIFT)) + CLASS_HEADROOM;
+    }
+
+    /** Bytes of idle buffers currently held for reuse. */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /** Leases served from an idle buffer. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Direct buffers allocated because the class had none idle. */
+    public long allocations() {
+        return allocations.get();
+    }
+
+    /** Leases served from the heap (oversized, or direct memory exhausted). */
+    public long unpooled() {
+        return unpooled.get();
+    }
+
+    public static final class Lease implements AutoCloseable {
+
+        private final BufferArena arena;
+        private final int sizeClass;
+        private final ByteBuffer buffer;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private List<Cleaner.Cleanable> onClose;
+
+        private Lease(BufferArena arena, int sizeClass, ByteBuffer buffer) {
+            this.arena = arena;
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Runs action once when the lease is closed, or, should the lease be dropped without
+         * being closed (e.g. a response that was never written), when it is garbage collected.
+         * The action must not refer back to the lease.
+         */
+        public synchronized Lease onClose(Runnable action) {
+            if (onClose == null) onClose = new ArrayList<>(1);
+            onClose.add(CLEANER.register(this, action));
+            return this;
+        }
+
+        // Idempotent: a second close must not put the same buffer in the pool twice
+        @Override
+        public void close() {
+            if (!released.compareAndSet(false, true)) return;
+            if (arena != null) arena.release(sizeClass, buffer);
+            synchronized (this) {
+                if (onClose != null) onClose.forEach(Cleaner.Cleanable::clean);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.kms.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plaintext of a GCM_CHUNKED manifest: the file's chunks in order, each identified by its keyed
+ * tag (HMAC-SHA256 of the chunk's plaintext under a key derived from the file's DEK) and the id
+ * of the write that stored it. The chunk object is {lineage}/{tag hex}.{writeId}, so concurrent
+ * writes to one lineage never share an object.
+ *
+ * <pre>
+ * manifest = "KCM1" || count (int32 BE) || (tag[32] || writeId[16] || length (int32 BE)) * count
+ * </pre>
+ *
+ * The same chunk may appear more than once; it is stored once.
+ */
+public record ChunkManifest(List<Chunk> chunks) {
+
+    public static final int TAG_BYTES = 32;
+
+    private static final int MAGIC = 0x4b434d31; // "KCM1"
+    private static final int ENTRY_BYTES = TAG_BYTES + 16 + 4;
+
+    public record Chunk(String tag, UUID writeId, int length) {
+
+        public String objectName() {
+            return tag + "." + writeId;
+        }
+    }
+
+    public long plaintextLength() {
+        long total = 0;
+        for (Chunk chunk : chunks) total += chunk.length();
+        return total;
+    }
+
+    public static int encodedLength(long chunkCount) {
+        return Math.toIntExact(8 + chunkCount * ENTRY_BYTES);
+    }
+
+    public byte[] encode() {
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(chunks.size())).putInt(MAGIC).putInt(chunks.size());
+        HexFormat hex = HexFormat.of();
+        for (Chunk chunk : chunks) {
+            out.put(hex.parseHex(chunk.tag()))
+                    .putLong(chunk.writeId().getMostSignificantBits())
+                    .putLong(chunk.writeId().getLeastSignificantBits())
+                    .putInt(chunk.length());
+        }
+        return out.array();
+    }
+
+    public static ChunkManifest decode(byte[] encoded) {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        if (encoded.length < 8 || in.getInt() != MAGIC) throw new IllegalArgumentException("not a chunk manifest");
+        int count = in.getInt();
+        if (count < 0 || encoded.length != encodedLength(count)) throw new IllegalArgumentException("truncated chunk manifest");
+        HexFormat hex = HexFormat.of();
+        List<Chunk> chunks = new ArrayList<>(count);
+        byte[] tag = new byte[TAG_BYTES];
+        for (int i = 0; i < count; i++) {
+            in.get(tag);
+            UUID writeId = new UUID(in.getLong(), in.getLong());
+            int length = in.getInt();
+            if (length < 0) throw new IllegalArgumentException("negative chunk length");
+            chunks.add(new Chunk(hex.formatHex(tag), writeId, length));
+        }
+        return new ChunkManifest(chunks);
+    }
+}
@@ -1,52 +1,134 @@
 package com.example.kms.util;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+/**
+ * HKDF-SHA256 (RFC 5869).
+ *
+ * The engine writes into caller-supplied buffers and reuses one Mac per thread, so a derivation
+ * allocates nothing beyond the SecretKeySpec the JCE needs for each Mac.init. The common 32-byte
+ * (single block) output is produced directly into the destination without loops or copies.
+ */
 public final class CryptoUtils {
     private static final String HMAC_ALG = "HmacSHA256";
     private static final int HASH_LEN = 32;
+    private static final byte[] ZERO_SALT = new byte[HASH_LEN];
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
     private CryptoUtils() {}
 
     // RFC5869: HKDF extract+expand
     public static byte[] hkdfExtractAndExpand(byte[] salt, byte[] ikm, byte[] info, int outputLen) throws Exception {
-        if (salt == null) salt = new byte[HASH_LEN]; // zeros
-        byte[] prk = hmac(salt, ikm); // extract
-        return hkdfExpand(prk, info, outputLen);
+        byte[] out = new byte[outputLen];
+        hkdf(salt, ikm, info, out, 0, outputLen);
+        return out;
+    }
+
+    /** Extract + expand into out[outOff, outOff + outputLen). */
+    public static void hkdf(byte[] salt, byte[] ikm, byte[] info, byte[] out, int outOff, int outputLen)
+            throws InvalidKeyException {
+        Scratch s = SCRATCH.get();
+        try {
+            extractInto(s.mac, salt, ikm, s.prk);
+            expandInto(s.mac, s.prk, info, out, outOff, outputLen, s.block);
+        } finally {
+            Arrays.fill(s.prk, (byte) 0);
+        }
+    }
+
+    /** HKDF-Extract with a caller-owned Mac, so multi-recipient wraps share one instance. */
+    public static byte[] hkdfExtract(Mac mac, byte[] salt, byte[] ikm) throws InvalidKeyException {
+        byte[] prk = new byte[HASH_LEN];
+        extractInto(mac, salt, ikm, prk);
+        return prk;
+    }
+
+    /** HKDF-Expand with a caller-owned Mac. */
+    public static byte[] hkdfExpand(Mac mac, byte[] prk, byte[] info, int outputLen) throws InvalidKeyException {
+        byte[] okm = new byte[outputLen];
+        expandInto(mac, prk, info, okm, 0, outputLen, SCRATCH.get().block);
+        return okm;
+    }
+
+    /** HKDF-Expand with a caller-owned Mac into out[outOff, outOff + outputLen). */
+    public static void hkdfExpand(Mac mac, byte[] prk, byte[] info, byte[] out, int outOff, int outputLen)
+            throws InvalidKeyException {
+        expandInto(mac, prk, info, out, outOff, outputLen, SCRATCH.get().block);
+    }
+
+    /** The calling thread's HmacSHA256 instance; callers must not hold it across threads. */
+    public static Mac threadMac() {
+        return SCRATCH.get().mac;
     }
 
-    private static byte[] hkdfExpand(byte[] prk, byte[] info, int outputLen) throws Exception {
-        int n = (int) Math.ceil((double) outputLen / HASH_LEN);
+    public static Mac newHmac() throws NoSuchAlgorithmException {
+        return Mac.getInstance(HMAC_ALG);
+    }
+
+    private static void extractInto(Mac mac, byte[] salt, byte[] ikm, byte[] prk) throws InvalidKeyException {
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? ZERO_SALT : salt, HMAC_ALG));
+        if (ikm != null) mac.update(ikm);
+        doFinal(mac, prk, 0);
+    }
+
+    private static void expandInto(Mac mac, byte[] prk, byte[] info, byte[] out, int outOff, int outputLen,
+                                   byte[] block) throws InvalidKeyException {
+        if (outputLen <= 0) throw new IllegalArgumentException("outputLen must be positive");
+        int n = (outputLen + HASH_LEN - 1) / HASH_LEN;
         if (n > 255) throw new IllegalArgumentException("Cannot expand to more than 255 blocks");
-        byte[] okm = new byte[0];
-        byte[] previous = new byte[0];
-
-        for (int i = 1; i <= n; i++) {
-            ByteBuffer bb = ByteBuffer.allocate(previous.length + (info == null ? 0 : info.length) + 1);
-            bb.put(previous);
-            if (info != null) bb.put(info);
-            bb.put((byte) i);
-            previous = hmac(prk, bb.array());
-            okm = concat(okm, previous);
+        if (out.length - outOff < outputLen) throw new IllegalArgumentException("output buffer too small");
+
+        mac.init(new SecretKeySpec(prk, HMAC_ALG));
+
+        // T(1) = HMAC(PRK, info || 0x01)
+        if (info != null) mac.update(info);
+        mac.update((byte) 1);
+        if (outputLen == HASH_LEN) {
+            doFinal(mac, out, outOff);
+            return;
         }
-        return Arrays.copyOf(okm, outputLen);
+        doFinal(mac, block, 0);
+
+        // T(i) = HMAC(PRK, T(i-1) || info || i); the Mac is reset by doFinal, so no re-init
+        int written = 0;
+        for (int i = 1; ; i++) {
+            int take = Math.min(HASH_LEN, outputLen - written);
+            System.arraycopy(block, 0, out, outOff + written, take);
+            written += take;
+            if (written == outputLen) break;
+            mac.update(block, 0, HASH_LEN);
+            if (info != null) mac.update(info);
+            mac.update((byte) (i + 1));
+            doFinal(mac, block, 0);
+        }
+        Arrays.fill(block, (byte) 0);
     }
 
-    private static byte[] hmac(byte[] key, byte[] data) throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac mac = Mac.getInstance(HMAC_ALG);
-        mac.init(new SecretKeySpec(key, HMAC_ALG));
-        return mac.doFinal(data == null ? new byte[0] : data);
+    private static void doFinal(Mac mac, byte[] out, int offset) {
+        try {
+            mac.doFinal(out, offset);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("output buffer too small", e);
+        }
     }
 
-    private static byte[] concat(byte[] a, byte[] b) {
-        byte[] r = new byte[a.length + b.length];
-        System.arraycopy(a, 0, r, 0, a.length);
-        System.arraycopy(b, 0, r, a.length, b.length);
-        return r;
+    private static final class Scratch {
+        final Mac mac;
+        final byte[] prk = new byte[HASH_LEN];
+        final byte[] block = new byte[HASH_LEN];
+
+        Scratch() {
+            try {
+                mac = Mac.getInstance(HMAC_ALG);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(HMAC_ALG + " unavailable", e);
+            }
+        }
     }
 }
@@ -0,0 +1,48 @@
+package com.example.kms.util;
+
+import java.nio.ByteBuffer;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Per-thread NIST SP 800-90A DRBG for keys, salts and tokens.
+ *
+ * A single shared SecureRandom serialises every caller on its internal lock and, depending on
+ * the provider, may block reading the OS entropy pool. Each thread here gets its own DRBG
+ * instance, seeded once from system entropy when the thread first asks (personalised with the
+ * thread id so instances never share a state) and reseeded by the DRBG's own policy after that.
+ * Drawing bytes is then lock-free and never touches the entropy source on the hot path.
+ */
+public final class Drbg {
+
+    private static final int SECURITY_STRENGTH = 256;
+
+    private static final ThreadLocal<SecureRandom> INSTANCE = ThreadLocal.withInitial(Drbg::newInstance);
+
+    private Drbg() {}
+
+    /** The calling thread's DRBG; callers must not hand it to other threads. */
+    public static SecureRandom current() {
+        return INSTANCE.get();
+    }
+
+    public static byte[] nextBytes(int length) {
+        byte[] b = new byte[length];
+        INSTANCE.get().nextBytes(b);
+        return b;
+    }
+
+    private static SecureRandom newInstance() {
+        byte[] personalization = ByteBuffer.allocate(16)
+                .putLong(Thread.currentThread().getId())
+                .putLong(System.nanoTime())
+                .array();
+        try {
+            return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(
+                    SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY, personalization));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("DRBG unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.kms.util;
+
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking (FastCDC, Xia et al., USENIX ATC '16).
+ *
+ * A gear rolling hash runs over the data and a chunk ends where the hash's top bits are all
+ * zero, so boundaries depend only on the bytes near them: an edit moves the boundaries of the
+ * chunks it touches and the rest of the file chunks exactly as before. Boundaries are never
+ * placed before minBytes (those bytes aren't even hashed) or after maxBytes, and normalized
+ * chunking uses a harder mask before avgBytes and an easier one after it, which keeps chunk
+ * sizes close to the average.
+ *
+ * The gear table comes from a fixed seed: boundaries, and so chunk reuse, must not change
+ * between releases.
+ */
+public final class FastCdc {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x4b4d53434443L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    private final int minBytes;
+    private final int avgBytes;
+    private final int maxBytes;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    /** avgBytes must be a power of two; boundaries are at least minBytes and at most maxBytes apart. */
+    public FastCdc(int minBytes, int avgBytes, int maxBytes) {
+        if (Integer.bitCount(avgBytes) != 1 || minBytes <= 0 || minBytes >= avgBytes || maxBytes <= avgBytes) {
+            throw new IllegalArgumentException("need 0 < min < avg < max, avg a power of two");
+        }
+        this.minBytes = minBytes;
+        this.avgBytes = avgBytes;
+        this.maxBytes = maxBytes;
+        int bits = Integer.numberOfTrailingZeros(avgBytes);
+        // Top bits: with a left-shifting gear hash they depend on the last 64 bytes, the low bits on far fewer
+        this.maskSmall = -1L << (64 - (bits + 2));
+        this.maskLarge = -1L << (64 - (bits - 2));
+    }
+
+    /** Chunking around an average size, with the usual avg/4 minimum and avg*4 maximum. */
+    public static FastCdc withAverage(int avgBytes) {
+        return new FastCdc(avgBytes / 4, avgBytes, avgBytes * 4);
+    }
+
+    public int maxBytes() {
+        return maxBytes;
+    }
+
+    public int minBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Length of the chunk starting at data[off]. Unless the data ends within len bytes, len
+     * must be at least maxBytes, or the result may be a cut forced by the end of the window.
+     */
+    public int cut(byte[] data, int off, int len) {
+        if (len <= minBytes) return len;
+        int limit = Math.min(len, maxBytes);
+        int normal = Math.min(avgBytes, limit);
+        long fp = 0;
+        int i = minBytes;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[data[off + i] & 0xff];
+            if ((fp & maskSmall) == 0) return i + 1;
+        }
+        for (; i < limit; i++) {
+            fp = (fp << 1) + GEAR[data[off + i] & 0xff];
+            if ((fp & maskLarge) == 0) return i + 1;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.kms.util;
+
+/**
+ * Deterministic AES-GCM nonce construction (NIST SP 800-38D, 8.2.1): a 64-bit random fixed
+ * field followed by a 32-bit big-endian invocation counter.
+ *
+ * Each {@link Sequence} draws its fixed field once from the thread's {@link Drbg} and then
+ * counts, so a sequence never repeats a nonce and two sequences collide only if their random
+ * fields do (about 2^-64 per pair, against 2^-96 per pair of fully random nonces but with no
+ * RNG call per message). A sequence draws a fresh field rather than letting the counter wrap.
+ *
+ * Long-lived keys (column master keys, server KEKs, per-recipient wrap keys) take nonces from
+ * {@link #next(byte[], int)}, which uses one sequence per thread. Keys that seal many segments
+ * of one blob use their own sequence so a blob draws randomness once rather than per segment.
+ */
+public final class GcmNonces {
+
+    public static final int NONCE_BYTES = 12;
+
+    private static final ThreadLocal<Sequence> THREAD_SEQUENCE = ThreadLocal.withInitial(Sequence::new);
+
+    private GcmNonces() {}
+
+    /** Writes the calling thread's next nonce into out[offset, offset + 12). */
+    public static void next(byte[] out, int offset) {
+        THREAD_SEQUENCE.get().next(out, offset);
+    }
+
+    public static byte[] next() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        next(nonce, 0);
+        return nonce;
+    }
+
+    /** Starts a new sequence with its own random fixed field. Not thread-safe. */
+    public static Sequence newSequence() {
+        return new Sequence();
+    }
+
+    public static final class Sequence {
+
+        private long fixed;
+        private int counter;
+
+        private Sequence() {
+            reseed();
+        }
+
+        public void next(byte[] out, int offset) {
+            if (counter == -1) reseed(); // all 2^32 counter values of this field used
+            long f = fixed;
+            int c = counter++;
+            for (int i = 7; i >= 0; i--) {
+                out[offset + i] = (byte) f;
+                f >>>= 8;
+            }
+            out[offset + 8] = (byte) (c >>> 24);
+            out[offset + 9] = (byte) (c >>> 16);
+            out[offset + 10] = (byte) (c >>> 8);
+            out[offset + 11] = (byte) c;
+        }
+
+        private void reseed() {
+            fixed = Drbg.current().nextLong();
+            counter = 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.kms.util;
+
+import javax.crypto.AEADBadTagException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Master keys indexed by key id, loaded once from the environment.
+ *
+ * The current key encrypts; every key in the ring decrypts, so values are read with the key
+ * named in their {@link VersionedCiphertext} header and a rotation only has to rewrap lazily.
+ *
+ * Column keys:  VAULT_COLUMN_MASTER_KEY (current), VAULT_COLUMN_MASTER_KEY_ID (default 1),
+ *               VAULT_COLUMN_MASTER_KEY_PREVIOUS ("id:base64[,id:base64...]", decrypt only)
+ * Server KEKs:  VAULT_SERVER_KEK (current, falls back to VAULT_COLUMN_MASTER_KEY),
+ *               VAULT_SERVER_KEK_VERSION (default 1), VAULT_SERVER_KEK_PREVIOUS (same list format)
+ */
+public final class MasterKeyRing {
+
+    private static final Logger LOG = Logger.getLogger(MasterKeyRing.class.getName());
+
+    // Dev-only fallback key (32 bytes). NEVER use in production.
+    private static final String DEV_FALLBACK_KEY_B64 = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=";
+
+    private static final MasterKeyRing COLUMN_KEYS = load(
+            "VAULT_COLUMN_MASTER_KEY", null, "VAULT_COLUMN_MASTER_KEY_ID", "VAULT_COLUMN_MASTER_KEY_PREVIOUS", true);
+
+    private static final MasterKeyRing SERVER_KEKS = load(
+            "VAULT_SERVER_KEK", "VAULT_COLUMN_MASTER_KEY", "VAULT_SERVER_KEK_VERSION", "VAULT_SERVER_KEK_PREVIOUS", false);
+
+    private final int currentKeyId;
+    private final Map<Integer, byte[]> keys; // current key first
+
+    private MasterKeyRing(int currentKeyId, Map<Integer, byte[]> keys) {
+        this.currentKeyId = currentKeyId;
+        this.keys = keys;
+    }
+
+    /** Keyring for AES-256 column encryption (EncryptDecryptConverter / CryptoService column helpers). */
+    public static MasterKeyRing columnKeys() {
+        return COLUMN_KEYS;
+    }
+
+    /** Keyring of server KEK input key material (HKDF IKM for per-user server KEKs). */
+    public static MasterKeyRing serverKeks() {
+        return SERVER_KEKS;
+    }
+
+    public int currentKeyId() {
+        return currentKeyId;
+    }
+
+    public byte[] currentKey() {
+        return keys.get(currentKeyId);
+    }
+
+    public boolean contains(int keyId) {
+        return keys.containsKey(keyId);
+    }
+
+    public byte[] key(int keyId) {
+        byte[] key = keys.get(keyId);
+        if (key == null) throw new IllegalStateException("No master key configured for key id " + keyId);
+        return key;
+    }
+
+    /** Key ids, current first. */
+    public List<Integer> keyIds() {
+        return Collections.unmodifiableList(new ArrayList<>(keys.keySet()));
+    }
+
+    /** Encrypts under the current key with a versioned header. */
+    public byte[] seal(byte[] plaintext) throws Exception {
+        return VersionedCiphertext.seal(currentKeyId, currentKey(), plaintext);
+    }
+
+    /**
+     * Decrypts with the key named in the header. Legacy untagged values are the only case
+     * where keys are tried in turn (current first); the rewrap job tags them.
+     */
+    public byte[] open(byte[] data) throws Exception {
+        int keyId = VersionedCiphertext.keyId(data);
+        if (keyId >= 0 && contains(keyId)) {
+            try {
+                return VersionedCiphertext.open(key(keyId), data, true);
+            } catch (AEADBadTagException e) {
+                // Could be a legacy value whose random IV happens to look like a header
+                return openLegacy(data, e);
+            }
+        }
+        return openLegacy(data, null);
+    }
+
+    /** True when the value already carries a header naming the current key. */
+    public boolean isSealedUnderCurrentKey(byte[] data) {
+        return VersionedCiphertext.keyId(data) == currentKeyId;
+    }
+
+    private byte[] openLegacy(byte[] data, AEADBadTagException headerFailure) throws Exception {
+        AEADBadTagException last = headerFailure;
+        for (byte[] key : keys.values()) {
+            try {
+                return VersionedCiphertext.open(key, data, false);
+            } catch (AEADBadTagException e) {
+                last = e;
+            }
+        }
+        throw last != null ? last : new AEADBadTagException("No key in the ring decrypts this value");
+    }
+
+    // -------------------------------------------------------------------------
+    // Loading
+    // -------------------------------------------------------------------------
+
+    private static MasterKeyRing load(String currentVar, String fallbackVar, String idVar, String previousVar,
+                                      boolean requireAesKey) {
+        String current = System.getenv(currentVar);
+        if ((current == null || current.isBlank()) && fallbackVar != null) {
+            current = System.getenv(fallbackVar);
+        }
+        if (current == null || current.isBlank()) {
+            LOG.log(Level.WARNING,
+                    currentVar + " env var is not set. " +
+                    "Using insecure development fallback key — DO NOT use in production!");
+            current = DEV_FALLBACK_KEY_B64;
+        }
+
+        String idValue = System.getenv(idVar);
+        int currentId = idValue == null || idValue.isBlank() ? 1 : Integer.parseInt(idValue.trim());
+
+        Map<Integer, byte[]> keys = new LinkedHashMap<>();
+        keys.put(currentId, decodeKey(currentVar, current, requireAesKey));
+
+        String previous = System.getenv(previousVar);
+        if (previous != null && !previous.isBlank()) {
+            for (String entry : previous.split(",")) {
+                String[] parts = entry.trim().split(":", 2);
+                if (parts.length != 2) {
+                    throw new IllegalStateException(previousVar + " entries must be formatted as id:base64key");
+                }
+                int id = Integer.parseInt(parts[0].trim());
+                if (id == currentId) {
+                    throw new IllegalStateException(previousVar + " must not reuse the current key id " + currentId);
+                }
+                keys.put(id, decodeKey(previousVar, parts[1].trim(), requireAesKey));
+            }
+        }
+        return new MasterKeyRing(currentId, Collections.unmodifiableMap(keys));
+    }
+
+    private static byte[] decodeKey(String var, String base64, boolean requireAesKey) {
+        byte[] keyBytes = Base64.getDecoder().decode(base64);
+        if (requireAesKey && keyBytes.length != 32) {
+            throw new IllegalStateException(
+                    var + " must be a Base64-encoded 32-byte (256-bit) key, " +
+                    "but got " + keyBytes.length + " bytes.");
+        }
+        return keyBytes;
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.kms.util;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Segmented AES-256-GCM blob format, for payloads that are encrypted piecewise (streaming and
+ * resumable uploads) and for large in-memory payloads whose segments are sealed and opened in
+ * parallel.
+ *
+ * <pre>
+ * blob    = header || segment_0 || ... || segment_n
+ * header  = "KSG1" || segmentSize (int32 BE)
+ * segment = nonce[12] || AES-GCM(dek, nonce, plaintext_i, aad = index (int64 BE) || final (1 byte)) || tag[16]
+ * </pre>
+ *
+ * Every segment holds segmentSize plaintext bytes except the final one, which holds the rest
+ * (possibly zero bytes; an empty payload is one empty final segment). Binding the index and
+ * the final flag into the AAD means segments cannot be reordered, dropped or the blob truncated
+ * without a tag failure. Nonces come from a {@link GcmNonces.Sequence} started for each encrypt
+ * call or stream, so re-encrypting a segment (a retried chunk) never reuses a nonce even if the
+ * client sends different bytes the second time.
+ */
+public final class SegmentedAead {
+
+    public static final int HEADER_BYTES = 8;
+    public static final int NONCE_BYTES = 12;
+    public static final int TAG_BYTES = 16;
+    public static final int SEGMENT_OVERHEAD = NONCE_BYTES + TAG_BYTES;
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+
+    private static final byte[] MAGIC = {'K', 'S', 'G', '1'};
+    private static final String AES_ALG = "AES/GCM/NoPadding";
+
+    private SegmentedAead() {}
+
+    public static byte[] header(int segmentSize) {
+        return ByteBuffer.allocate(HEADER_BYTES).put(MAGIC).putInt(segmentSize).array();
+    }
+
+    public static boolean hasHeader(byte[] blob) {
+        return blob.length >= HEADER_BYTES && Arrays.equals(blob, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /** Number of segments for a payload: at least one, so an empty payload still carries a tag. */
+    public static long segmentCount(long plaintextLength, int segmentSize) {
+        return Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+    }
+
+    /** Bytes the segments for plaintextBytes of payload occupy, excluding the header. */
+    public static long segmentsLength(long plaintextBytes, long segments) {
+        return plaintextBytes + segments * SEGMENT_OVERHEAD;
+    }
+
+    /** Full blob size, header included, for a payload of plaintextLength bytes. */
+    public static long blobLength(long plaintextLength, int segmentSize) {
+        return HEADER_BYTES + segmentsLength(plaintextLength, segmentCount(plaintextLength, segmentSize));
+    }
+
+    /**
+     * Encrypts a whole in-memory payload into a blob. Segments are independent, so once the
+     * payload is at least {@link Parallelism#minParallelBytes()} they are sealed in parallel on
+     * the pool; nonces are laid out up front from one sequence so workers never touch an RNG.
+     */
+    public static byte[] encrypt(byte[] key, byte[] plaintext, int segmentSize, Parallelism parallelism) throws GeneralSecurityException {
+        long segments = segmentCount(plaintext.length, segmentSize);
+        long blobLength = HEADER_BYTES + segmentsLength(plaintext.length, segments);
+        if (blobLength > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("payload too large for one blob");
+
+        byte[] blob = new byte[(int) blobLength];
+        System.arraycopy(header(segmentSize), 0, blob, 0, HEADER_BYTES);
+        byte[] nonces = new byte[(int) segments * NONCE_BYTES];
+        GcmNonces.Sequence sequence = GcmNonces.newSequence();
+        for (int i = 0; i < segments; i++) sequence.next(nonces, i * NONCE_BYTES);
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+
+        parallelism.run(plaintext.length, (int) segments, (cipher, index) -> {
+            boolean last = index == segments - 1;
+            int in = index * segmentSize;
+            int length = last ? plaintext.length - in : segmentSize;
+            int out = HEADER_BYTES + index * (segmentSize + SEGMENT_OVERHEAD);
+            System.arraycopy(nonces, index * NONCE_BYTES, blob, out, NONCE_BYTES);
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BYTES * 8, nonces, index * NONCE_BYTES, NONCE_BYTES));
+            cipher.updateAAD(aad(index, last));
+            cipher.doFinal(plaintext, in, length, blob, out + NONCE_BYTES);
+        });
+        return blob;
+    }
+
+    /** Decrypts a whole blob sequentially; see {@link #decrypt(byte[], byte[], Parallelism)}. */
+    public static byte[] decrypt(byte[] key, byte[] blob) throws GeneralSecurityException {
+        return decrypt(key, blob, Parallelism.SEQUENTIAL);
+    }
+
+    /**
+     * Decrypts a whole blob, verifying every segment and that the last one is marked final.
+     * Segment boundaries follow from the header alone, so large blobs are opened in parallel.
+     */
+    public static byte[] decrypt(byte[] key, byte[] blob, Parallelism parallelism) throws GeneralSecurityException {
+        Layout layout = layout(ByteBuffer.wrap(blob));
+        byte[] plaintext = new byte[layout.plaintextLength()];
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        parallelism.run(plaintext.length, layout.segments(), (cipher, index) -> {
+            boolean last = index == layout.segments() - 1;
+            int in = layout.segmentOffset(index);
+            int ctLength = last ? blob.length - in - NONCE_BYTES : layout.segmentSize() + TAG_BYTES;
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BYTES * 8, blob, in, NONCE_BYTES));
+            cipher.updateAAD(aad(index, last));
+            cipher.doFinal(blob, in + NONCE_BYTES, ctLength, plaintext, index * layout.segmentSize());
+        });
+        return plaintext;
+    }
+
+    /** Plaintext size of the blob between blob's position and limit. */
+    public static int plaintextLength(ByteBuffer blob) throws GeneralSecurityException {
+        return layout(blob).plaintextLength();
+    }
+
+    /**
+     * Buffer form of {@link #decrypt(byte[], byte[], Parallelism)}: opens the blob between
+     * blob's position and limit into out at its position, so pooled direct buffers go through
+     * the cipher without heap copies. Neither buffer's position is moved; out must have
+     * {@link #plaintextLength(ByteBuffer)} bytes remaining.
+     */
+    public static void decrypt(byte[] key, ByteBuffer blob, ByteBuffer out, Parallelism parallelism)
+            throws GeneralSecurityException {
+        Layout layout = layout(blob);
+        if (out.remaining() < layout.plaintextLength()) throw new IllegalArgumentException("output buffer too small");
+        int base = blob.position();
+        int outBase = out.position();
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        parallelism.run(layout.plaintextLength(), layout.segments(), (cipher, index) -> {
+            boolean last = index == layout.segments() - 1;
+            int in = base + layout.segmentOffset(index);
+            int ctLength = last ? blob.limit() - in - NONCE_BYTES : layout.segmentSize() + TAG_BYTES;
+            byte[] nonce = new byte[NONCE_BYTES];
+            blob.get(in, nonce);
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            cipher.updateAAD(aad(index, last));
+            // Slices give each worker its own position/limit over the shared buffers
+            cipher.doFinal(blob.slice(in + NONCE_BYTES, ctLength),
+                    out.slice(outBase + index * layout.segmentSize(), ctLength - TAG_BYTES));
+        });
+    }
+
+    // The header is not covered by any tag, so a damaged one is reported as a failed authentication
+    private static Layout layout(ByteBuffer blob) throws AEADBadTagException {
+        int base = blob.position();
+        if (blob.remaining() < HEADER_BYTES) throw new AEADBadTagException("not a segmented blob");
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (blob.get(base + i) != MAGIC[i]) throw new AEADBadTagException("not a segmented blob");
+        }
+        int segmentSize = blob.getInt(base + MAGIC.length);
+        if (segmentSize <= 0) throw new AEADBadTagException("invalid segment size " + segmentSize);
+
+        long bodyLength = blob.remaining() - HEADER_BYTES;
+        long fullSegment = (long) segmentSize + SEGMENT_OVERHEAD;
+        long segments = Math.max(1, (bodyLength + fullSegment - 1) / fullSegment);
+        long plaintextLength = bodyLength - segments * SEGMENT_OVERHEAD;
+        // A final segment too short for its nonce and tag means the blob was cut mid-segment
+        long finalSegment = bodyLength - (segments - 1) * fullSegment;
+        if (finalSegment < SEGMENT_OVERHEAD || plaintextLength > Integer.MAX_VALUE - 8) {
+            throw new AEADBadTagException("segmented blob has an invalid length");
+        }
+        return new Layout(segmentSize, (int) segments, (int) plaintextLength);
+    }
+
+    private record Layout(int segmentSize, int segments, int plaintextLength) {
+        int segmentOffset(int index) {
+            return HEADER_BYTES + (int) (index * ((long) segmentSize + SEGMENT_OVERHEAD));
+        }
+    }
+
+    static byte[] aad(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    /** Work on one segment, given a Cipher owned by the calling worker. */
+    @FunctionalInterface
+    public interface SegmentOp {
+        void apply(Cipher cipher, int index) throws GeneralSecurityException;
+    }
+
+    /**
+     * Decides whether a payload's segments run in parallel and runs them.
+     *
+     * Payloads under minParallelBytes stay on the caller's thread, where fork/join overhead
+     * would outweigh the gain. Above it the threshold adapts to load: if every worker in the
+     * pool is already busy (other large requests in flight), the caller does the work itself
+     * rather than queueing behind them, so parallelism only spends otherwise idle cores.
+     */
+    public static final class Parallelism {
+
+        public static final Parallelism SEQUENTIAL = new Parallelism(null, Long.MAX_VALUE);
+
+        private final ForkJoinPool pool;
+        private final long minParallelBytes;
+
+        public Parallelism(ForkJoinPool pool, long minParallelBytes) {
+            this.pool = pool;
+            this.minParallelBytes = minParallelBytes;
+        }
+
+        public long minParallelBytes() {
+            return minParallelBytes;
+        }
+
+        boolean shouldFork(long bytes, int segments) {
+            return pool != null
+                    && segments > 1
+                    && bytes >= minParallelBytes
+                    && pool.getParallelism() > 1
+                    && pool.getActiveThreadCount() < pool.getParallelism();
+        }
+
+        void run(long bytes, int segments, SegmentOp op) throws GeneralSecurityException {
+            if (!shouldFork(bytes, segments)) {
+                runRange(op, 0, segments);
+                return;
+            }
+            // ~4 leaves per worker keeps them balanced when the final segment is short
+            int grain = Math.max(1, segments / (pool.getParallelism() * 4));
+            try {
+                pool.invoke(new SegmentTask(op, 0, segments, grain));
+            } catch (SegmentFailure e) {
+                throw e.cause;
+            }
+        }
+
+        private static void runRange(SegmentOp op, int from, int to) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(AES_ALG);
+            for (int index = from; index < to; index++) {
+                op.apply(cipher, index);
+            }
+        }
+
+        private static final class SegmentTask extends RecursiveAction {
+            private final SegmentOp op;
+            private final int from;
+            private final int to;
+            private final int grain;
+
+            SegmentTask(SegmentOp op, int from, int to, int grain) {
+                this.op = op;
+                this.from = from;
+                this.to = to;
+                this.grain = grain;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= grain) {
+                    try {
+                        runRange(op, from, to);
+                    } catch (GeneralSecurityException e) {
+                        throw new SegmentFailure(e);
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new SegmentTask(op, from, mid, grain), new SegmentTask(op, mid, to, grain));
+            }
+        }
+
+        // Carries a checked crypto failure (e.g. a bad tag) out of the pool
+        private static final class SegmentFailure extends RuntimeException {
+            private final GeneralSecurityException cause;
+
+            SegmentFailure(GeneralSecurityException cause) {
+                super(cause);
+                this.cause = cause;
+            }
+        }
+    }
+
+    /**
+     * Yields the segments for a run of a payload: starting at segment firstIndex, it encrypts
+     * plaintextBytes bytes of source into full segments, with the segment numbered finalIndex
+     * (if reached) taking whatever is left and carrying the final flag. Holds one segment of
+     * plaintext and one of output at a time, in buffers leased from the arena and returned on
+     * close.
+     */
+    public static final class EncryptingStream extends InputStream {
+
+        private final SecretKeySpec key;
+        private final GcmNonces.Sequence nonces = GcmNonces.newSequence();
+        private final byte[] nonce = new byte[NONCE_BYTES];
+        private final InputStream source;
+        private final ReadableByteChannel sourceChannel;
+        private final int segmentSize;
+        private final long finalIndex;
+        private final Cipher cipher;
+        private final BufferArena.Lease plainLease;
+        private final BufferArena.Lease segmentLease;
+        private final ByteBuffer plain;
+        private final ByteBuffer segment;
+
+        private long index;
+        private long plaintextLeft;
+        private boolean finalEmitted;
+
+        public EncryptingStream(byte[] key, InputStream source, int segmentSize,
+                                long firstIndex, long plaintextBytes, long finalIndex,
+                                BufferArena arena) throws GeneralSecurityException {
+            this.key = new SecretKeySpec(key, "AES");
+            this.source = source;
+            this.sourceChannel = Channels.newChannel(source);
+            this.segmentSize = segmentSize;
+            this.index = firstIndex;
+            this.plaintextLeft = plaintextBytes;
+            this.finalIndex = finalIndex;
+            this.cipher = Cipher.getInstance(AES_ALG);
+            this.plainLease = arena.acquire(segmentSize);
+            this.segmentLease = arena.acquire(segmentSize + SEGMENT_OVERHEAD);
+            this.plain = plainLease.buffer();
+            this.segment = segmentLease.buffer();
+            segment.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!segment.hasRemaining() && !nextSegment()) return -1;
+            int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            return n;
+        }
+
+        private boolean nextSegment() throws IOException {
+            if (finalEmitted) return false;
+            boolean last = index == finalIndex;
+            // Only an empty payload has an empty (final, index 0) segment; otherwise stop when the run is used up
+            if (plaintextLeft == 0 && !(last && index == 0)) return false;
+            if (last ? plaintextLeft > segmentSize : plaintextLeft < segmentSize) {
+                throw new IOException("payload does not fill segment " + index + " as declared");
+            }
+            int length = (int) (last ? plaintextLeft : segmentSize);
+            readFully(length);
+            try {
+                nonces.next(nonce, 0);
+                segment.clear();
+                segment.put(nonce);
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+                cipher.updateAAD(aad(index, last));
+                cipher.doFinal(plain, segment);
+                segment.flip();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM segment encryption failed", e);
+            }
+            plaintextLeft -= length;
+            finalEmitted = last;
+            index++;
+            return true;
+        }
+
+        private void readFully(int length) throws IOException {
+            plain.clear().limit(length);
+            while (plain.hasRemaining()) {
+                if (sourceChannel.read(plain) < 0) {
+                    throw new EOFException("body ended " + plain.remaining() + " bytes early");
+                }
+            }
+            plain.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                source.close();
+            } finally {
+                plainLease.close();
+                segmentLease.close();
+            }
+        }
+    }
+}
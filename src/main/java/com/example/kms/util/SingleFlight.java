@@ -0,0 +1,69 @@
+package com.example.kms.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key into one (Go's singleflight, for leased buffers).
+ *
+ * The first caller for a key starts the load; callers arriving while it is in flight join it
+ * instead of starting their own. Every caller receives its own read-only view of the loaded
+ * buffer, and the underlying lease is closed once the last view is closed (or collected).
+ *
+ * A flight leaves the table before its result is published, so the number of views is final by
+ * the time any of them exists, and a caller arriving after completion starts a fresh load. If a
+ * caller abandons its future before the view is made, the shared lease is left to the GC, which
+ * still runs its onClose actions.
+ */
+public final class SingleFlight<K> {
+
+    private final ConcurrentHashMap<K, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CompletableFuture<BufferArena.Lease> lease(K key, Supplier<CompletableFuture<BufferArena.Lease>> load) {
+        boolean[] leader = new boolean[1];
+        Flight flight = inFlight.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.subscribers.incrementAndGet();
+                return existing;
+            }
+            leader[0] = true;
+            return new Flight();
+        });
+        if (leader[0]) {
+            CompletableFuture<BufferArena.Lease> loaded;
+            try {
+                loaded = load.get();
+            } catch (RuntimeException e) {
+                loaded = CompletableFuture.failedFuture(e);
+            }
+            loaded.whenComplete((lease, ex) -> {
+                inFlight.remove(key, flight);
+                if (ex != null) flight.result.completeExceptionally(ex);
+                else flight.result.complete(lease);
+            });
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return flight.result.thenApply(flight::view);
+    }
+
+    /** Callers served by joining a load already in flight. */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    private static final class Flight {
+        final CompletableFuture<BufferArena.Lease> result = new CompletableFuture<>();
+        final AtomicInteger subscribers = new AtomicInteger(1);
+
+        BufferArena.Lease view(BufferArena.Lease shared) {
+            return BufferArena.unpooled(shared.buffer().asReadOnlyBuffer()).onClose(() -> {
+                if (subscribers.decrementAndGet() == 0) shared.close();
+            });
+        }
+    }
+}
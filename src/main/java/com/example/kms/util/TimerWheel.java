@@ -0,0 +1,63 @@
+package com.example.kms.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for coarse-grained expiry.
+ *
+ * Items land in slot (deadlineTick % slots); {@link #advance(Consumer)} is called once per tick
+ * by a single thread and only looks at the slot for the current tick, so scheduling is O(1) and
+ * expiring costs O(items in that slot) no matter how many items are live. Items whose deadline
+ * is more than one revolution away simply stay in their slot until their tick comes round.
+ *
+ * Deadlines are counted from the end of the current tick, so an item expires no earlier than
+ * its delay and at most one tick after it.
+ */
+public final class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final ConcurrentLinkedQueue<Timeout<T>>[] slots;
+    private volatile long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(Duration tick, int slotCount) {
+        if (tick.toMillis() <= 0 || slotCount <= 0) throw new IllegalArgumentException("invalid wheel geometry");
+        this.tickMillis = tick.toMillis();
+        this.slots = new ConcurrentLinkedQueue[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /** Schedules item to expire after delay (rounded up to whole ticks). Safe from any thread. */
+    public void schedule(T item, Duration delay) {
+        long ticks = Math.max(1, (delay.toMillis() + tickMillis - 1) / tickMillis);
+        // Part of the current tick has already gone by, so the first whole tick is the next one
+        long deadline = currentTick + 1 + ticks;
+        slots[(int) (deadline % slots.length)].add(new Timeout<>(item, deadline));
+    }
+
+    /** Moves the wheel one tick and hands every item due at or before it to onExpire. */
+    public void advance(Consumer<T> onExpire) {
+        long tick = currentTick + 1;
+        // Moved before draining, so anything onExpire schedules lands beyond the slot being drained
+        currentTick = tick;
+        ConcurrentLinkedQueue<Timeout<T>> slot = slots[(int) (tick % slots.length)];
+        List<Timeout<T>> notYetDue = new ArrayList<>();
+        Timeout<T> timeout;
+        while ((timeout = slot.poll()) != null) {
+            if (timeout.deadlineTick <= tick) {
+                onExpire.accept(timeout.item);
+            } else {
+                notYetDue.add(timeout);
+            }
+        }
+        slot.addAll(notYetDue);
+    }
+
+    private record Timeout<T>(T item, long deadlineTick) {}
+}
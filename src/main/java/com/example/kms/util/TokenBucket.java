@@ -0,0 +1,71 @@
+package com.example.kms.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket implemented as GCRA (generic cell rate algorithm).
+ *
+ * The whole bucket state is one "theoretical arrival time" in nanoseconds held in an AtomicLong,
+ * so acquire/refund are a single CAS loop with no locks. A bucket with ratePerSecond r and burst b
+ * admits b tokens at once and then r tokens per second.
+ *
+ * Requests larger than the burst are admitted only when the bucket is full and leave it in debt,
+ * so oversize uploads are still possible but are paid for before the next request.
+ */
+public final class TokenBucket {
+
+    private final double nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival;
+
+    public TokenBucket(double ratePerSecond, long burst) {
+        if (ratePerSecond <= 0 || burst <= 0) throw new IllegalArgumentException("rate and burst must be positive");
+        this.nanosPerToken = 1_000_000_000.0 / ratePerSecond;
+        this.burstNanos = (long) (burst * nanosPerToken);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens if available. Returns 0 on success, otherwise the nanoseconds to wait
+     * before the same request would be admitted.
+     */
+    public long tryAcquire(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrival.get();
+            long base = Math.max(tat, now);
+            long next = base + cost;
+            boolean full = tat <= now;
+            if (next - now > burstNanos && !(full && cost > burstNanos)) {
+                return Math.max(1, next - now - burstNanos);
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) return 0;
+        }
+    }
+
+    /** Takes tokens unconditionally (after-the-fact charges such as download bytes). */
+    public void charge(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrival.get();
+            if (theoreticalArrival.compareAndSet(tat, Math.max(tat, now) + cost)) return;
+        }
+    }
+
+    /** Returns tokens taken by a request that was rejected further down the line. */
+    public void refund(long tokens) {
+        long cost = cost(tokens);
+        theoreticalArrival.addAndGet(-cost);
+    }
+
+    /** True when the bucket has refilled completely, i.e. it carries no state worth keeping. */
+    public boolean isFull() {
+        return theoreticalArrival.get() <= System.nanoTime();
+    }
+
+    private long cost(long tokens) {
+        return (long) Math.ceil(tokens * nanosPerToken);
+    }
+}
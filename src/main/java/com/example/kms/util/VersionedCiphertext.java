@@ -0,0 +1,74 @@
+package com.example.kms.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Self-describing AES-GCM envelope for data encrypted under a master (keyring) key.
+ *
+ * Layout: magic "KV"[2] || format version[1] || algorithm id[1] || key id[2, big-endian]
+ *         || iv[12] || ciphertext_with_auth_tag
+ *
+ * Values written before the header existed are bare iv[12] || ciphertext_with_auth_tag.
+ * {@link #keyId(byte[])} returns -1 for those so callers can fall back to the legacy path.
+ */
+public final class VersionedCiphertext {
+
+    public static final byte FORMAT_V1 = 1;
+    public static final byte ALG_AES_256_GCM = 1;
+    public static final int HEADER_BYTES = 6;
+
+    private static final byte MAGIC_0 = 'K';
+    private static final byte MAGIC_1 = 'V';
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH_BYTES = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+    private static final int GCM_TAG_LENGTH_BYTES = GCM_TAG_LENGTH_BITS / 8;
+
+    private VersionedCiphertext() {}
+
+    /** Encrypts plaintext under aesKey and prefixes the header naming keyId. */
+    public static byte[] seal(int keyId, byte[] aesKey, byte[] plaintext) throws Exception {
+        if (keyId < 0 || keyId > 0xFFFF) throw new IllegalArgumentException("key id out of range: " + keyId);
+        byte[] out = new byte[HEADER_BYTES + IV_LENGTH_BYTES + plaintext.length + GCM_TAG_LENGTH_BYTES];
+        out[0] = MAGIC_0;
+        out[1] = MAGIC_1;
+        out[2] = FORMAT_V1;
+        out[3] = ALG_AES_256_GCM;
+        out[4] = (byte) (keyId >>> 8);
+        out[5] = (byte) keyId;
+
+        // Master keys seal many values, so nonces are prefix || counter rather than random draws
+        GcmNonces.next(out, HEADER_BYTES);
+
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+                new GCMParameterSpec(GCM_TAG_LENGTH_BITS, out, HEADER_BYTES, IV_LENGTH_BYTES));
+        cipher.doFinal(plaintext, 0, plaintext.length, out, HEADER_BYTES + IV_LENGTH_BYTES);
+        return out;
+    }
+
+    /**
+     * Returns the key id from a well-formed header, or -1 when the value carries no
+     * (supported) header and must be treated as legacy iv||ciphertext.
+     */
+    public static int keyId(byte[] data) {
+        if (data == null || data.length < HEADER_BYTES + IV_LENGTH_BYTES + GCM_TAG_LENGTH_BYTES) return -1;
+        if (data[0] != MAGIC_0 || data[1] != MAGIC_1) return -1;
+        if (data[2] != FORMAT_V1 || data[3] != ALG_AES_256_GCM) return -1;
+        return ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+    }
+
+    /** Decrypts a headered value (tagged = true) or a legacy bare iv||ciphertext value. */
+    public static byte[] open(byte[] aesKey, byte[] data, boolean tagged) throws Exception {
+        int offset = tagged ? HEADER_BYTES : 0;
+        if (data.length < offset + IV_LENGTH_BYTES + GCM_TAG_LENGTH_BYTES) {
+            throw new IllegalArgumentException("ciphertext too short");
+        }
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+                new GCMParameterSpec(GCM_TAG_LENGTH_BITS, data, offset, IV_LENGTH_BYTES));
+        return cipher.doFinal(data, offset + IV_LENGTH_BYTES, data.length - offset - IV_LENGTH_BYTES);
+    }
+}
@@ -0,0 +1,15 @@
+-- V10: Per-client deduplication of vault blobs. A blob listed here may be shared by several
+-- vault_files rows with the same storage_key; ref_count counts them, and the blob is deleted
+-- when it drops to zero. Blobs without a row (conversions, resumable uploads, files from before
+-- this migration) belong to exactly one vault_files row.
+
+CREATE TABLE IF NOT EXISTS vault_blobs (
+    storage_key   TEXT          PRIMARY KEY,
+    client_id     BIGINT        NOT NULL REFERENCES clients(id) ON DELETE CASCADE,
+    content_hmac  VARCHAR(80)   NOT NULL,
+    ref_count     INT           NOT NULL,
+    created_at    TIMESTAMPTZ   NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS idx_vault_blobs_dedup ON vault_blobs(client_id, content_hmac) WHERE ref_count > 0;
+CREATE INDEX IF NOT EXISTS idx_vault_files_storage_key ON vault_files(storage_key);
@@ -0,0 +1,4 @@
+-- V11: codec the plaintext was compressed with before encryption (see model.Compression).
+-- Existing files were stored uncompressed.
+
+ALTER TABLE vault_files ADD COLUMN IF NOT EXISTS compression VARCHAR(16) NOT NULL DEFAULT 'NONE';
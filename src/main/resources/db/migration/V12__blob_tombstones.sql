@@ -0,0 +1,13 @@
+-- V12: Deferred deletion of storage objects. Deleting or replacing a vault file records its
+-- blob here and returns; BlobGcService deletes the objects in bulk batches and removes the row.
+-- A storage_key ending in '/' names a folder (a chunked file's lineage) deleted as a whole.
+
+CREATE TABLE IF NOT EXISTS blob_tombstones (
+    storage_key  TEXT          PRIMARY KEY,
+    attempts     INT           NOT NULL DEFAULT 0,
+    due_at       TIMESTAMPTZ   NOT NULL DEFAULT now(),
+    created_at   TIMESTAMPTZ   NOT NULL DEFAULT now()
+);
+
+-- The worker takes the oldest due tombstones first; failed ones are pushed back by backoff
+CREATE INDEX IF NOT EXISTS idx_blob_tombstones_due ON blob_tombstones (due_at, storage_key);
@@ -0,0 +1,24 @@
+-- V13: documents in a migration. It used to be left to Hibernate (ddl-auto), which runs after
+-- Flyway, so on a fresh database V4 and V7 found no table and the guest purge index was never
+-- created. Columns follow the Document entity as Hibernate maps it on PostgreSQL (@Lob fields
+-- are large-object oids); on databases where the table already exists only the index is added.
+
+CREATE TABLE IF NOT EXISTS documents (
+    id             UUID          PRIMARY KEY,
+    filename       VARCHAR(255)  NOT NULL,
+    content_type   VARCHAR(255)  NOT NULL,
+    storage_key    TEXT,
+    data           OID,
+    original_size  BIGINT        NOT NULL DEFAULT 0,
+    client_id      BIGINT        REFERENCES clients(id),
+    created_at     TIMESTAMP     NOT NULL DEFAULT now(),
+    is_guest       BOOLEAN       NOT NULL DEFAULT false,
+    encrypted_dek  OID,
+    iv             VARCHAR(255)
+);
+
+CREATE INDEX IF NOT EXISTS idx_documents_client_id ON documents(client_id);
+
+-- Same definition as in V7, which skipped it when the table did not exist yet
+CREATE INDEX IF NOT EXISTS idx_documents_guest_created
+    ON documents (created_at, id) WHERE is_guest;
@@ -0,0 +1,48 @@
+-- V3: Store encrypted_data payload and wrapped DEKs as raw bytea instead of Base64 text
+--
+-- Must run with executeInTransaction=false, set in V3__encrypted_data_bytea.sql.conf next to this
+-- file: the COMMIT inside the DO block below and the explicit BEGIN/COMMIT around the column swap
+-- fail if Flyway wraps the script in a transaction. Keep the two files together.
+
+ALTER TABLE encrypted_data ADD COLUMN IF NOT EXISTS encrypted_payload_bin        BYTEA;
+ALTER TABLE encrypted_data ADD COLUMN IF NOT EXISTS dek_wrapped_bin              BYTEA;
+ALTER TABLE encrypted_data ADD COLUMN IF NOT EXISTS dek_wrapped_for_recovery_bin BYTEA;
+
+-- Convert existing rows in id-range batches so no single UPDATE rewrites the whole table.
+-- Runs outside a transaction (V3__encrypted_data_bytea.sql.conf) so each batch commits on its
+-- own; rows already converted are skipped, so a rerun after a failure resumes the conversion.
+DO $$
+DECLARE
+    batch_size CONSTANT BIGINT := 1000;
+    last_id    BIGINT := 0;
+    max_id     BIGINT;
+BEGIN
+    SELECT COALESCE(MAX(id), 0) INTO max_id FROM encrypted_data;
+    WHILE last_id < max_id LOOP
+        UPDATE encrypted_data
+           SET encrypted_payload_bin        = decode(encrypted_payload, 'base64'),
+               dek_wrapped_bin              = decode(dek_wrapped, 'base64'),
+               dek_wrapped_for_recovery_bin = decode(dek_wrapped_for_recovery, 'base64')
+         WHERE id > last_id
+           AND id <= last_id + batch_size
+           AND encrypted_payload_bin IS NULL;
+        last_id := last_id + batch_size;
+        COMMIT;
+    END LOOP;
+END $$;
+
+-- The column swap is one transaction, so the table is never left with half of it applied
+BEGIN;
+
+ALTER TABLE encrypted_data DROP COLUMN encrypted_payload;
+ALTER TABLE encrypted_data DROP COLUMN dek_wrapped;
+ALTER TABLE encrypted_data DROP COLUMN dek_wrapped_for_recovery;
+
+ALTER TABLE encrypted_data RENAME COLUMN encrypted_payload_bin        TO encrypted_payload;
+ALTER TABLE encrypted_data RENAME COLUMN dek_wrapped_bin              TO dek_wrapped;
+ALTER TABLE encrypted_data RENAME COLUMN dek_wrapped_for_recovery_bin TO dek_wrapped_for_recovery;
+
+ALTER TABLE encrypted_data ALTER COLUMN encrypted_payload SET NOT NULL;
+ALTER TABLE encrypted_data ALTER COLUMN dek_wrapped       SET NOT NULL;
+
+COMMIT;
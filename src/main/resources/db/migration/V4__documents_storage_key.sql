@@ -0,0 +1,3 @@
+-- V4: Document bodies move to the object store; rows keep only metadata, key material and the storage key
+
+ALTER TABLE IF EXISTS documents ADD COLUMN IF NOT EXISTS storage_key TEXT;
@@ -0,0 +1,14 @@
+-- V5: Server KEK versioning on vault_files and checkpoints for the master-key rewrap job
+
+ALTER TABLE vault_files ADD COLUMN IF NOT EXISTS server_kek_version INT NOT NULL DEFAULT 1;
+
+CREATE TABLE IF NOT EXISTS key_rotation_checkpoints (
+    table_name      VARCHAR(64)   PRIMARY KEY,
+    key_generation  VARCHAR(32)   NOT NULL,
+    last_id         VARCHAR(64)   NOT NULL,
+    processed_rows  BIGINT        NOT NULL DEFAULT 0,
+    rewrapped_rows  BIGINT        NOT NULL DEFAULT 0,
+    failed_rows     BIGINT        NOT NULL DEFAULT 0,
+    completed       BOOLEAN       NOT NULL DEFAULT false,
+    updated_at      TIMESTAMPTZ   NOT NULL DEFAULT now()
+);
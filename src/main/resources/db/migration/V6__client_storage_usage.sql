@@ -0,0 +1,14 @@
+-- V6: Incrementally maintained per-client storage usage (sum of vault_files.encrypted_size)
+
+ALTER TABLE clients ADD COLUMN IF NOT EXISTS storage_used_bytes BIGINT NOT NULL DEFAULT 0;
+
+-- One-off backfill; afterwards the counter is adjusted on every write/delete
+UPDATE clients c
+SET storage_used_bytes = u.used
+FROM (
+    SELECT client_id, SUM(encrypted_size) AS used
+    FROM vault_files
+    WHERE is_guest = false AND client_id IS NOT NULL
+    GROUP BY client_id
+) u
+WHERE u.client_id = c.id;
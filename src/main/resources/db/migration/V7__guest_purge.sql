@@ -0,0 +1,20 @@
+-- V7: Index-backed guest purging and a lease table for single-node scheduled jobs
+
+-- Partial indexes: only guest rows are indexed, ordered the way the purge walks them
+CREATE INDEX IF NOT EXISTS idx_vault_files_guest_expiry
+    ON vault_files (expires_at, id) WHERE is_guest;
+
+DO $$
+BEGIN
+    -- documents is created by Hibernate, so it may not exist yet on a fresh database
+    IF to_regclass('documents') IS NOT NULL THEN
+        CREATE INDEX IF NOT EXISTS idx_documents_guest_created
+            ON documents (created_at, id) WHERE is_guest;
+    END IF;
+END $$;
+
+CREATE TABLE IF NOT EXISTS scheduler_leases (
+    name         VARCHAR(64)   PRIMARY KEY,
+    owner        VARCHAR(128)  NOT NULL,
+    lease_until  TIMESTAMPTZ   NOT NULL
+);
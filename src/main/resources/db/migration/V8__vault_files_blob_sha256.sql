@@ -0,0 +1,4 @@
+-- V8: SHA-256 of the stored blob (iv||ciphertext||tag), computed while the upload is encrypted.
+-- Null for files uploaded before this migration.
+
+ALTER TABLE vault_files ADD COLUMN IF NOT EXISTS blob_sha256 VARCHAR(64);
@@ -0,0 +1,21 @@
+-- V9: Resumable vault uploads, and a format marker so vault_files can hold segmented blobs
+
+ALTER TABLE vault_files ADD COLUMN IF NOT EXISTS blob_format VARCHAR(16) NOT NULL DEFAULT 'GCM_SINGLE';
+
+CREATE TABLE IF NOT EXISTS upload_sessions (
+    id                  UUID          PRIMARY KEY DEFAULT gen_random_uuid(),
+    client_id           BIGINT        NOT NULL REFERENCES clients(id) ON DELETE CASCADE,
+    filename_enc        TEXT          NOT NULL,
+    total_size          BIGINT        NOT NULL,
+    segment_size        INT           NOT NULL,
+    received_bytes      BIGINT        NOT NULL DEFAULT 0,
+    part_keys           TEXT[]        NOT NULL DEFAULT '{}',
+    content_type        VARCHAR(128),
+    dek_wrapped_server  TEXT          NOT NULL,
+    server_kek_version  INT           NOT NULL,
+    created_at          TIMESTAMPTZ   NOT NULL DEFAULT now(),
+    expires_at          TIMESTAMPTZ   NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_upload_sessions_client_id ON upload_sessions(client_id);
+CREATE INDEX IF NOT EXISTS idx_upload_sessions_expires_at ON upload_sessions(expires_at);
@@ -0,0 +1,244 @@
+package com.example.kms.service;
+
+import com.example.kms.dto.VaultFileDTO;
+import com.example.kms.model.Client;
+import com.example.kms.model.UploadSession;
+import com.example.kms.model.VaultFile;
+import com.example.kms.repository.ClientRepository;
+import com.example.kms.repository.UploadSessionRepository;
+import com.example.kms.repository.VaultFileRepository;
+import com.example.kms.util.BufferArena;
+import com.example.kms.util.SegmentedAead;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Finalizing against a real storage client and an in-process stand-in for the storage API, so
+ * the parts are fetched the way production fetches them: from inside the body of the streamed
+ * upload of the final object.
+ */
+class UploadSessionServiceImplTest {
+
+    private static final String BUCKET = "vault-files";
+    private static final String EMAIL_HASH = "owner-hash";
+    private static final int SEGMENT_BYTES = 1 << 20;
+    private static final String OBJECT_PATH = "/storage/v1/object/" + BUCKET;
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    private HttpServer storage;
+    private UploadSessionRepository uploadSessionRepository;
+    private VaultFileRepository vaultFileRepository;
+    private BlobGcService blobGcService;
+    private UploadSessionServiceImpl service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        storage.createContext("/storage/v1/object/", this::serve);
+        storage.setExecutor(Executors.newFixedThreadPool(4));
+        storage.start();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        BlobCacheServiceImpl blobCache = new BlobCacheServiceImpl(meterRegistry);
+        ReflectionTestUtils.setField(blobCache, "enabled", false);
+        SupabaseStorageServiceImpl storageService =
+                new SupabaseStorageServiceImpl(meterRegistry, new BufferArena(8 << 20, 32 << 20), blobCache);
+        ReflectionTestUtils.setField(storageService, "supabaseUrl", "http://127.0.0.1:" + storage.getAddress().getPort());
+        ReflectionTestUtils.setField(storageService, "serviceRoleKey", "service-role");
+        ReflectionTestUtils.setField(storageService, "maxInMemoryBytes", 64 << 20);
+        storageService.init();
+
+        uploadSessionRepository = mock(UploadSessionRepository.class);
+        vaultFileRepository = mock(VaultFileRepository.class);
+        ClientRepository clientRepository = mock(ClientRepository.class);
+        Client client = new Client();
+        client.setEmailHash(EMAIL_HASH);
+        client.setPublicKey("client-public-key");
+        when(clientRepository.findByEmailHash(EMAIL_HASH)).thenReturn(Optional.of(client));
+        when(vaultFileRepository.save(any(VaultFile.class))).thenAnswer(call -> call.getArgument(0));
+
+        CryptoService cryptoService = mock(CryptoService.class);
+        when(cryptoService.unwrapDekForServer(anyString(), anyString(), anyInt())).thenReturn(new byte[32]);
+        when(cryptoService.randomBytes(anyInt())).thenAnswer(call -> new byte[(int) call.getArgument(0)]);
+        when(cryptoService.wrapDekForRecipients(any(), any(), anyList())).thenReturn(List.of(new byte[60], new byte[60]));
+        when(cryptoService.currentServerKekVersion()).thenReturn(1);
+
+        MemoryBudgetService memoryBudgetService = mock(MemoryBudgetService.class);
+        when(memoryBudgetService.reserve(anyLong())).thenReturn(mock(MemoryBudgetService.Reservation.class));
+        blobGcService = mock(BlobGcService.class);
+
+        service = new UploadSessionServiceImpl(
+                uploadSessionRepository,
+                vaultFileRepository,
+                clientRepository,
+                cryptoService,
+                mock(IngestService.class),
+                storageService,
+                mock(StorageQuotaService.class),
+                mock(SchedulerLeaseService.class),
+                memoryBudgetService,
+                blobGcService,
+                Runnable::run);
+        ReflectionTestUtils.setField(service, "bucket", BUCKET);
+        ReflectionTestUtils.setField(service, "segmentBytes", SEGMENT_BYTES);
+        ReflectionTestUtils.setField(service, "maxChunkBytes", 64L << 20);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.stop(0);
+    }
+
+    @Test
+    void completeConcatenatesEveryPartIntoTheVaultObject() throws Exception {
+        // Two whole-segment parts and a short final one; each is well past the 256 KiB codec default
+        long total = 2L * SEGMENT_BYTES + 12_345;
+        UUID sessionId = UUID.randomUUID();
+        byte[][] parts = {
+                randomBytes(SegmentedAead.segmentsLength(SEGMENT_BYTES, 1), 1),
+                randomBytes(SegmentedAead.segmentsLength(SEGMENT_BYTES, 1), 2),
+                randomBytes(SegmentedAead.segmentsLength(12_345, 1), 3)};
+        String[] partKeys = new String[parts.length];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(SegmentedAead.header(SEGMENT_BYTES));
+        for (int i = 0; i < parts.length; i++) {
+            partKeys[i] = "uploads/" + sessionId + "/" + UUID.randomUUID();
+            objects.put(partKeys[i], parts[i]);
+            expected.write(parts[i]);
+        }
+        assertEquals(SegmentedAead.blobLength(total, SEGMENT_BYTES), expected.size());
+
+        UploadSession session = UploadSession.builder()
+                .id(sessionId)
+                .filename("report.pdf")
+                .totalSize(total)
+                .segmentSize(SEGMENT_BYTES)
+                .receivedBytes(total)
+                .partKeys(partKeys)
+                .contentType("application/pdf")
+                .dekWrappedServer("wrapped-dek")
+                .serverKekVersion(1)
+                .expiresAt(LocalDateTime.now().plusHours(1))
+                .build();
+        when(uploadSessionRepository.findByIdAndOwner_EmailHash(sessionId, EMAIL_HASH)).thenReturn(Optional.of(session));
+        when(uploadSessionRepository.deleteByIdAndReceivedBytes(sessionId, total)).thenReturn(1);
+
+        VaultFileDTO result = service.completeAsync(EMAIL_HASH, sessionId).get(30, TimeUnit.SECONDS);
+
+        ArgumentCaptor<VaultFile> saved = ArgumentCaptor.forClass(VaultFile.class);
+        verify(vaultFileRepository).save(saved.capture());
+        VaultFile vaultFile = saved.getValue();
+        assertEquals(total, result.originalSize());
+        assertEquals(expected.size(), vaultFile.getEncryptedSize());
+        assertArrayEquals(expected.toByteArray(), objects.get(vaultFile.getStorageKey()));
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(expected.toByteArray())),
+                vaultFile.getBlobSha256());
+        verify(blobGcService).tombstone(List.of(partKeys));
+        verify(uploadSessionRepository).deleteByIdAndReceivedBytes(eq(sessionId), eq(total));
+        assertTrue(vaultFile.getStorageKey().startsWith("vault/" + EMAIL_HASH + "/"));
+    }
+
+    @Test
+    void appendRejectsAChunkShorterThanASegmentBeforeTheEnd() {
+        long total = 3L * SEGMENT_BYTES;
+        UUID sessionId = UUID.randomUUID();
+        UploadSession session = UploadSession.builder()
+                .id(sessionId)
+                .filename("report.pdf")
+                .totalSize(total)
+                .segmentSize(SEGMENT_BYTES)
+                .receivedBytes(SEGMENT_BYTES)
+                .partKeys(new String[]{"uploads/" + sessionId + "/" + UUID.randomUUID()})
+                .dekWrappedServer("wrapped-dek")
+                .serverKekVersion(1)
+                .expiresAt(LocalDateTime.now().plusHours(1))
+                .build();
+        when(uploadSessionRepository.findByIdAndOwner_EmailHash(sessionId, EMAIL_HASH)).thenReturn(Optional.of(session));
+
+        IllegalArgumentException rejected = assertThrows(IllegalArgumentException.class, () -> service.appendAsync(
+                EMAIL_HASH, sessionId, SEGMENT_BYTES, new ByteArrayInputStream(new byte[4096]), 4096));
+        assertTrue(rejected.getMessage().contains(Integer.toString(SEGMENT_BYTES)), rejected.getMessage());
+    }
+
+    /** Object GET/PUT by key, and the bulk delete sent to the bucket path as {"prefixes": [...]}. */
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            byte[] request = exchange.getRequestBody().readAllBytes();
+            if (path.equals(OBJECT_PATH) && exchange.getRequestMethod().equals("DELETE")) {
+                Matcher key = Pattern.compile("\"([^\"]+/[^\"]+)\"").matcher(new String(request, StandardCharsets.UTF_8));
+                while (key.find()) objects.remove(key.group(1));
+                respond(exchange, 200, "[]".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String objectKey = path.substring(OBJECT_PATH.length() + 1);
+            switch (exchange.getRequestMethod()) {
+                case "PUT" -> {
+                    objects.put(objectKey, request);
+                    respond(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8));
+                }
+                case "GET" -> {
+                    byte[] object = objects.get(objectKey);
+                    if (object == null) {
+                        respond(exchange, 404, "{}".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        respond(exchange, 200, object);
+                    }
+                }
+                default -> respond(exchange, 405, new byte[0]);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static byte[] randomBytes(long length, long seed) {
+        byte[] bytes = new byte[(int) length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
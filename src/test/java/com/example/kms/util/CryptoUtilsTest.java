@@ -0,0 +1,143 @@
+package com.example.kms.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CryptoUtilsTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    @Test
+    void rfc5869Case1BasicSha256() throws Exception {
+        assertVector(
+                range(0x00, 0x0d),
+                repeat((byte) 0x0b, 22),
+                range(0xf0, 0xfa),
+                "077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5",
+                "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865");
+    }
+
+    @Test
+    void rfc5869Case2LongInputs() throws Exception {
+        assertVector(
+                range(0x60, 0xb0),
+                range(0x00, 0x50),
+                range(0xb0, 0x100),
+                "06a6b88c5853361a06104c9ceb35b45cef760014904671014a193f40c15fc244",
+                "b11e398dc80327a1c8e7f78c596a49344f012eda2d4efad8a050cc4c19afa97c"
+                        + "59045a99cac7827271cb41c65e590e09da3275600c2f09b8367793a9aca3db71"
+                        + "cc30c58179ec3e87c14c01d5c1f3434f1d87");
+    }
+
+    @Test
+    void rfc5869Case3EmptySaltAndInfo() throws Exception {
+        String prk = "19ef24a32c717b167f33a91d6f648bdf96596776afdb6377ac434c1c293ccb04";
+        String okm = "8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8";
+        assertVector(new byte[0], repeat((byte) 0x0b, 22), new byte[0], prk, okm);
+        // A null salt and info mean the same as empty ones
+        assertVector(null, repeat((byte) 0x0b, 22), null, prk, okm);
+    }
+
+    @Test
+    void multiBlockOutputMatchesTheRfcConstruction() throws Exception {
+        Random random = new Random(5869);
+        for (int length : new int[]{1, 16, 31, 32, 33, 63, 64, 65, 100, 255 * 32}) {
+            byte[] salt = randomBytes(random, 32);
+            byte[] ikm = randomBytes(random, 32);
+            byte[] info = randomBytes(random, 1 + random.nextInt(60));
+            assertArrayEquals(reference(salt, ikm, info, length),
+                    CryptoUtils.hkdfExtractAndExpand(salt, ikm, info, length), "length " + length);
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> CryptoUtils.hkdfExtractAndExpand(null, new byte[32], null, 255 * 32 + 1));
+    }
+
+    @Test
+    void writesOnlyItsSliceOfTheCallerBuffer() throws Exception {
+        Random random = new Random(42);
+        byte[] salt = randomBytes(random, 16);
+        byte[] ikm = randomBytes(random, 32);
+        byte[] info = "KMS-v1|unwrap-dek".getBytes();
+        for (int length : new int[]{32, 75}) {
+            byte[] expected = reference(salt, ikm, info, length);
+            for (int offset : new int[]{1, 17}) {
+                byte[] out = repeat((byte) 0x5a, offset + length + 9);
+                CryptoUtils.hkdf(salt, ikm, info, out, offset, length);
+                assertSlice(expected, out, offset);
+
+                byte[] expandOut = repeat((byte) 0x5a, offset + length + 9);
+                Mac mac = CryptoUtils.newHmac();
+                CryptoUtils.hkdfExpand(mac, CryptoUtils.hkdfExtract(mac, salt, ikm), info, expandOut, offset, length);
+                assertSlice(expected, expandOut, offset);
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> CryptoUtils.hkdf(salt, ikm, info, new byte[40], 9, 32));
+    }
+
+    private static void assertVector(byte[] salt, byte[] ikm, byte[] info, String prk, String okm) throws Exception {
+        byte[] expectedOkm = HEX.parseHex(okm);
+        assertArrayEquals(expectedOkm, CryptoUtils.hkdfExtractAndExpand(salt, ikm, info, expectedOkm.length));
+
+        Mac mac = CryptoUtils.newHmac();
+        byte[] actualPrk = CryptoUtils.hkdfExtract(mac, salt, ikm);
+        assertArrayEquals(HEX.parseHex(prk), actualPrk);
+        assertArrayEquals(expectedOkm, CryptoUtils.hkdfExpand(mac, actualPrk, info, expectedOkm.length));
+    }
+
+    private static void assertSlice(byte[] expected, byte[] out, int offset) {
+        assertArrayEquals(expected, Arrays.copyOfRange(out, offset, offset + expected.length));
+        for (int i = 0; i < out.length; i++) {
+            if (i < offset || i >= offset + expected.length) {
+                if (out[i] != 0x5a) throw new AssertionError("byte " + i + " outside the slice was written");
+            }
+        }
+    }
+
+    /** RFC 5869 section 2 written out directly: a fresh Mac per step and concatenated blocks. */
+    private static byte[] reference(byte[] salt, byte[] ikm, byte[] info, int length) throws Exception {
+        Mac extract = Mac.getInstance("HmacSHA256");
+        extract.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = extract.doFinal(ikm);
+
+        ByteArrayOutputStream okm = new ByteArrayOutputStream();
+        byte[] previous = new byte[0];
+        for (int i = 1; okm.size() < length; i++) {
+            Mac expand = Mac.getInstance("HmacSHA256");
+            expand.init(new SecretKeySpec(prk, "HmacSHA256"));
+            expand.update(previous);
+            expand.update(info);
+            expand.update((byte) i);
+            previous = expand.doFinal();
+            okm.write(previous);
+        }
+        return Arrays.copyOf(okm.toByteArray(), length);
+    }
+
+    private static byte[] range(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) (from + i);
+        return bytes;
+    }
+
+    private static byte[] repeat(byte value, int count) {
+        byte[] bytes = new byte[count];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.kms.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedAeadTest {
+
+    private static final int SEGMENT = 1024;
+
+    private final byte[] key = Drbg.nextBytes(32);
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+    // Threshold 0 so every multi-segment payload is actually split across the pool
+    private final SegmentedAead.Parallelism parallel = new SegmentedAead.Parallelism(pool, 0);
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void roundTripsAtSegmentBoundaries() throws Exception {
+        for (int length : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 5 * SEGMENT, 5 * SEGMENT + 17}) {
+            byte[] plaintext = randomBytes(length, length);
+            for (SegmentedAead.Parallelism parallelism : new SegmentedAead.Parallelism[]{SegmentedAead.Parallelism.SEQUENTIAL, parallel}) {
+                byte[] blob = SegmentedAead.encrypt(key, plaintext, SEGMENT, parallelism);
+                assertEquals(SegmentedAead.blobLength(length, SEGMENT), blob.length, "length " + length);
+                assertTrue(SegmentedAead.hasHeader(blob));
+                assertArrayEquals(plaintext, SegmentedAead.decrypt(key, blob, parallelism), "length " + length);
+            }
+        }
+    }
+
+    @Test
+    void parallelEncryptMatchesSequentialLayout() throws Exception {
+        byte[] plaintext = randomBytes(37 * SEGMENT + 5, 1);
+        byte[] parallelBlob = SegmentedAead.encrypt(key, plaintext, SEGMENT, parallel);
+        byte[] sequentialBlob = SegmentedAead.encrypt(key, plaintext, SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+
+        // Each call draws fresh nonces; with those held fixed, both are exactly the reference sealing
+        assertArrayEquals(reseal(plaintext, parallelBlob), parallelBlob);
+        assertArrayEquals(reseal(plaintext, sequentialBlob), sequentialBlob);
+        assertArrayEquals(plaintext, SegmentedAead.decrypt(key, parallelBlob, SegmentedAead.Parallelism.SEQUENTIAL));
+        assertArrayEquals(plaintext, SegmentedAead.decrypt(key, sequentialBlob, parallel));
+        assertEquals(37 + 1, distinctNonces(parallelBlob));
+    }
+
+    @Test
+    void encryptingStreamMatchesEncryptApartFromNonces() throws Exception {
+        BufferArena arena = new BufferArena(1 << 20, 4 << 20);
+        for (int length : new int[]{0, 1, SEGMENT, SEGMENT + 1, 6 * SEGMENT + 300}) {
+            byte[] plaintext = randomBytes(length, length);
+            long finalIndex = SegmentedAead.segmentCount(length, SEGMENT) - 1;
+            byte[] segments;
+            try (InputStream stream = new SegmentedAead.EncryptingStream(
+                    key, new ByteArrayInputStream(plaintext), SEGMENT, 0, length, finalIndex, arena)) {
+                segments = stream.readAllBytes();
+            }
+            byte[] blob = concat(SegmentedAead.header(SEGMENT), segments);
+
+            assertEquals(SegmentedAead.encrypt(key, plaintext, SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL).length, blob.length);
+            assertArrayEquals(reseal(plaintext, blob), blob, "length " + length);
+            assertArrayEquals(plaintext, SegmentedAead.decrypt(key, blob), "length " + length);
+        }
+    }
+
+    @Test
+    void encryptingStreamRunsConcatenateIntoOneBlob() throws Exception {
+        // A resumable upload: segments 0-2 in one chunk, then the rest with the final flag
+        BufferArena arena = new BufferArena(1 << 20, 4 << 20);
+        byte[] plaintext = randomBytes(5 * SEGMENT + 9, 2);
+        long finalIndex = SegmentedAead.segmentCount(plaintext.length, SEGMENT) - 1;
+        int firstRun = 3 * SEGMENT;
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        blob.write(SegmentedAead.header(SEGMENT));
+        try (InputStream stream = new SegmentedAead.EncryptingStream(key,
+                new ByteArrayInputStream(plaintext, 0, firstRun), SEGMENT, 0, firstRun, finalIndex, arena)) {
+            stream.transferTo(blob);
+        }
+        try (InputStream stream = new SegmentedAead.EncryptingStream(key,
+                new ByteArrayInputStream(plaintext, firstRun, plaintext.length - firstRun), SEGMENT,
+                3, plaintext.length - firstRun, finalIndex, arena)) {
+            stream.transferTo(blob);
+        }
+
+        assertArrayEquals(plaintext, SegmentedAead.decrypt(key, blob.toByteArray(), parallel));
+        assertEquals(finalIndex + 1, distinctNonces(blob.toByteArray()));
+    }
+
+    @Test
+    void decryptsBetweenBufferPositions() throws Exception {
+        byte[] plaintext = randomBytes(9 * SEGMENT + 70, 3);
+        byte[] blob = SegmentedAead.encrypt(key, plaintext, SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+        for (SegmentedAead.Parallelism parallelism : new SegmentedAead.Parallelism[]{SegmentedAead.Parallelism.SEQUENTIAL, parallel}) {
+            ByteBuffer in = ByteBuffer.allocateDirect(blob.length + 11);
+            in.position(5).put(blob).position(5).limit(5 + blob.length);
+            ByteBuffer out = ByteBuffer.allocateDirect(plaintext.length + 7);
+            out.position(3);
+
+            assertEquals(plaintext.length, SegmentedAead.plaintextLength(in));
+            SegmentedAead.decrypt(key, in, out, parallelism);
+
+            assertEquals(5, in.position());
+            assertEquals(3, out.position());
+            byte[] opened = new byte[plaintext.length];
+            out.get(opened);
+            assertArrayEquals(plaintext, opened);
+        }
+    }
+
+    @Test
+    void rejectsAFlippedBit() throws Exception {
+        byte[] blob = SegmentedAead.encrypt(key, randomBytes(4 * SEGMENT, 4), SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+        int[] offsets = {
+                SegmentedAead.HEADER_BYTES,                                     // first nonce
+                SegmentedAead.HEADER_BYTES + SegmentedAead.NONCE_BYTES + 100,   // first ciphertext
+                segmentOffset(2) + SegmentedAead.NONCE_BYTES + SEGMENT + 3,     // a middle tag
+                blob.length - 1};                                               // the final tag
+        for (int offset : offsets) {
+            byte[] tampered = blob.clone();
+            tampered[offset] ^= 0x10;
+            assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, tampered), "offset " + offset);
+            assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, tampered, parallel), "offset " + offset);
+        }
+    }
+
+    @Test
+    void rejectsSwappedSegments() throws Exception {
+        byte[] blob = SegmentedAead.encrypt(key, randomBytes(4 * SEGMENT + 8, 5), SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+        int segmentBytes = SEGMENT + SegmentedAead.SEGMENT_OVERHEAD;
+        byte[] swapped = blob.clone();
+        System.arraycopy(blob, segmentOffset(1), swapped, segmentOffset(2), segmentBytes);
+        System.arraycopy(blob, segmentOffset(2), swapped, segmentOffset(1), segmentBytes);
+
+        assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, swapped));
+        assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, swapped, parallel));
+    }
+
+    @Test
+    void rejectsTruncationAtASegmentBoundary() throws Exception {
+        // Whole segments only, so the cut leaves a blob whose new last segment was sealed as non-final
+        for (int length : new int[]{4 * SEGMENT, 4 * SEGMENT + 1}) {
+            byte[] blob = SegmentedAead.encrypt(key, randomBytes(length, 6), SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+            for (int segments = 1; segments < SegmentedAead.segmentCount(length, SEGMENT); segments++) {
+                byte[] truncated = Arrays.copyOf(blob, segmentOffset(segments));
+                assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, truncated), segments + " segments");
+                assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, truncated, parallel), segments + " segments");
+            }
+        }
+    }
+
+    @Test
+    void rejectsAMalformedHeaderOrLength() throws Exception {
+        byte[] blob = SegmentedAead.encrypt(key, randomBytes(3 * SEGMENT + 40, 7), SEGMENT, SegmentedAead.Parallelism.SEQUENTIAL);
+        byte[][] malformed = {
+                withSegmentSize(blob, SEGMENT * 2),
+                withSegmentSize(blob, SEGMENT / 2),
+                withSegmentSize(blob, 0),
+                withSegmentSize(blob, -SEGMENT),
+                magic(blob, (byte) 'X'),
+                Arrays.copyOf(blob, SegmentedAead.HEADER_BYTES - 1),
+                Arrays.copyOf(blob, SegmentedAead.HEADER_BYTES),
+                Arrays.copyOf(blob, segmentOffset(1) + SegmentedAead.SEGMENT_OVERHEAD - 1)};
+        for (int i = 0; i < malformed.length; i++) {
+            byte[] bad = malformed[i];
+            assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, bad), "case " + i);
+            assertThrows(AEADBadTagException.class, () -> SegmentedAead.decrypt(key, bad, parallel), "case " + i);
+        }
+    }
+
+    /** The blob the format defines for plaintext, given the nonces blob's segments carry. */
+    private byte[] reseal(byte[] plaintext, byte[] blob) throws Exception {
+        long segments = SegmentedAead.segmentCount(plaintext.length, SEGMENT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(SegmentedAead.header(SEGMENT));
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        for (int i = 0; i < segments; i++) {
+            boolean last = i == segments - 1;
+            int from = i * SEGMENT;
+            int length = last ? plaintext.length - from : SEGMENT;
+            byte[] nonce = Arrays.copyOfRange(blob, segmentOffset(i), segmentOffset(i) + SegmentedAead.NONCE_BYTES);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(SegmentedAead.aad(i, last));
+            expected.write(nonce);
+            expected.write(cipher.doFinal(plaintext, from, length));
+        }
+        return expected.toByteArray();
+    }
+
+    private static int distinctNonces(byte[] blob) {
+        Set<String> nonces = new HashSet<>();
+        for (int offset = SegmentedAead.HEADER_BYTES; offset < blob.length; offset += SEGMENT + SegmentedAead.SEGMENT_OVERHEAD) {
+            nonces.add(Arrays.toString(Arrays.copyOfRange(blob, offset, offset + SegmentedAead.NONCE_BYTES)));
+        }
+        return nonces.size();
+    }
+
+    private static int segmentOffset(int index) {
+        return SegmentedAead.HEADER_BYTES + index * (SEGMENT + SegmentedAead.SEGMENT_OVERHEAD);
+    }
+
+    private static byte[] withSegmentSize(byte[] blob, int segmentSize) {
+        byte[] copy = blob.clone();
+        ByteBuffer.wrap(copy).putInt(4, segmentSize);
+        return copy;
+    }
+
+    private static byte[] magic(byte[] blob, byte first) {
+        byte[] copy = blob.clone();
+        copy[0] = first;
+        return copy;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.kms.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    @Test
+    void itemsExpireNoEarlierThanTheirDelay() {
+        TimerWheel<String> wheel = new TimerWheel<>(Duration.ofSeconds(1), 8);
+        wheel.schedule("a", Duration.ofMillis(2_500)); // 3 whole ticks after the current one
+
+        List<String> expired = new ArrayList<>();
+        for (int tick = 1; tick <= 3; tick++) {
+            wheel.advance(expired::add);
+            assertTrue(expired.isEmpty(), "expired after " + tick + " ticks");
+        }
+        wheel.advance(expired::add);
+        assertEquals(List.of("a"), expired);
+    }
+
+    @Test
+    void itemsRescheduledWhileExpiringWaitForALaterTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(Duration.ofSeconds(1), 8);
+        wheel.schedule("a", Duration.ofMillis(1));
+
+        int[] callbacks = new int[1];
+        for (int tick = 0; tick < 2; tick++) {
+            wheel.advance(item -> {
+                callbacks[0]++;
+                wheel.schedule(item, Duration.ofMillis(1));
+            });
+        }
+        assertEquals(1, callbacks[0]);
+        wheel.advance(item -> callbacks[0]++);
+        wheel.advance(item -> callbacks[0]++);
+        assertEquals(2, callbacks[0]);
+    }
+
+    @Test
+    void itemsMoreThanOneRevolutionAwayWaitForTheirTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(Duration.ofSeconds(1), 4);
+        wheel.schedule("a", Duration.ofSeconds(9));
+
+        List<String> expired = new ArrayList<>();
+        for (int tick = 1; tick <= 9; tick++) wheel.advance(expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(expired::add);
+        assertEquals(List.of("a"), expired);
+    }
+}